@@ -0,0 +1,131 @@
+package cn.edu.sustech.cs209.chatting.benchmarks;
+
+import cn.edu.sustech.cs209.chatting.common.ChatLogReader;
+import cn.edu.sustech.cs209.chatting.common.ChatLogger;
+import cn.edu.sustech.cs209.chatting.common.LogOptions;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.SyncMode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link ChatLogger#log} under each sync mode, and of reading back a log of a
+ * realistic size with {@link ChatLogReader#readChatLog()}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatLogBenchmark {
+
+  private static final int BATCH = 1000;
+
+  /**
+   * A logger on a fresh file. Each invocation logs a batch of records and waits for the last one,
+   * so the score counts records made durable per second.
+   */
+  @State(Scope.Benchmark)
+  public static class Writer {
+
+    @Param({"NONE", "BATCH", "INTERVAL"})
+    private SyncMode syncMode;
+    @Param({"256"})
+    private int messageLength;
+
+    private Path directory;
+    private ChatLogger<Message> logger;
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      directory = Files.createTempDirectory("chat-log-bench");
+      logger = new ChatLogger<>(directory.resolve("messages.dat"),
+          LogOptions.builder().syncMode(syncMode).build());
+      message = Fixtures.message("room", messageLength);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      logger.close();
+      Fixtures.deleteRecursively(directory);
+    }
+  }
+
+  /**
+   * A log of {@code records} messages, written once per trial.
+   */
+  @State(Scope.Benchmark)
+  public static class Log {
+
+    @Param({"10000", "100000"})
+    private int records;
+    @Param({"256"})
+    private int messageLength;
+
+    private Path directory;
+    private ChatLogReader<Message> reader;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      directory = Files.createTempDirectory("chat-log-bench");
+      Path path = directory.resolve("messages.dat");
+      try (ChatLogger<Message> logger = new ChatLogger<>(path,
+          LogOptions.builder().syncMode(SyncMode.NONE).build())) {
+        Message message = Fixtures.message("room", messageLength);
+        for (int i = 0; i < records; i++) {
+          logger.log(message);
+        }
+      }
+      reader = new ChatLogReader<>(Message.class, path);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      Fixtures.deleteRecursively(directory);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void log(Writer writer) {
+    CompletableFuture<Void> last = null;
+    for (int i = 0; i < BATCH; i++) {
+      last = writer.logger.log(writer.message);
+    }
+    last.join();
+  }
+
+  @Benchmark
+  @Threads(4)
+  @OperationsPerInvocation(BATCH)
+  public void logConcurrently(Writer writer) {
+    log(writer);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public List<Message> readChatLog(Log log) {
+    return log.reader.readChatLog();
+  }
+}
@@ -0,0 +1,38 @@
+package cn.edu.sustech.cs209.chatting.benchmarks;
+
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.MessageType;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Data shared by the benchmarks.
+ */
+final class Fixtures {
+
+  private Fixtures() {
+  }
+
+  /**
+   * A text message of {@code length} characters, shaped like the ones clients send.
+   */
+  static Message message(String chatRoomId, int length) {
+    return Message.builder().chatRoomId(chatRoomId).sentBy("alice")
+        .timestamp(System.currentTimeMillis()).type(MessageType.TEXT).data("x".repeat(length))
+        .build();
+  }
+
+  static void deleteRecursively(Path directory) throws IOException {
+    if (!Files.exists(directory)) {
+      return;
+    }
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+}
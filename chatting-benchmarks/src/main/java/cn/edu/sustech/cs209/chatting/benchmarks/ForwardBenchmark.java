@@ -0,0 +1,128 @@
+package cn.edu.sustech.cs209.chatting.benchmarks;
+
+import cn.edu.sustech.cs209.chatting.common.ChatRoom;
+import cn.edu.sustech.cs209.chatting.common.ChatType;
+import cn.edu.sustech.cs209.chatting.common.EncodedPacket;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import cn.edu.sustech.cs209.chatting.common.SyncMode;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import cn.edu.sustech.cs209.chatting.server.Connection;
+import cn.edu.sustech.cs209.chatting.server.Server;
+import cn.edu.sustech.cs209.chatting.server.ServerConfig;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Server#forward} of a text message into a group of {@code roomSize} online members: the
+ * message is logged, encoded once and handed to every member but the sender. Members are
+ * connections that only take the encoded bytes, and the log is not synced, so the score excludes
+ * the network and the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ForwardBenchmark {
+
+  private static final String ROOM_ID = "bench-room";
+
+  @Param({"2", "10", "100", "1000"})
+  private int roomSize;
+  @Param({"256"})
+  private int messageLength;
+
+  private Path directory;
+  private Server server;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("forward-bench");
+    server = new Server(ServerConfig.builder().dataDirectory(directory)
+        .logSyncMode(SyncMode.NONE).build());
+    Set<String> members = new HashSet<>();
+    members.add("alice");
+    for (int i = 1; i < roomSize; i++) {
+      String username = "user" + i;
+      members.add(username);
+      server.getOnlineUsers().put(username, new DiscardingConnection(username));
+    }
+    server.getChatRooms().put(new ChatRoom(ROOM_ID, ChatType.GROUP_CHAT, members, 0));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Fixtures.deleteRecursively(directory);
+  }
+
+  @Benchmark
+  public void forward() {
+    server.forward(Packet.builder().type(PacketType.MESSAGE)
+        .message(Fixtures.message(ROOM_ID, messageLength)).build());
+  }
+
+  private static final class DiscardingConnection implements Connection {
+
+    private String username;
+    private long bytes;
+
+    DiscardingConnection(String username) {
+      this.username = username;
+    }
+
+    @Override
+    public String getUsername() {
+      return username;
+    }
+
+    @Override
+    public void setUsername(String username) {
+      this.username = username;
+    }
+
+    @Override
+    public WireFormat getWireFormat() {
+      return WireFormat.JSON_LINES;
+    }
+
+    @Override
+    public void setWireFormat(WireFormat format, Packet announcement) {
+    }
+
+    @Override
+    public void setInboundFormat(WireFormat format) {
+    }
+
+    @Override
+    public void sendPacket(Packet packet) {
+    }
+
+    @Override
+    public void send(EncodedPacket packet) {
+      bytes += packet.buffer(WireFormat.JSON_LINES).remaining();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package cn.edu.sustech.cs209.chatting.benchmarks;
+
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.PacketCodec;
+import cn.edu.sustech.cs209.chatting.common.PacketReader;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding a MESSAGE packet the way both ends of a connection do: encoding into a
+ * complete frame, and reading a frame back through {@link PacketReader}, as {@code ServerService}
+ * and {@code Client} do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketCodecBenchmark {
+
+  @Param({"JSON_LINES", "SMILE_FRAMED"})
+  private WireFormat format;
+  @Param({"64", "1024", "16384"})
+  private int messageLength;
+
+  private PacketCodec codec;
+  private Packet packet;
+  private byte[] frame;
+
+  @Setup
+  public void setUp() throws IOException {
+    codec = PacketCodec.getInstance();
+    packet = Packet.builder().type(PacketType.MESSAGE)
+        .message(Fixtures.message("room", messageLength)).build();
+    frame = codec.encode(packet, format);
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    return codec.encode(packet, format);
+  }
+
+  @Benchmark
+  public Packet read() throws IOException {
+    PacketReader reader = new PacketReader(new ByteArrayInputStream(frame), codec,
+        PacketCodec.DEFAULT_MAX_FRAME_BYTES);
+    reader.setFormat(format);
+    return reader.read();
+  }
+}
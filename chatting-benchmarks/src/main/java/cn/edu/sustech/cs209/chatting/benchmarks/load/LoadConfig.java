@@ -0,0 +1,90 @@
+package cn.edu.sustech.cs209.chatting.benchmarks.load;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Settings of a load run. Rates are per simulated user; {@link #fromSystemProperties()} reads
+ * every setting from a {@code chatting.load.*} property.
+ */
+@Getter
+@Builder
+public class LoadConfig {
+
+  @Builder.Default
+  private final String host = "localhost";
+  @Builder.Default
+  private final int port = 2345;
+  @Builder.Default
+  private final int users = 100;
+  @Builder.Default
+  private final String usernamePrefix = "load-";
+  @Builder.Default
+  private final String password = "load";
+  /**
+   * Logins in progress at once while the users connect.
+   */
+  @Builder.Default
+  private final int connectConcurrency = 32;
+  /**
+   * Whether each user opens a private chat with the next user.
+   */
+  @Builder.Default
+  private final boolean privateChats = true;
+  /**
+   * Members of each group chat; the users are split into consecutive groups of this size, and no
+   * group chats are created when it is below 2.
+   */
+  @Builder.Default
+  private final int groupSize = 10;
+  @Builder.Default
+  private final double messagesPerSecond = 1;
+  @Builder.Default
+  private final int messageBytes = 128;
+  @Builder.Default
+  private final double filesPerMinute = 0;
+  @Builder.Default
+  private final int fileBytes = 256 * 1024;
+  /**
+   * Threads that send the scheduled messages. A message is timed from when it was due, not from
+   * when a thread got to send it, so falling behind shows up as latency.
+   */
+  @Builder.Default
+  private final int senderThreads = 4;
+  @Builder.Default
+  private final int warmupSeconds = 10;
+  @Builder.Default
+  private final int durationSeconds = 60;
+  @Builder.Default
+  private final int reportIntervalSeconds = 5;
+  /**
+   * Port to serve the generator's own metrics on; 0 disables the endpoint.
+   */
+  @Builder.Default
+  private final int metricsPort = 0;
+
+  public static LoadConfig fromSystemProperties() {
+    return LoadConfig.builder()
+        .host(System.getProperty("chatting.load.host", "localhost"))
+        .port(Integer.getInteger("chatting.load.port", 2345))
+        .users(Integer.getInteger("chatting.load.users", 100))
+        .usernamePrefix(System.getProperty("chatting.load.username-prefix", "load-"))
+        .password(System.getProperty("chatting.load.password", "load"))
+        .connectConcurrency(Integer.getInteger("chatting.load.connect-concurrency", 32))
+        .privateChats(Boolean.parseBoolean(
+            System.getProperty("chatting.load.private-chats", "true")))
+        .groupSize(Integer.getInteger("chatting.load.group-size", 10))
+        .messagesPerSecond(Double.parseDouble(
+            System.getProperty("chatting.load.messages-per-second", "1")))
+        .messageBytes(Integer.getInteger("chatting.load.message-bytes", 128))
+        .filesPerMinute(Double.parseDouble(
+            System.getProperty("chatting.load.files-per-minute", "0")))
+        .fileBytes(Integer.getInteger("chatting.load.file-bytes", 256 * 1024))
+        .senderThreads(Integer.getInteger("chatting.load.sender-threads", 4))
+        .warmupSeconds(Integer.getInteger("chatting.load.warmup-seconds", 10))
+        .durationSeconds(Integer.getInteger("chatting.load.duration-seconds", 60))
+        .reportIntervalSeconds(Integer.getInteger("chatting.load.report-interval-seconds", 5))
+        .metricsPort(Integer.getInteger("chatting.load.metrics-port", 0))
+        .build();
+  }
+}
@@ -0,0 +1,187 @@
+package cn.edu.sustech.cs209.chatting.benchmarks.load;
+
+import cn.edu.sustech.cs209.chatting.common.ChatType;
+import cn.edu.sustech.cs209.chatting.common.Metrics;
+import cn.edu.sustech.cs209.chatting.common.MetricsEndpoint;
+import cn.edu.sustech.cs209.chatting.server.ConnectionExecutors;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Headless load generator: connects {@link LoadConfig#getUsers()} simulated users to a running
+ * server, has them open private and group chats, and sends text and file messages at the
+ * configured rates for a warmup plus a measured period. Prints progress while running and then
+ * the throughput and end-to-end delivery latency percentiles of the measured period.
+ *
+ * <p>Run it against a local server with, for example:
+ * <pre>
+ * java -Dchatting.load.users=1000 -cp chatting-benchmarks/target/benchmarks.jar \
+ *     cn.edu.sustech.cs209.chatting.benchmarks.load.LoadGenerator
+ * </pre>
+ */
+@Slf4j
+public class LoadGenerator {
+
+  private static final long ROOM_SETTLE_MILLIS = 2000;
+  private static final long DRAIN_MILLIS = 5000;
+
+  private final LoadConfig config;
+  private final LoadStats stats;
+  private final List<SimulatedUser> users;
+  private final ExecutorService readers;
+
+  public LoadGenerator(LoadConfig config) {
+    this.config = config;
+    stats = new LoadStats();
+    users = new ArrayList<>();
+    readers = ConnectionExecutors.virtualThreadPerTask();
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadConfig config = LoadConfig.fromSystemProperties();
+    if (config.getMetricsPort() > 0) {
+      MetricsEndpoint.start(config.getMetricsPort());
+    }
+    Metrics.registerMBean("load-generator");
+    new LoadGenerator(config).run();
+    System.exit(0);
+  }
+
+  public void run() throws InterruptedException {
+    connect();
+    if (users.isEmpty()) {
+      System.out.println("No user could log in, giving up");
+      return;
+    }
+    createRooms();
+    Thread.sleep(ROOM_SETTLE_MILLIS);
+    ScheduledExecutorService senders = Executors.newScheduledThreadPool(config.getSenderThreads());
+    ExecutorService uploaders = ConnectionExecutors.virtualThreadPerTask();
+    long start = System.nanoTime();
+    long warmupNanos = TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+    long durationNanos = TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+    stats.measure(start + warmupNanos, durationNanos);
+    for (SimulatedUser user : users) {
+      schedule(senders, start, config.getMessagesPerSecond(),
+          due -> user.sendText(due, config.getMessageBytes()));
+      schedule(senders, start, config.getFilesPerMinute() / 60,
+          due -> uploaders.execute(() -> user.sendFile(due, config.getFileBytes())));
+    }
+    System.out.printf("Sending for %d s of warmup and %d s of measurement%n",
+        config.getWarmupSeconds(), config.getDurationSeconds());
+    long end = start + warmupNanos + durationNanos;
+    long interval = TimeUnit.SECONDS.toNanos(Math.max(1, config.getReportIntervalSeconds()));
+    for (long now = System.nanoTime(); now < end; now = System.nanoTime()) {
+      TimeUnit.NANOSECONDS.sleep(Math.min(interval, end - now));
+      System.out.printf("[%3d s] %s%n",
+          TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), stats.progress());
+    }
+    senders.shutdownNow();
+    uploaders.shutdownNow();
+    Thread.sleep(DRAIN_MILLIS);
+    users.forEach(SimulatedUser::close);
+    readers.shutdownNow();
+    System.out.printf("%d users, %d measured seconds%n", users.size(),
+        config.getDurationSeconds());
+    stats.report(config.getDurationSeconds()).forEach(System.out::println);
+  }
+
+  /**
+   * Connects and logs in every user, {@link LoadConfig#getConnectConcurrency()} at a time. Users
+   * that fail to log in are left out of the run.
+   */
+  private void connect() throws InterruptedException {
+    long start = System.nanoTime();
+    ExecutorService connector = Executors.newFixedThreadPool(config.getConnectConcurrency());
+    List<Future<SimulatedUser>> logins = new ArrayList<>();
+    for (int i = 0; i < config.getUsers(); i++) {
+      String username = config.getUsernamePrefix() + i;
+      logins.add(connector.submit(() -> {
+        SimulatedUser user = new SimulatedUser(config.getHost(), config.getPort(), username,
+            stats);
+        try {
+          user.logIn(config.getPassword(), readers);
+        } catch (IOException e) {
+          user.close();
+          throw e;
+        }
+        return user;
+      }));
+    }
+    for (Future<SimulatedUser> login : logins) {
+      try {
+        users.add(login.get());
+      } catch (ExecutionException e) {
+        log.error("Login failed: {}", e.getCause().getMessage());
+      }
+    }
+    connector.shutdown();
+    System.out.printf("Logged in %d of %d users in %d ms%n", users.size(), config.getUsers(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  /**
+   * Has each user open a private chat with the next one, and the first user of every run of
+   * {@link LoadConfig#getGroupSize()} users open a group chat with the rest of them.
+   */
+  private void createRooms() {
+    int count = users.size();
+    int rooms = 0;
+    if (config.isPrivateChats() && count > 1) {
+      for (int i = 0; i < count; i++) {
+        SimulatedUser user = users.get(i);
+        user.createRoom(ChatType.PRIVATE_CHAT,
+            Set.of(user.getUsername(), users.get((i + 1) % count).getUsername()));
+        rooms++;
+      }
+    }
+    int groupSize = config.getGroupSize();
+    if (groupSize >= 2) {
+      for (int first = 0; first + groupSize <= count; first += groupSize) {
+        Set<String> members = new HashSet<>();
+        for (int i = first; i < first + groupSize; i++) {
+          members.add(users.get(i).getUsername());
+        }
+        users.get(first).createRoom(ChatType.GROUP_CHAT, members);
+        rooms++;
+      }
+    }
+    System.out.printf("Created %d rooms%n", rooms);
+  }
+
+  /**
+   * Calls {@code send} with the time each send is due, {@code perSecond} times a second from a
+   * random offset after {@code start}, until {@code senders} is shut down. A failed send is
+   * counted and does not stop the ones after it.
+   */
+  private void schedule(ScheduledExecutorService senders, long start, double perSecond,
+      LongConsumer send) {
+    if (perSecond <= 0) {
+      return;
+    }
+    long period = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+    long offset = ThreadLocalRandom.current().nextLong(period);
+    long[] due = {start + offset};
+    senders.scheduleAtFixedRate(() -> {
+      try {
+        send.accept(due[0]);
+      } catch (RuntimeException e) {
+        log.error("Send failed: {}", e.getMessage());
+        stats.failedSend();
+      }
+      due[0] += period;
+    }, offset, period, TimeUnit.NANOSECONDS);
+  }
+}
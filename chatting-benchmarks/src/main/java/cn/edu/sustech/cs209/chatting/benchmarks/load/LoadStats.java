@@ -0,0 +1,162 @@
+package cn.edu.sustech.cs209.chatting.benchmarks.load;
+
+import cn.edu.sustech.cs209.chatting.common.Counter;
+import cn.edu.sustech.cs209.chatting.common.Histogram;
+import cn.edu.sustech.cs209.chatting.common.MessageType;
+import cn.edu.sustech.cs209.chatting.common.Metrics;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What a load run measured. Only messages due inside the measurement window count, so connecting,
+ * warming up and draining do not skew the results. Latencies are end to end, from when a message
+ * was due to be sent until a recipient read it, in microseconds.
+ */
+final class LoadStats {
+
+  /**
+   * Roughly 10 buckets per decade from 10 µs to 100 s, which keeps quantile estimates within about
+   * 12% of the true value; the registry's 1-2-5 buckets are too coarse to compare runs by.
+   */
+  private static final long[] LATENCY_BOUNDS = geometric(10, 100_000_000, 1.26);
+
+  private final Kind text;
+  private final Kind file;
+  private final Histogram uploadMicros;
+  private final Counter failedSends;
+  private final LongAdder disconnects;
+  private volatile long measureFrom;
+  private volatile long measureUntil;
+
+  LoadStats() {
+    text = new Kind("text");
+    file = new Kind("file");
+    uploadMicros = Metrics.histogram("chatting_load_upload_micros", LATENCY_BOUNDS);
+    failedSends = Metrics.counter("chatting_load_failed_sends_total");
+    disconnects = new LongAdder();
+    measureFrom = Long.MAX_VALUE;
+    measureUntil = Long.MAX_VALUE;
+  }
+
+  /**
+   * Counts messages due from {@code fromNanos} for {@code durationNanos}.
+   */
+  void measure(long fromNanos, long durationNanos) {
+    measureUntil = fromNanos + durationNanos;
+    measureFrom = fromNanos;
+  }
+
+  boolean measuring(long dueNanos) {
+    return dueNanos >= measureFrom && dueNanos < measureUntil;
+  }
+
+  void sent(MessageType type, long dueNanos, int recipients) {
+    if (measuring(dueNanos)) {
+      Kind kind = kind(type);
+      kind.sent.increment();
+      kind.expected.add(recipients);
+    }
+  }
+
+  void delivered(MessageType type, long dueNanos) {
+    if (measuring(dueNanos)) {
+      Kind kind = kind(type);
+      kind.delivered.increment();
+      kind.latency.recordSince(dueNanos);
+    }
+  }
+
+  void uploaded(long dueNanos) {
+    if (measuring(dueNanos)) {
+      uploadMicros.recordSince(dueNanos);
+    }
+  }
+
+  void failedSend() {
+    failedSends.increment();
+  }
+
+  void disconnected() {
+    disconnects.increment();
+  }
+
+  /**
+   * One line of progress, for the run so far.
+   */
+  String progress() {
+    return String.format(Locale.ROOT, "sent %d, delivered %d, p50 %s ms, p99 %s ms, "
+            + "failed sends %d, disconnects %d", text.sent.get() + file.sent.get(),
+        text.delivered.get() + file.delivered.get(), millis(text.latency.quantile(0.5)),
+        millis(text.latency.quantile(0.99)), failedSends.get(), disconnects.sum());
+  }
+
+  /**
+   * The summary of a run that measured for {@code seconds}.
+   */
+  List<String> report(double seconds) {
+    List<String> lines = new ArrayList<>();
+    for (Kind kind : List.of(text, file)) {
+      long sent = kind.sent.get();
+      if (sent == 0) {
+        continue;
+      }
+      long delivered = kind.delivered.get();
+      lines.add(String.format(Locale.ROOT,
+          "%s messages: sent %d (%.1f/s), delivered %d of %d expected (%.1f/s)", kind.name,
+          sent, sent / seconds, delivered, kind.expected.sum(), delivered / seconds));
+      lines.add("  latency ms: " + quantiles(kind.latency));
+    }
+    if (uploadMicros.count() > 0) {
+      lines.add("file uploads ms: " + quantiles(uploadMicros));
+    }
+    lines.add(String.format(Locale.ROOT, "failed sends %d, disconnects %d", failedSends.get(),
+        disconnects.sum()));
+    return lines;
+  }
+
+  private Kind kind(MessageType type) {
+    return type == MessageType.FILE ? file : text;
+  }
+
+  private static String quantiles(Histogram histogram) {
+    return String.format(Locale.ROOT, "p50 %s, p90 %s, p99 %s, p99.9 %s, max %s",
+        millis(histogram.quantile(0.5)), millis(histogram.quantile(0.9)),
+        millis(histogram.quantile(0.99)), millis(histogram.quantile(0.999)),
+        millis(histogram.max()));
+  }
+
+  private static String millis(long micros) {
+    return String.format(Locale.ROOT, "%.2f", micros / (double) TimeUnit.MILLISECONDS.toMicros(1));
+  }
+
+  private static long[] geometric(long from, long to, double factor) {
+    List<Long> bounds = new ArrayList<>();
+    for (double bound = from; bound <= to; bound *= factor) {
+      long rounded = Math.round(bound);
+      if (bounds.isEmpty() || bounds.get(bounds.size() - 1) < rounded) {
+        bounds.add(rounded);
+      }
+    }
+    return bounds.stream().mapToLong(Long::longValue).toArray();
+  }
+
+  private static final class Kind {
+
+    private final String name;
+    private final Counter sent;
+    private final Counter delivered;
+    private final LongAdder expected;
+    private final Histogram latency;
+
+    Kind(String name) {
+      this.name = name;
+      sent = Metrics.counter("chatting_load_sent_total", "type", name);
+      delivered = Metrics.counter("chatting_load_delivered_total", "type", name);
+      expected = new LongAdder();
+      latency = Metrics.histogram("chatting_load_latency_micros", LATENCY_BOUNDS, "type", name);
+    }
+  }
+}
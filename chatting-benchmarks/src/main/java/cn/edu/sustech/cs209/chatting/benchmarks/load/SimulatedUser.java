@@ -0,0 +1,320 @@
+package cn.edu.sustech.cs209.chatting.benchmarks.load;
+
+import cn.edu.sustech.cs209.chatting.common.ChatRoom;
+import cn.edu.sustech.cs209.chatting.common.ChatRoomIndex;
+import cn.edu.sustech.cs209.chatting.common.ChatType;
+import cn.edu.sustech.cs209.chatting.common.FileChunk;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.MessageType;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.PacketCodec;
+import cn.edu.sustech.cs209.chatting.common.PacketReader;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import cn.edu.sustech.cs209.chatting.common.Presence;
+import cn.edu.sustech.cs209.chatting.common.User;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * One headless chat user on its own connection. It speaks the same protocol as the JavaFX client
+ * but keeps no history: it only tracks its rooms and reports every message it reads to
+ * {@link LoadStats}. Messages carry the {@link System#nanoTime()} they were due at in their data,
+ * which is how recipients in the same process time the delivery.
+ */
+@Slf4j
+class SimulatedUser {
+
+  private static final List<String> CAPABILITIES = List.of(
+      WireFormat.SMILE_FRAMED.getToken(), WireFormat.JSON_LINES.getToken(), Presence.CAPABILITY);
+  private static final long ACK_TIMEOUT_SECONDS = 30;
+
+  @Getter
+  private final String username;
+  private final LoadStats stats;
+  private final PacketCodec packetCodec;
+  private final Socket socket;
+  private final PacketReader in;
+  private final OutputStream out;
+  private final Lock sendLock;
+  private final ChatRoomIndex chatRooms;
+  private final List<String> roomIds;
+  private final Map<String, Upload> uploads;
+  private WireFormat wireFormat;
+  private volatile boolean closed;
+
+  SimulatedUser(String host, int port, String username, LoadStats stats) throws IOException {
+    this.username = username;
+    this.stats = stats;
+    packetCodec = PacketCodec.getInstance();
+    socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+    in = new PacketReader(socket.getInputStream(), packetCodec,
+        PacketCodec.DEFAULT_MAX_FRAME_BYTES);
+    out = new BufferedOutputStream(socket.getOutputStream());
+    sendLock = new ReentrantLock();
+    chatRooms = new ChatRoomIndex();
+    roomIds = new ArrayList<>();
+    uploads = new ConcurrentHashMap<>();
+    wireFormat = WireFormat.JSON_LINES;
+  }
+
+  /**
+   * Registers the user, carrying on if the name was registered by an earlier run, logs in and
+   * starts reading packets on {@code readers}.
+   */
+  void logIn(String password, Executor readers) throws IOException {
+    User user = User.builder().username(username).password(password).build();
+    send(Packet.builder().type(PacketType.REGISTER).capabilities(CAPABILITIES).user(user).build());
+    Packet reply = reply();
+    if (reply.getType() != PacketType.REGISTER_SUCCESS
+        && !"Username Already Exist".equals(reply.getInfo())) {
+      throw new IOException("Failed to register " + username + ": " + reply.getInfo());
+    }
+    send(Packet.builder().type(PacketType.LOGIN).capabilities(CAPABILITIES).user(user).build());
+    reply = reply();
+    if (reply.getType() != PacketType.LOGIN_SUCCESS) {
+      throw new IOException("Failed to log in " + username + ": " + reply.getInfo());
+    }
+    readers.execute(this::readLoop);
+  }
+
+  void createRoom(ChatType type, Set<String> members) {
+    ChatRoom chatRoom = ChatRoom.builder().id(UUID.randomUUID().toString()).type(type)
+        .users(members).build();
+    adopt(chatRoom);
+    send(Packet.builder().type(PacketType.CREATE_CHAT)
+        .user(User.builder().username(username).build()).chatRoom(chatRoom).build());
+  }
+
+  /**
+   * Sends a text message of {@code length} characters, due at {@code dueNanos}, to one of the
+   * user's rooms picked at random.
+   */
+  void sendText(long dueNanos, int length) {
+    ChatRoom chatRoom = randomRoom();
+    if (chatRoom == null) {
+      return;
+    }
+    String stamp = dueNanos + " ";
+    Message message = Message.builder().chatRoomId(chatRoom.getId()).sentBy(username)
+        .timestamp(System.currentTimeMillis()).type(MessageType.TEXT)
+        .data(stamp + "x".repeat(Math.max(0, length - stamp.length()))).build();
+    if (send(Packet.builder().type(PacketType.MESSAGE).message(message).build())) {
+      stats.sent(MessageType.TEXT, dueNanos, chatRoom.getUsers().size() - 1);
+    }
+  }
+
+  /**
+   * Uploads {@code size} random bytes as a file and then sends it to one of the user's rooms.
+   * Blocks until the server has acknowledged the whole file.
+   */
+  void sendFile(long dueNanos, int size) {
+    ChatRoom chatRoom = randomRoom();
+    if (chatRoom == null) {
+      return;
+    }
+    byte[] content = new byte[size];
+    ThreadLocalRandom.current().nextBytes(content);
+    String fileId;
+    try {
+      fileId = upload(content);
+    } catch (IOException e) {
+      log.error("Upload by {} failed: {}", username, e.getMessage());
+      stats.failedSend();
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    stats.uploaded(dueNanos);
+    long sentNanos = System.nanoTime();
+    Message message = Message.builder().chatRoomId(chatRoom.getId()).sentBy(username)
+        .timestamp(System.currentTimeMillis()).type(MessageType.FILE)
+        .fileName(fileId.substring(0, 8) + ".bin").fileId(fileId).fileSize((long) size)
+        .data(Long.toString(sentNanos)).build();
+    if (send(Packet.builder().type(PacketType.MESSAGE).message(message).build())) {
+      stats.sent(MessageType.FILE, sentNanos, chatRoom.getUsers().size() - 1);
+    }
+  }
+
+  void close() {
+    closed = true;
+    try {
+      socket.close();
+    } catch (IOException e) {
+      log.error(e.getMessage());
+    }
+  }
+
+  private String upload(byte[] content) throws IOException, InterruptedException {
+    String transferId;
+    try {
+      transferId = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    Upload upload = new Upload();
+    uploads.put(transferId, upload);
+    try {
+      send(Packet.builder().type(PacketType.FILE_UPLOAD).fileChunk(FileChunk.builder()
+          .transferId(transferId).fileName(transferId).fileSize(content.length).build()).build());
+      long offset = upload.resumeOffset.get(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      if (offset < 0) {
+        throw new IOException("Server rejected upload of " + transferId);
+      }
+      while (offset < content.length) {
+        if (!upload.window.tryAcquire(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          throw new IOException("Upload of " + transferId + " timed out");
+        }
+        int length = (int) Math.min(FileChunk.CHUNK_SIZE, content.length - offset);
+        byte[] data = new byte[length];
+        System.arraycopy(content, (int) offset, data, 0, length);
+        send(Packet.builder().type(PacketType.FILE_UPLOAD).fileChunk(FileChunk.builder()
+            .transferId(transferId).fileName(transferId).fileSize(content.length).offset(offset)
+            .data(data).build()).build());
+        offset += length;
+      }
+      if (!upload.window.tryAcquire(FileChunk.WINDOW, ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+          || upload.acked != content.length) {
+        throw new IOException("Upload of " + transferId + " was not acknowledged");
+      }
+      return transferId;
+    } catch (ExecutionException | TimeoutException e) {
+      throw new IOException("Upload of " + transferId + " was not acknowledged", e);
+    } finally {
+      uploads.remove(transferId);
+    }
+  }
+
+  private void readLoop() {
+    try {
+      Packet packet;
+      while ((packet = in.read()) != null) {
+        handlePacket(packet);
+      }
+    } catch (IOException | RuntimeException e) {
+      if (!closed) {
+        log.error("Connection of {} failed: {}", username, e.getMessage());
+      }
+    }
+    if (!closed) {
+      stats.disconnected();
+    }
+  }
+
+  private void handlePacket(Packet packet) {
+    switch (packet.getType()) {
+      case MESSAGE -> {
+        Message message = packet.getMessage();
+        String data = message.getData();
+        int space = data == null ? -1 : data.indexOf(' ');
+        try {
+          long dueNanos = Long.parseLong(space < 0 ? data : data.substring(0, space));
+          stats.delivered(message.getType(), dueNanos);
+        } catch (NumberFormatException e) {
+          // Not sent by a simulated user.
+        }
+      }
+      case CREATE_CHAT -> adopt(packet.getChatRoom());
+      case FILE_ACK -> {
+        Upload upload = uploads.get(packet.getFileChunk().getTransferId());
+        if (upload == null) {
+          return;
+        }
+        if (!upload.resumeOffset.isDone()) {
+          upload.resumeOffset.complete(packet.getFileChunk().getOffset());
+          return;
+        }
+        upload.acked = packet.getFileChunk().getOffset();
+        upload.window.release();
+      }
+      default -> {
+      }
+    }
+  }
+
+  /**
+   * Starts tracking a room; a room the server already had with the same members replaces the one
+   * this user asked for.
+   */
+  private synchronized void adopt(ChatRoom chatRoom) {
+    if (chatRooms.contains(chatRoom.getId())) {
+      return;
+    }
+    ChatRoom stale = chatRooms.find(chatRoom.getType(), chatRoom.getUsers());
+    if (stale != null) {
+      chatRooms.remove(stale.getId());
+      roomIds.remove(stale.getId());
+    }
+    chatRooms.put(chatRoom);
+    roomIds.add(chatRoom.getId());
+  }
+
+  private synchronized ChatRoom randomRoom() {
+    if (roomIds.isEmpty()) {
+      return null;
+    }
+    return chatRooms.get(roomIds.get(ThreadLocalRandom.current().nextInt(roomIds.size())));
+  }
+
+  private Packet reply() throws IOException {
+    Packet reply = in.read();
+    if (reply == null) {
+      throw new IOException("Server closed the connection of " + username);
+    }
+    if (reply.getCapabilities() != null && !reply.getCapabilities().isEmpty()) {
+      WireFormat format = WireFormat.fromToken(reply.getCapabilities().get(0));
+      if (format != null && wireFormat == WireFormat.JSON_LINES) {
+        wireFormat = format;
+        in.setFormat(format);
+      }
+    }
+    return reply;
+  }
+
+  private boolean send(Packet packet) {
+    sendLock.lock();
+    try {
+      out.write(packetCodec.encode(packet, wireFormat));
+      out.flush();
+      return true;
+    } catch (IOException e) {
+      if (!closed) {
+        stats.failedSend();
+      }
+      return false;
+    } finally {
+      sendLock.unlock();
+    }
+  }
+
+  private static final class Upload {
+
+    private final CompletableFuture<Long> resumeOffset = new CompletableFuture<>();
+    private final Semaphore window = new Semaphore(FileChunk.WINDOW);
+    private volatile long acked;
+  }
+}
@@ -0,0 +1,229 @@
+package cn.edu.sustech.cs209.chatting.client;
+
+import cn.edu.sustech.cs209.chatting.common.Counter;
+import cn.edu.sustech.cs209.chatting.common.Metrics;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.PacketCodec;
+import cn.edu.sustech.cs209.chatting.common.PacketReader;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import cn.edu.sustech.cs209.chatting.common.Presence;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Connection to the server that never blocks its callers. A reader thread hands every packet it
+ * receives to a handler; {@link #request} additionally tags a packet with a request id and
+ * completes with the reply carrying the same id, so any number of requests can be in flight at
+ * once. Nothing here depends on the UI, and the handler runs on the reader thread.
+ */
+@Slf4j
+public class ChatConnection implements AutoCloseable {
+
+  public static final long REQUEST_TIMEOUT_SECONDS = 30;
+  private static final Counter[] PACKETS_OUT =
+      Metrics.counters("chatting_packets_out_total", "type", PacketType.class);
+  private static final List<String> CAPABILITIES = List.of(
+      WireFormat.SMILE_FRAMED.getToken(), WireFormat.JSON_LINES.getToken(), Presence.CAPABILITY);
+
+  private final Socket socket;
+  private final PacketReader in;
+  private final OutputStream out;
+  private final PacketCodec packetCodec;
+  private final Consumer<Packet> handler;
+  private final Runnable disconnected;
+  private final Map<String, CompletableFuture<Packet>> pending;
+  private final AtomicLong requestIds;
+  private final Lock sendLock;
+  private final List<Packet> held;
+  private WireFormat wireFormat;
+  private volatile String negotiation;
+  private boolean negotiated;
+  private volatile boolean closed;
+
+  /**
+   * Connects and starts reading. {@code disconnected} runs once if the server closes the
+   * connection, but not after {@link #close()}.
+   */
+  public ChatConnection(String host, int port, Consumer<Packet> handler, Runnable disconnected) {
+    this.handler = handler;
+    this.disconnected = disconnected;
+    packetCodec = PacketCodec.getInstance();
+    pending = new ConcurrentHashMap<>();
+    requestIds = new AtomicLong();
+    sendLock = new ReentrantLock();
+    held = new ArrayList<>();
+    wireFormat = WireFormat.JSON_LINES;
+    try {
+      socket = new Socket(host, port);
+      in = new PacketReader(socket.getInputStream(), packetCodec,
+          PacketCodec.DEFAULT_MAX_FRAME_BYTES);
+      out = new BufferedOutputStream(socket.getOutputStream());
+    } catch (IOException e) {
+      throw new RuntimeException(e.getMessage());
+    }
+    Thread reader = new Thread(this::readLoop, "chat-connection-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Sends a packet that expects no reply.
+   */
+  public void send(Packet packet) {
+    sendLock.lock();
+    try {
+      if (negotiation != null) {
+        held.add(packet);
+      } else {
+        write(packet);
+      }
+    } finally {
+      sendLock.unlock();
+    }
+  }
+
+  /**
+   * Sends a request and completes with the server's reply to it, or exceptionally if none arrives
+   * within {@link #REQUEST_TIMEOUT_SECONDS} or the connection closes first.
+   *
+   * <p>The first LOGIN or REGISTER also offers the wire formats this client speaks. The server
+   * switches formats right after replying to it, so packets sent meanwhile are held back and
+   * written in order once the reply has been read.
+   */
+  public CompletableFuture<Packet> request(Packet packet) {
+    String requestId = Long.toString(requestIds.incrementAndGet());
+    packet.setRequestId(requestId);
+    CompletableFuture<Packet> reply = new CompletableFuture<>();
+    pending.put(requestId, reply);
+    sendLock.lock();
+    try {
+      if (negotiation != null) {
+        held.add(packet);
+      } else {
+        if (!negotiated && (packet.getType() == PacketType.LOGIN
+            || packet.getType() == PacketType.REGISTER)) {
+          packet.setCapabilities(CAPABILITIES);
+          negotiation = requestId;
+        }
+        write(packet);
+      }
+    } finally {
+      sendLock.unlock();
+    }
+    if (closed) {
+      reply.completeExceptionally(new IOException("Connection closed"));
+    }
+    return reply.orTimeout(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        .whenComplete((received, e) -> pending.remove(requestId));
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      socket.close();
+    } catch (IOException e) {
+      log.error(e.getMessage());
+    }
+  }
+
+  private void readLoop() {
+    try {
+      Packet packet;
+      while ((packet = in.read()) != null) {
+        log.info("Received packet from server: {}", packet);
+        dispatch(packet);
+      }
+    } catch (IOException | RuntimeException e) {
+      if (!closed) {
+        log.error("Connection lost: {}", e.toString());
+      }
+    } finally {
+      boolean lost = !closed;
+      closed = true;
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+        // Already closed; the pending requests are failed below either way.
+      }
+      pending.values().forEach(
+          reply -> reply.completeExceptionally(new IOException("Connection closed")));
+      if (lost) {
+        disconnected.run();
+      }
+    }
+  }
+
+  private void dispatch(Packet packet) {
+    String requestId = packet.getRequestId();
+    if (requestId != null && requestId.equals(negotiation)) {
+      negotiate(packet);
+    }
+    try {
+      handler.accept(packet);
+    } catch (RuntimeException e) {
+      log.error("Failed to handle {} packet: {}", packet.getType(), e.getMessage());
+    }
+    CompletableFuture<Packet> reply = requestId == null ? null : pending.get(requestId);
+    if (reply != null) {
+      reply.complete(packet);
+    }
+  }
+
+  /**
+   * Adopts the wire format the server chose, if any, and writes the packets held back meanwhile.
+   */
+  private void negotiate(Packet reply) {
+    sendLock.lock();
+    try {
+      List<String> capabilities = reply.getCapabilities();
+      WireFormat format = capabilities == null || capabilities.isEmpty() ? null
+          : WireFormat.fromToken(capabilities.get(0));
+      if (format != null) {
+        log.info("Switching to wire format {}", format);
+        wireFormat = format;
+        in.setFormat(format);
+      }
+      negotiation = null;
+      negotiated = true;
+      held.forEach(this::write);
+      held.clear();
+    } finally {
+      sendLock.unlock();
+    }
+  }
+
+  private void write(Packet packet) {
+    try {
+      out.write(packetCodec.encode(packet, wireFormat));
+      out.flush();
+      PACKETS_OUT[packet.getType().ordinal()].increment();
+      log.info("Sent packet to server: {}", packet);
+    } catch (IOException e) {
+      log.error(e.getMessage());
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+        // The reader notices the closed socket and fails the pending requests.
+      }
+    }
+  }
+}
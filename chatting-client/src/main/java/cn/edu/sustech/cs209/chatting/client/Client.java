@@ -1,260 +1,430 @@
 package cn.edu.sustech.cs209.chatting.client;
 
 import cn.edu.sustech.cs209.chatting.common.*;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import java.awt.*;
 import java.io.*;
-import java.net.Socket;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * The state of a logged-in user: rooms, messages and who is online, kept up to date from the
+ * packets arriving on a {@link ChatConnection} and reported to a {@link ClientListener}. Requests
+ * return futures and never block the calling thread.
+ */
 @Getter
 @Slf4j
 public class Client {
 
-  private ChatLogger<Message> messageLogger;
+  private MessageStore messageStore;
   private ChatLogger<ChatRoom> romLogger;
-  private ChatLogReader<Message> messageReader;
   private ChatLogReader<ChatRoom> roomReader;
+  private static final int HISTORY_PAGE_SIZE = 50;
   private static final String BASE_PATH = "/Users/suih/chatting/";
-  private final Socket socket;
 
-  public void setReceivingPacketThread(Thread receivingPacketThread) {
-    this.receivingPacketThread = receivingPacketThread;
+  public void setListener(ClientListener listener) {
+    this.listener = listener;
   }
 
-  public void setController(Controller controller) {
-    this.controller = controller;
-  }
-
-  private Controller controller;
-  private final BufferedReader in;
-  private final BufferedWriter out;
+  private ClientListener listener;
   private String username;
-  private final ObjectMapper objectMapper;
+  /**
+   * The name last sent in a LOGIN, adopted when the server accepts it.
+   */
+  private volatile String loggingIn;
   private final Set<String> users;
 
-  private final Set<ChatRoom> chatRooms;
-  private final Map<String, ChatRoom> chatRoomMap;
+  private final ChatRoomIndex chatRooms;
   private final Map<String, List<Message>> messageList;
-  private Thread receivingPacketThread;
+  /**
+   * Messages for rooms whose CREATE_CHAT has not arrived yet, added once it does.
+   */
+  private final Map<String, Deque<Message>> heldMessages;
+  private final Map<String, Long> historyStart;
+  private final Set<String> historyRequested;
+  private final Set<String> historyExhausted;
+  private final FileTransfers fileTransfers;
+  private final ChatConnection connection;
 
   public Client(String host, int port) {
-    chatRooms = new HashSet<>();
-    objectMapper = new ObjectMapper();
-    users = new HashSet<>();
+    listener = new ClientListener() {
+    };
+    chatRooms = new ChatRoomIndex();
+    users = ConcurrentHashMap.newKeySet();
     messageList = new ConcurrentHashMap<>();
-    chatRoomMap = new ConcurrentHashMap<>();
-    try {
-      socket = new Socket(host, port);
-      in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-      out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-    } catch (IOException e) {
-      throw new RuntimeException(e.getMessage());
-    }
+    heldMessages = new ConcurrentHashMap<>();
+    historyStart = new ConcurrentHashMap<>();
+    historyRequested = ConcurrentHashMap.newKeySet();
+    historyExhausted = ConcurrentHashMap.newKeySet();
+    fileTransfers = new FileTransfers(this);
+    connection = new ChatConnection(host, port, this::handlePacket,
+        () -> listener.disconnected());
   }
 
-  public void initializeLogger() {
-    Path messagePath = Path.of(BASE_PATH + username + "/message.dat");
+  private void initializeLogger() {
     Path roomPath = Path.of(BASE_PATH + username + "/room.dat");
-    messageLogger = new ChatLogger<>(messagePath);
+    messageStore = new MessageStore(Path.of(BASE_PATH + username + "/messages"));
+    messageStore.importLegacyLog(Path.of(BASE_PATH + username + "/message.dat"));
     romLogger = new ChatLogger<>(roomPath);
-    messageReader = new ChatLogReader<>(Message.class, messagePath);
     roomReader = new ChatLogReader<>(ChatRoom.class, roomPath);
     roomReader.readChatLog().forEach(chatRoom -> {
-      chatRooms.add(chatRoom);
-      chatRoomMap.put(chatRoom.getId(), chatRoom);
-      messageList.put(chatRoom.getId(), new ArrayList<>());
+      chatRooms.put(chatRoom);
+      MessageStore.Page page = messageStore.recent(chatRoom.getId(), HISTORY_PAGE_SIZE);
+      messageList.put(chatRoom.getId(), roomMessages(page.messages()));
+      historyStart.put(chatRoom.getId(), page.from());
     });
-    messageReader.readChatLog().forEach(message -> {
-      messageList.get(message.getChatRoomId()).add(message);
-    });
-    controller.updateChatList();
+    listener.chatsChanged();
+  }
+
+  /**
+   * A room's messages, which the reader thread appends to while the UI reads them.
+   */
+  private static List<Message> roomMessages(Collection<Message> messages) {
+    return Collections.synchronizedList(new ArrayList<>(messages));
   }
 
-  public void handlePacket(Packet packet) {
-    if (packet == null) {
+  /**
+   * Prepends the page of stored messages preceding the oldest one loaded for a room and returns
+   * how many were added. Once the local store is exhausted the next page is requested from the
+   * server instead and added when the HISTORY reply arrives.
+   */
+  public int loadOlderMessages(String chatRoomId) {
+    long from = historyStart.getOrDefault(chatRoomId, 0L);
+    if (from == 0) {
+      requestHistory(chatRoomId);
+      return 0;
+    }
+    MessageStore.Page page = messageStore.before(chatRoomId, from, HISTORY_PAGE_SIZE);
+    messageList.get(chatRoomId).addAll(0, page.messages());
+    historyStart.put(chatRoomId, page.from());
+    return page.messages().size();
+  }
+
+  private void requestHistory(String chatRoomId) {
+    if (historyExhausted.contains(chatRoomId) || !historyRequested.add(chatRoomId)) {
       return;
     }
+    HistoryCursor cursor = HistoryCursor.builder().chatRoomId(chatRoomId)
+        .beforeId(oldestId(messageList.get(chatRoomId))).limit(HISTORY_PAGE_SIZE).build();
+    connection.request(
+            Packet.builder().type(PacketType.HISTORY_REQUEST).history(cursor).build())
+        .whenComplete((reply, e) -> {
+          if (e != null) {
+            historyRequested.remove(chatRoomId);
+          }
+        });
+  }
+
+  /**
+   * The id of the oldest loaded message the server assigned one to. Our own messages and local
+   * notices have none, and their timestamps come from different clocks, so they cannot position
+   * a history request.
+   */
+  private static Long oldestId(List<Message> loaded) {
+    if (loaded == null) {
+      return null;
+    }
+    synchronized (loaded) {
+      for (Message message : loaded) {
+        if (message.getId() != null) {
+          return message.getId();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Closes the connection, then the local logs.
+   */
+  public void close() {
+    connection.close();
+    if (messageStore != null) {
+      messageStore.close();
+      romLogger.close();
+    }
+  }
+
+  private void handlePacket(Packet packet) {
     switch (packet.getType()) {
       case MESSAGE -> {
-        messageList.get(packet.getMessage().getChatRoomId()).add(packet.getMessage());
-        controller.updateMessage();
-        chatRoomMap.get(packet.getMessage().getChatRoomId()).addUnreadMessageCount();
-        messageLogger.log(packet.getMessage());
-        controller.updateChatList();
+        if (receive(packet.getMessage())) {
+          listener.messageAdded(packet.getMessage());
+          listener.chatsChanged();
+        }
+      }
+      case ROSTER -> {
+        Set<String> online = new HashSet<>(packet.getPresence().getOnline());
+        online.remove(username);
+        users.retainAll(online);
+        users.addAll(online);
+        listener.usersChanged();
+        listener.chatsChanged();
+      }
+      case PRESENCE -> {
+        Presence presence = packet.getPresence();
+        if (presence.getOnline() != null) {
+          users.addAll(presence.getOnline());
+        }
+        if (presence.getOffline() != null) {
+          presence.getOffline().forEach(this::userLeft);
+        }
+        listener.usersChanged();
+        listener.chatsChanged();
       }
       case NEW_USER -> {
         if (!packet.getUser().getUsername().equals(username)) {
           users.add(packet.getUser().getUsername());
-          controller.updateOnlineCnt();
-          controller.updateChatList();
+          listener.usersChanged();
+          listener.chatsChanged();
+        }
+      }
+      case CATCH_UP -> {
+        Set<String> changed = new HashSet<>();
+        packet.getMessages().forEach(message -> {
+          if (receive(message)) {
+            changed.add(message.getChatRoomId());
+          }
+        });
+        changed.forEach(listener::messagesChanged);
+        listener.chatsChanged();
+      }
+      case HISTORY -> {
+        String chatRoomId = packet.getHistory().getChatRoomId();
+        historyRequested.remove(chatRoomId);
+        if (packet.getHistory().getBeforeId() == null) {
+          historyExhausted.add(chatRoomId);
+        }
+        List<Message> loaded = messageList.get(chatRoomId);
+        List<Message> older = loaded == null ? List.of() : notLoaded(loaded, packet.getMessages());
+        if (!older.isEmpty()) {
+          loaded.addAll(0, older);
+          listener.olderMessagesLoaded(chatRoomId);
         }
       }
       case CREATE_CHAT -> {
-        chatRooms.add(packet.getChatRoom());
-        chatRoomMap.put(packet.getChatRoom().getId(), packet.getChatRoom());
-        messageList.put(packet.getChatRoom().getId(), new ArrayList<>());
-        romLogger.log(packet.getChatRoom());
-        controller.updateChatList();
+        ChatRoom chatRoom = packet.getChatRoom();
+        if (chatRooms.contains(chatRoom.getId())) {
+          return;
+        }
+        ChatRoom stale = chatRooms.find(chatRoom.getType(), chatRoom.getUsers());
+        if (stale != null) {
+          // The server already had a room with these members; adopt it in place of ours.
+          chatRooms.remove(stale.getId());
+          List<Message> messages = messageList.remove(stale.getId());
+          messageList.put(chatRoom.getId(), messages == null ? roomMessages(List.of()) : messages);
+          listener.chatReplaced(stale, chatRoom);
+        } else {
+          messageList.put(chatRoom.getId(), roomMessages(List.of()));
+        }
+        chatRooms.put(chatRoom);
+        romLogger.log(chatRoom);
+        Deque<Message> held = heldMessages.remove(chatRoom.getId());
+        if (held != null) {
+          held.forEach(this::receive);
+          listener.messagesChanged(chatRoom.getId());
+        }
+        listener.chatsChanged();
+      }
+      case LOGIN_SUCCESS -> {
+        // Handled on the reader thread so the logs are loaded before the catch-up that follows.
+        username = loggingIn;
+        initializeLogger();
       }
       case LOGOUT -> {
-        users.remove(packet.getUser().getUsername());
-        controller.updateOnlineCnt();
-        chatRooms.forEach(chatRoom -> {
-          if (chatRoom.getUsers().contains(packet.getUser().getUsername())) {
-            Message message = Message.builder()
-                .timestamp(System.currentTimeMillis())
-                .chatRoomId(chatRoom.getId())
-                .type(MessageType.TEXT)
-                .data("User " + packet.getUser().getUsername() + " has left the chat room")
-                .build();
-            messageList.get(chatRoom.getId()).add(message);
-            messageLogger.log(message);
-          }
-        });
-        controller.updateChatList();
-        controller.updateMessage();
+        userLeft(packet.getUser().getUsername());
+        listener.usersChanged();
+        listener.chatsChanged();
       }
+      case FILE_ACK -> fileTransfers.onAck(packet.getFileChunk());
+      case FILE_CHUNK -> fileTransfers.onChunk(packet.getFileChunk());
     }
   }
 
-  public void startReceivingPacket() {
-    receivingPacketThread = new Thread(() -> {
-      while (true) {
-        Packet packet = receivePacket();
-        if (receivingPacketThread.isInterrupted()) {
-          break;
-        }
-        if (packet == null) {
-          controller.serverLogout();
-          break;
+  /**
+   * Drops the messages of a history page that are already loaded without an id, which are the
+   * ones we sent ourselves; they keep the sender and timestamp we gave them.
+   */
+  private static List<Message> notLoaded(List<Message> loaded, List<Message> page) {
+    Set<String> withoutId = new HashSet<>();
+    synchronized (loaded) {
+      for (Message message : loaded) {
+        if (message.getId() == null) {
+          withoutId.add(message.getSentBy() + '\0' + message.getTimestamp());
         }
-        handlePacket(packet);
       }
-    });
-    receivingPacketThread.start();
+    }
+    if (withoutId.isEmpty()) {
+      return page;
+    }
+    return page.stream()
+        .filter(message -> !withoutId.contains(message.getSentBy() + '\0' + message.getTimestamp()))
+        .toList();
   }
 
-  public void register(String username, String password) {
-    sendPacket(Packet.builder().type(PacketType.REGISTER)
-        .user(User.builder().username(username).password(password).build()).build());
-    Packet receive = receivePacket();
-    if (receive.getType() == PacketType.REGISTER_SUCCESS) {
-      log.info("Register Success");
-    } else {
-      log.info("Register Failed");
-      throw new RuntimeException(receive.getInfo());
+  /**
+   * Adds a message from the server to its room and returns whether the room was known. A message
+   * for a room we have not been told about yet is held until the room arrives; only the newest
+   * page is held per room, as older messages can still be paged in from the server.
+   */
+  private boolean receive(Message message) {
+    String chatRoomId = message.getChatRoomId();
+    if (chatRoomId == null) {
+      log.warn("Dropping a message without a room from {}", message.getSentBy());
+      return false;
+    }
+    List<Message> loaded = messageList.get(chatRoomId);
+    ChatRoom chatRoom = chatRooms.get(chatRoomId);
+    if (loaded == null || chatRoom == null) {
+      log.warn("Holding a message for unknown room {} until the room arrives", chatRoomId);
+      Deque<Message> held = heldMessages.computeIfAbsent(chatRoomId, id -> new ArrayDeque<>());
+      held.addLast(message);
+      if (held.size() > HISTORY_PAGE_SIZE) {
+        held.removeFirst();
+      }
+      return false;
     }
+    loaded.add(message);
+    chatRoom.addUnreadMessageCount();
+    messageStore.append(message);
+    return true;
   }
 
-  public void login(String username, String password) {
-    sendPacket(Packet.builder().type(PacketType.LOGIN)
-        .user(User.builder().username(username).password(password).build()).build());
-    Packet receive = receivePacket();
-    if (receive.getType() == PacketType.LOGIN_SUCCESS) {
-      log.info("Login Success");
-      this.username = username;
-    } else {
-      log.info("Login Failed");
-      throw new RuntimeException(receive.getInfo());
-    }
+  private void userLeft(String user) {
+    users.remove(user);
+    chatRooms.roomsOf(user).forEach(chatRoomId -> {
+      Message message = Message.builder()
+          .timestamp(System.currentTimeMillis())
+          .chatRoomId(chatRoomId)
+          .type(MessageType.TEXT)
+          .data("User " + user + " has left the chat room")
+          .build();
+      messageList.get(chatRoomId).add(message);
+      messageStore.append(message);
+      listener.messagesChanged(chatRoomId);
+    });
+  }
+
+  /**
+   * Asks the server for everyone who is online, not just the users sharing a room with us, and
+   * completes once the reply has been merged into {@link #users}.
+   */
+  public CompletableFuture<Set<String>> requestRoster() {
+    return connection.request(Packet.builder().type(PacketType.ROSTER_REQUEST).build())
+        .thenApply(reply -> {
+          Set<String> online = new HashSet<>(reply.getPresence().getOnline());
+          online.remove(username);
+          return online;
+        });
+  }
+
+  /**
+   * Completes once {@code username} is registered, or exceptionally with the server's reason.
+   */
+  public CompletableFuture<Void> register(String username, String password) {
+    return connection.request(Packet.builder().type(PacketType.REGISTER)
+            .user(User.builder().username(username).password(password).build()).build())
+        .thenAccept(reply -> {
+          if (reply.getType() != PacketType.REGISTER_SUCCESS) {
+            log.info("Register Failed");
+            throw new IllegalStateException(reply.getInfo());
+          }
+          log.info("Register Success");
+        });
+  }
+
+  /**
+   * Completes once logged in and the local logs are loaded, or exceptionally with the server's
+   * reason. The logs are loaded by the reader thread as it handles the reply, so packets the
+   * server sends right after it, such as the catch-up, find them in place.
+   */
+  public CompletableFuture<Void> login(String username, String password) {
+    loggingIn = username;
+    return connection.request(Packet.builder().type(PacketType.LOGIN)
+            .user(User.builder().username(username).password(password).build()).build())
+        .thenAccept(reply -> {
+          if (reply.getType() != PacketType.LOGIN_SUCCESS) {
+            log.info("Login Failed");
+            throw new IllegalStateException(reply.getInfo());
+          }
+          log.info("Login Success");
+        });
   }
 
   public ChatRoom createPrivateChat(String name) {
-    if (chatRooms.stream()
-        .filter(r -> r.getType() == ChatType.PRIVATE_CHAT)
-        .map(ChatRoom::getUsers)
-        .noneMatch(u -> u.contains(name))) {
-      Set<String> user = new HashSet<>();
-      user.add(username);
-      user.add(name);
+    Set<String> user = new HashSet<>();
+    user.add(username);
+    user.add(name);
+    ChatRoom existing = chatRooms.find(ChatType.PRIVATE_CHAT, user);
+    if (existing == null) {
       ChatRoom chatRoom = ChatRoom.builder()
           .id(UUID.randomUUID().toString())
           .type(ChatType.PRIVATE_CHAT).users(user).build();
-      chatRooms.add(chatRoom);
-      chatRoomMap.put(chatRoom.getId(), chatRoom);
+      chatRooms.put(chatRoom);
       romLogger.log(chatRoom);
-      messageList.put(chatRoom.getId(), new ArrayList<>());
-      sendPacket(Packet.builder().type(PacketType.CREATE_CHAT)
-          .user(User.builder().username(username).build()).chatRoom(chatRoom).build());
-      Message welcomeMessage = Message.builder()
-          .timestamp(System.currentTimeMillis())
-          .type(MessageType.TEXT)
-          .chatRoomId(chatRoom.getId())
-          .data("Successfully created a private chat")
-          .build();
-      sendPacket(Packet.builder().type(PacketType.MESSAGE).message(welcomeMessage).build());
+      messageList.put(chatRoom.getId(), roomMessages(List.of()));
+      requestCreateChat(chatRoom, "Successfully created a private chat");
       return chatRoom;
     } else {
-      return chatRooms.stream()
-          .filter(r -> r.getType() == ChatType.PRIVATE_CHAT)
-          .filter(r -> r.getUsers().contains(name))
-          .findFirst()
-          .orElse(null);
+      return existing;
     }
   }
 
   public ChatRoom createGroupChat(Set<String> user) {
     user.add(username);
-    if (chatRooms.stream()
-        .filter(r -> r.getType() == ChatType.GROUP_CHAT)
-        .map(ChatRoom::getUsers)
-        .noneMatch(u -> u.equals(user))) {
+    ChatRoom existing = chatRooms.find(ChatType.GROUP_CHAT, user);
+    if (existing == null) {
       ChatRoom chatRoom = ChatRoom.builder()
           .id(UUID.randomUUID().toString())
           .type(ChatType.GROUP_CHAT).users(user).build();
-      chatRooms.add(chatRoom);
-      chatRoomMap.put(chatRoom.getId(), chatRoom);
+      chatRooms.put(chatRoom);
       romLogger.log(chatRoom);
-      messageList.put(chatRoom.getId(), new ArrayList<>());
-      sendPacket(Packet.builder().type(PacketType.CREATE_CHAT)
-          .user(User.builder().username(username).build()).chatRoom(chatRoom).build());
-      Message welcomeMessage = Message.builder()
-          .timestamp(System.currentTimeMillis())
-          .type(MessageType.TEXT)
-          .chatRoomId(chatRoom.getId())
-          .data("Successfully created chat room")
-          .build();
-      sendPacket(Packet.builder().type(PacketType.MESSAGE).message(welcomeMessage).build());
+      messageList.put(chatRoom.getId(), roomMessages(List.of()));
+      requestCreateChat(chatRoom, "Successfully created chat room");
       return chatRoom;
     } else {
-      return chatRooms.stream()
-          .filter(r -> r.getType() == ChatType.GROUP_CHAT)
-          .filter(r -> r.getUsers().equals(user))
-          .findFirst()
-          .orElse(null);
+      return existing;
     }
   }
 
+  /**
+   * Asks the server to create a room and, once it has answered with the room standing for it,
+   * posts a welcome message there. Waiting keeps the message from reaching a node of a cluster
+   * that does not know the room yet.
+   */
+  private void requestCreateChat(ChatRoom chatRoom, String welcome) {
+    connection.request(Packet.builder().type(PacketType.CREATE_CHAT)
+            .user(User.builder().username(username).build()).chatRoom(chatRoom).build())
+        .thenAccept(reply -> sendPacket(Packet.builder().type(PacketType.MESSAGE)
+            .message(Message.builder()
+                .timestamp(System.currentTimeMillis())
+                .type(MessageType.TEXT)
+                .chatRoomId(reply.getChatRoom().getId())
+                .data(welcome)
+                .build())
+            .build()));
+  }
+
   public void sendPacket(Packet packet) {
-    try {
-      out.write(objectMapper.writeValueAsString(packet));
-      out.newLine();
-      out.flush();
-      log.info("Sent packet to server: {}", packet);
-    } catch (IOException e) {
-      log.error(e.getMessage());
-    }
+    connection.send(packet);
   }
 
-  public Packet receivePacket() {
-    try {
-      String p = in.readLine();
-      if (p != null) {
-        Packet packet = objectMapper.readValue(p, Packet.class);
-        log.info("Received packet from server: {}", packet);
-        return packet;
-      }
-    } catch (IOException e) {
-      log.error(e.getMessage());
+  /**
+   * What to tell the user about a failed request.
+   */
+  public static String reason(Throwable failure) {
+    Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+        ? failure.getCause() : failure;
+    if (cause instanceof TimeoutException) {
+      return "The server did not respond";
     }
-    return null;
+    return cause.getMessage();
   }
 
   public void setUsername(String username) {
@@ -263,9 +433,13 @@ public class Client {
 
   public void downloadFile(Message msg) throws IOException {
     String filename = msg.getFileName();
-    byte[] fileData = Base64.getDecoder().decode(msg.getData());
     String basePath = "/Users/suih/Downloads/chatting/";
     String savePath = basePath + username + "/";
+    if (msg.getFileId() != null) {
+      fileTransfers.download(msg, Path.of(savePath));
+      return;
+    }
+    byte[] fileData = Base64.getDecoder().decode(msg.getData());
     File dir = new File(savePath);
     if (!dir.exists()) {
       dir.mkdirs();
@@ -279,24 +453,24 @@ public class Client {
   }
 
   public void sendFile(String chatRoomId, File file) {
-    try {
-      Path filePath = file.toPath();
-      byte[] fileContent = Files.readAllBytes(filePath);
-      String base64Encoded = Base64.getEncoder().encodeToString(fileContent);
+    fileTransfers.upload(file).whenComplete((fileId, e) -> {
+      if (e != null) {
+        log.error(e.getMessage());
+        return;
+      }
       Message message = Message.builder()
           .chatRoomId(chatRoomId)
           .timestamp(System.currentTimeMillis())
           .sentBy(username)
           .fileName(file.getName())
-          .data(base64Encoded)
+          .fileId(fileId)
+          .fileSize(file.length())
           .type(MessageType.FILE)
           .build();
       sendPacket(Packet.builder().type(PacketType.MESSAGE).message(message).build());
       messageList.get(chatRoomId).add(message);
-      messageLogger.log(message);
-      controller.updateMessage();
-    } catch (IOException e) {
-      log.error(e.getMessage());
-    }
+      messageStore.append(message);
+      listener.messageAdded(message);
+    });
   }
 }
@@ -0,0 +1,55 @@
+package cn.edu.sustech.cs209.chatting.client;
+
+import cn.edu.sustech.cs209.chatting.common.ChatRoom;
+import cn.edu.sustech.cs209.chatting.common.Message;
+
+/**
+ * Receives the changes {@link Client} makes to its state as packets arrive. Calls come from
+ * background threads, mostly the connection's reader, after the state has been updated; every
+ * method does nothing by default.
+ */
+public interface ClientListener {
+
+  /**
+   * {@code message} arrived and was appended to the messages of its room.
+   */
+  default void messageAdded(Message message) {
+  }
+
+  /**
+   * The messages of a room changed other than by one being appended, for example when a catch-up
+   * or an older page arrived.
+   */
+  default void messagesChanged(String chatRoomId) {
+  }
+
+  /**
+   * Older messages of a room requested from the server were put before those loaded.
+   */
+  default void olderMessagesLoaded(String chatRoomId) {
+  }
+
+  /**
+   * A room was added or its unread count changed.
+   */
+  default void chatsChanged() {
+  }
+
+  /**
+   * The server already had a room with the members of {@code stale}; {@code chatRoom} replaces it.
+   */
+  default void chatReplaced(ChatRoom stale, ChatRoom chatRoom) {
+  }
+
+  /**
+   * Someone came online or went offline.
+   */
+  default void usersChanged() {
+  }
+
+  /**
+   * The server closed the connection.
+   */
+  default void disconnected() {
+  }
+}
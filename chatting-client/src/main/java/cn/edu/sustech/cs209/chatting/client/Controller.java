@@ -7,11 +7,11 @@ import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
-import javafx.scene.Cursor;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.control.cell.CheckBoxListCell;
 import javafx.scene.input.Dragboard;
+import javafx.scene.input.ScrollEvent;
 import javafx.scene.input.TransferMode;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.StackPane;
@@ -24,7 +24,6 @@ import java.util.*;
 import java.util.stream.Collectors;
 import javafx.util.Callback;
 import java.io.File;
-import java.io.IOException;
 import java.text.SimpleDateFormat;
 import lombok.*;
 import lombok.experimental.FieldDefaults;
@@ -32,14 +31,18 @@ import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 @FieldDefaults(level = AccessLevel.PRIVATE)
-public class Controller {
+public class Controller implements ClientListener {
 
   public void setSceneManager(SceneManager sceneManager) {
     this.sceneManager = sceneManager;
+    client = sceneManager.getClient();
+    client.setListener(this);
+    messageWindow = new MessageWindow(chatContentList);
   }
 
   SceneManager sceneManager;
   Client client;
+  MessageWindow messageWindow;
 
   @FXML
   ListView<Message> chatContentList;
@@ -59,7 +62,6 @@ public class Controller {
   ChatRoom currentChat;
 
   public void init() {
-    client = sceneManager.getClient();
     inputArea.setOnDragOver(event -> {
       if (event.getGestureSource() != inputArea && event.getDragboard().hasFiles()) {
         event.acceptTransferModes(TransferMode.COPY_OR_MOVE);
@@ -89,19 +91,21 @@ public class Controller {
       closeClient();
       Platform.exit();
     });
-    client.startReceivingPacket();
+    chatContentList.addEventFilter(ScrollEvent.SCROLL, event -> {
+      if (event.getDeltaY() > 0 && messageWindow.isScrolledToTop()) {
+        loadOlderMessages();
+      } else if (event.getDeltaY() < 0 && currentChat != null
+          && messageWindow.isScrolledToBottom()) {
+        messageWindow.showNewer(client.getMessageList().get(currentChat.getId()));
+      }
+    });
     currentUsername.setText("Current User: " + client.getUsername());
-    chatContentList.setCellFactory(new MessageCellFactory());
+    chatContentList.setCellFactory(view -> new MessageCell(client, view));
     chatList.setCellFactory(new ChatRoomCellFactory());
   }
 
   public void closeClient() {
-    client.getReceivingPacketThread().interrupt();
-    try {
-      client.getSocket().close();
-    } catch (IOException e) {
-      log.error(e.getMessage());
-    }
+    client.close();
   }
 
   @FXML
@@ -110,6 +114,8 @@ public class Controller {
     val stage = new Stage();
     val userSel = new ComboBox<String>();
     userSel.getItems().addAll(client.getUsers());
+    client.requestRoster().thenAccept(online -> Platform.runLater(() -> online.stream()
+        .filter(name -> !userSel.getItems().contains(name)).forEach(userSel.getItems()::add)));
     val okBtn = new Button("OK");
     okBtn.setOnAction(e -> {
       user.set(userSel.getSelectionModel().getSelectedItem());
@@ -121,7 +127,7 @@ public class Controller {
       } else {
         currentChat = client.createPrivateChat(user.get());
         updateChatList();
-        updateMessage();
+        showCurrentChat();
         stage.close();
       }
     });
@@ -151,13 +157,24 @@ public class Controller {
     });
   }
 
+  /**
+   * Points the open chat at {@code chatRoom} if it was {@code stale}, which the server replaced.
+   */
+  public void replaceChat(ChatRoom stale, ChatRoom chatRoom) {
+    Platform.runLater(() -> {
+      if (stale.equals(currentChat)) {
+        currentChat = chatRoom;
+      }
+    });
+  }
+
   public void updateChatList() {
     Platform.runLater(() -> {
       if (currentChat != null) {
         currentChat.resetUnreadMessageCount();
       }
       chatList.getItems().clear();
-      chatList.getItems().addAll(client.getChatRooms().stream().sorted((c1, c2) -> {
+      chatList.getItems().addAll(client.getChatRooms().all().stream().sorted((c1, c2) -> {
             List<Message> m1 = client.getMessageList().get(c1.getId());
             List<Message> m2 = client.getMessageList().get(c2.getId());
             Long t1 = m1 == null || m1.isEmpty() ? 0 : m1.get(m1.size() - 1).getTimestamp();
@@ -177,6 +194,9 @@ public class Controller {
     val userListView = new ListView<String>();
     Set<String> selectedUsers = new HashSet<>();
     userListView.getItems().addAll(client.getUsers());
+    client.requestRoster().thenAccept(online -> Platform.runLater(() -> online.stream()
+        .filter(user -> !userListView.getItems().contains(user))
+        .forEach(userListView.getItems()::add)));
     userListView.setCellFactory(
         CheckBoxListCell.forListView(new Callback<String, ObservableValue<Boolean>>() {
           @Override
@@ -203,7 +223,7 @@ public class Controller {
       } else {
         currentChat = client.createGroupChat(selectedUsers);
         updateChatList();
-        updateMessage();
+        showCurrentChat();
         stage.close();
       }
     });
@@ -242,9 +262,14 @@ public class Controller {
           .type(PacketType.MESSAGE)
           .message(message)
           .build());
-      client.getMessageLogger().log(message);
-      client.getMessageList().get(currentChat.getId()).add(message);
-      chatContentList.getItems().add(message);
+      client.getMessageStore().append(message);
+      List<Message> room = client.getMessageList().get(currentChat.getId());
+      room.add(message);
+      if (messageWindow.isAtTail()) {
+        messageWindow.refresh(room);
+      } else {
+        messageWindow.show(room);
+      }
       inputArea.clear();
       updateChatList();
     }
@@ -253,21 +278,88 @@ public class Controller {
   @FXML
   public void handleChatSelection() {
     currentChat = chatList.getSelectionModel().getSelectedItem();
+    if (currentChat != null && client.getMessageList().get(currentChat.getId()).isEmpty()) {
+      client.loadOlderMessages(currentChat.getId());
+    }
     updateChatList();
-    updateMessage();
+    showCurrentChat();
+  }
+
+  /**
+   * Shows the newest messages of the open chat. Must be called on the JavaFX thread.
+   */
+  private void showCurrentChat() {
+    if (currentChat == null) {
+      messageWindow.clear();
+      return;
+    }
+    messageWindow.show(client.getMessageList().get(currentChat.getId()));
   }
 
-  public void updateMessage() {
+  /**
+   * Appends what arrived in {@code chatRoomId} to the message pane if that chat is open.
+   */
+  private void refreshChat(String chatRoomId) {
     Platform.runLater(() -> {
-      if (currentChat == null) {
-        return;
+      if (currentChat != null && currentChat.getId().equals(chatRoomId)) {
+        messageWindow.refresh(client.getMessageList().get(chatRoomId));
+      }
+    });
+  }
+
+  /**
+   * Brings older messages of the open chat into the pane: those already loaded first, then the
+   * next page from the local store, or from the server once the store is exhausted.
+   */
+  private void loadOlderMessages() {
+    if (currentChat == null) {
+      return;
+    }
+    List<Message> room = client.getMessageList().get(currentChat.getId());
+    if (!messageWindow.showOlder(room) && client.loadOlderMessages(currentChat.getId()) > 0) {
+      messageWindow.showOlder(room);
+    }
+  }
+
+  @Override
+  public void messageAdded(Message message) {
+    refreshChat(message.getChatRoomId());
+  }
+
+  @Override
+  public void messagesChanged(String chatRoomId) {
+    refreshChat(chatRoomId);
+  }
+
+  @Override
+  public void olderMessagesLoaded(String chatRoomId) {
+    Platform.runLater(() -> {
+      if (currentChat != null && currentChat.getId().equals(chatRoomId)) {
+        messageWindow.showOlder(client.getMessageList().get(chatRoomId));
       }
-      chatContentList.getItems().clear();
-      client.getMessageList().get(currentChat.getId())
-          .forEach(chatContentList.getItems()::add);
     });
   }
 
+  @Override
+  public void chatsChanged() {
+    updateChatList();
+  }
+
+  @Override
+  public void chatReplaced(ChatRoom stale, ChatRoom chatRoom) {
+    replaceChat(stale, chatRoom);
+  }
+
+  @Override
+  public void usersChanged() {
+    updateOnlineCnt();
+  }
+
+  @Override
+  public void disconnected() {
+    serverLogout();
+  }
+
   public void serverLogout() {
     Platform.runLater(() -> {
       Alert alert = new Alert(Alert.AlertType.WARNING);
@@ -345,73 +437,4 @@ public class Controller {
       };
     }
   }
-
-  private class MessageCellFactory implements Callback<ListView<Message>, ListCell<Message>> {
-
-    @Override
-    public ListCell<Message> call(ListView<Message> param) {
-      return new ListCell<Message>() {
-        @Override
-        public void updateItem(Message msg, boolean empty) {
-          super.updateItem(msg, empty);
-          if (empty || msg == null) {
-            setText(null);
-            setGraphic(null);
-            return;
-          }
-
-          HBox messagePane = new HBox();
-          Label senderLabel = new Label(msg.getSentBy());
-          senderLabel.setStyle("-fx-font-size: 10px; -fx-font-weight: bold;");
-          if (msg.getType() == MessageType.TEXT) {
-            Label msgLabel = new Label(msg.getData());
-            msgLabel.setWrapText(true);
-            if (msg.getSentBy() == null) {
-              messagePane.setAlignment(Pos.CENTER);
-              msgLabel.setStyle("-fx-background-color: #CCCCCC; -fx-padding: 5px;");
-              senderLabel.setStyle("-fx-text-fill: #808080;");
-              messagePane.getChildren().add(msgLabel);
-            } else if (msg.getSentBy().equals(client.getUsername())) {
-              messagePane.setAlignment(Pos.TOP_RIGHT);
-              msgLabel.setStyle("-fx-background-color: #ADD8E6; -fx-padding: 5px;");
-              senderLabel.setStyle("-fx-text-fill: #0000FF;");
-              messagePane.getChildren().addAll(msgLabel, senderLabel);
-            } else {
-              messagePane.setAlignment(Pos.TOP_LEFT);
-              msgLabel.setStyle("-fx-background-color: #FFFFFF; -fx-padding: 5px;");
-              senderLabel.setStyle("-fx-text-fill: #008000;");
-              messagePane.getChildren().addAll(senderLabel, msgLabel);
-            }
-
-          } else if (msg.getType() == MessageType.FILE) {
-            Label fileLabel = new Label(msg.getFileName());
-            fileLabel.setStyle("-fx-background-color: #FFFFFF; -fx-padding: 5px;");
-            fileLabel.setCursor(Cursor.HAND);
-            fileLabel.setOnMouseClicked(e -> {
-              try {
-                client.downloadFile(msg);
-              } catch (IOException ex) {
-                ex.printStackTrace();
-              }
-            });
-            if (msg.getSentBy() == null) {
-              messagePane.setAlignment(Pos.CENTER);
-              senderLabel.setStyle("-fx-text-fill: #808080;");
-              messagePane.getChildren().add(fileLabel);
-            } else if (msg.getSentBy().equals(client.getUsername())) {
-              messagePane.setAlignment(Pos.TOP_RIGHT);
-              senderLabel.setStyle("-fx-text-fill: #0000FF;");
-              messagePane.getChildren().addAll(fileLabel, senderLabel);
-            } else {
-              messagePane.setAlignment(Pos.TOP_LEFT);
-              senderLabel.setStyle("-fx-text-fill: #008000;");
-              messagePane.getChildren().addAll(senderLabel, fileLabel);
-            }
-          }
-          setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
-          setGraphic(messagePane);
-        }
-      };
-    }
-  }
 }
@@ -0,0 +1,232 @@
+package cn.edu.sustech.cs209.chatting.client;
+
+import cn.edu.sustech.cs209.chatting.common.FileChunk;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import java.awt.Desktop;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Chunked uploads and downloads. At most {@link FileChunk#WINDOW} chunks of a transfer are in
+ * flight at any time, so memory use does not depend on the file size.
+ */
+@Slf4j
+public class FileTransfers {
+
+  private static final long ACK_TIMEOUT_SECONDS = 30;
+
+  private final Client client;
+  private final Map<String, Upload> uploads;
+  private final Map<String, Download> downloads;
+  private final ExecutorService uploader;
+
+  public FileTransfers(Client client) {
+    this.client = client;
+    uploads = new ConcurrentHashMap<>();
+    downloads = new ConcurrentHashMap<>();
+    uploader = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "file-uploader");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Uploads {@code file} and completes with its SHA-256 content hash once the server holds every
+   * byte. A file the server already stores is acknowledged without sending any chunk, and retrying
+   * after a disconnect resumes from the offset the server already stored.
+   */
+  public CompletableFuture<String> upload(File file) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return doUpload(file.toPath());
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }, uploader);
+  }
+
+  private String doUpload(Path path) throws IOException, InterruptedException {
+    long fileSize = Files.size(path);
+    String fileName = path.getFileName().toString();
+    String transferId = contentHash(path);
+    Upload upload = new Upload();
+    uploads.put(transferId, upload);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      client.sendPacket(Packet.builder().type(PacketType.FILE_UPLOAD)
+          .fileChunk(FileChunk.builder().transferId(transferId).fileName(fileName)
+              .fileSize(fileSize).build())
+          .build());
+      long offset = upload.resumeOffset.get(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      if (offset < 0) {
+        throw new IOException("Server rejected upload of " + fileName);
+      }
+      upload.acked = offset;
+      while (offset < fileSize) {
+        if (!upload.window.tryAcquire(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          throw new IOException("Upload of " + fileName + " timed out");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(FileChunk.CHUNK_SIZE,
+            fileSize - offset));
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, offset + buffer.position()) < 0) {
+            throw new IOException(fileName + " changed during upload");
+          }
+        }
+        client.sendPacket(Packet.builder().type(PacketType.FILE_UPLOAD)
+            .fileChunk(FileChunk.builder().transferId(transferId).fileName(fileName)
+                .fileSize(fileSize).offset(offset).data(buffer.array()).build())
+            .build());
+        offset += buffer.capacity();
+      }
+      if (!upload.window.tryAcquire(FileChunk.WINDOW, ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+          || upload.acked != fileSize) {
+        throw new IOException("Upload of " + fileName + " was not acknowledged");
+      }
+      return transferId;
+    } catch (ExecutionException | TimeoutException e) {
+      throw new IOException("Upload of " + fileName + " was not acknowledged", e);
+    } finally {
+      uploads.remove(transferId);
+    }
+  }
+
+  private static String contentHash(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      ByteBuffer buffer = ByteBuffer.allocate(FileChunk.CHUNK_SIZE);
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void onAck(FileChunk ack) {
+    Upload upload = uploads.get(ack.getTransferId());
+    if (upload == null) {
+      return;
+    }
+    if (!upload.resumeOffset.isDone()) {
+      upload.resumeOffset.complete(ack.getOffset());
+      return;
+    }
+    upload.acked = ack.getOffset();
+    upload.window.release();
+  }
+
+  /**
+   * Starts or resumes a download into {@code directory}; a partial {@code .part} file left by an
+   * earlier attempt is continued from its current length.
+   */
+  public void download(Message message, Path directory) throws IOException {
+    Files.createDirectories(directory);
+    Path target = directory.resolve(message.getFileName());
+    if (Files.exists(target)) {
+      open(target);
+      return;
+    }
+    Path part = directory.resolve(message.getFileName() + ".part");
+    FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    Download download = new Download(channel, part, target);
+    if (downloads.putIfAbsent(message.getFileId(), download) != null) {
+      channel.close();
+      return;
+    }
+    request(message.getFileId(), channel.size());
+  }
+
+  public void onChunk(FileChunk chunk) {
+    Download download = downloads.get(chunk.getTransferId());
+    if (download == null) {
+      return;
+    }
+    try {
+      if (chunk.getData() == null || chunk.getOffset() != download.channel.size()) {
+        if (chunk.getOffset() < 0) {
+          log.error("Download of {} failed", chunk.getTransferId());
+          finish(chunk.getTransferId(), download, false);
+        }
+        return;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(chunk.getData());
+      while (buffer.hasRemaining()) {
+        download.channel.write(buffer, chunk.getOffset() + buffer.position());
+      }
+      long received = chunk.getOffset() + chunk.getData().length;
+      if (received == chunk.getFileSize()) {
+        finish(chunk.getTransferId(), download, true);
+      } else if (received % ((long) FileChunk.CHUNK_SIZE * FileChunk.WINDOW) == 0) {
+        request(chunk.getTransferId(), received);
+      }
+    } catch (IOException e) {
+      log.error(e.getMessage());
+      finish(chunk.getTransferId(), download, false);
+    }
+  }
+
+  private void request(String transferId, long offset) {
+    client.sendPacket(Packet.builder().type(PacketType.FILE_DOWNLOAD)
+        .fileChunk(FileChunk.builder().transferId(transferId).offset(offset).build())
+        .build());
+  }
+
+  private void finish(String transferId, Download download, boolean complete) {
+    downloads.remove(transferId);
+    try {
+      download.channel.close();
+      if (complete) {
+        Files.move(download.part, download.target, StandardCopyOption.REPLACE_EXISTING);
+        open(download.target);
+      }
+    } catch (IOException e) {
+      log.error(e.getMessage());
+    }
+  }
+
+  private static void open(Path file) throws IOException {
+    if (Desktop.isDesktopSupported()) {
+      Desktop.getDesktop().open(file.toFile());
+    }
+  }
+
+  private static final class Upload {
+
+    private final CompletableFuture<Long> resumeOffset = new CompletableFuture<>();
+    private final Semaphore window = new Semaphore(FileChunk.WINDOW);
+    private volatile long acked;
+  }
+
+  private record Download(FileChannel channel, Path part, Path target) {
+
+  }
+}
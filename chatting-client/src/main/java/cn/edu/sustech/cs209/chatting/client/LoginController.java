@@ -1,5 +1,6 @@
 package cn.edu.sustech.cs209.chatting.client;
 
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
 import javafx.scene.control.PasswordField;
@@ -34,16 +35,17 @@ public class LoginController {
       alert.setContentText("Username or Password is Empty");
       alert.showAndWait();
     } else {
-      try {
-        sceneManager.getClient().login(username, password);
-        sceneManager.showMainScene();
-      } catch (RuntimeException e) {
-        Alert alert = new Alert(Alert.AlertType.ERROR);
-        alert.setHeaderText("Login Failed");
-        alert.setContentText(e.getMessage());
-        alert.showAndWait();
-
-      }
+      sceneManager.getClient().login(username, password).whenComplete((v, e) ->
+          Platform.runLater(() -> {
+            if (e == null) {
+              sceneManager.showMainScene();
+              return;
+            }
+            Alert alert = new Alert(Alert.AlertType.ERROR);
+            alert.setHeaderText("Login Failed");
+            alert.setContentText(Client.reason(e));
+            alert.showAndWait();
+          }));
     }
     passwordTextField.setText(null);
   }
@@ -1,5 +1,7 @@
 package cn.edu.sustech.cs209.chatting.client;
 
+import cn.edu.sustech.cs209.chatting.common.Metrics;
+import cn.edu.sustech.cs209.chatting.common.MetricsEndpoint;
 import javafx.application.Application;
 import javafx.stage.Stage;
 import lombok.SneakyThrows;
@@ -14,6 +16,11 @@ public class Main extends Application {
   @SneakyThrows
   public void start(Stage stage) {
     stage.setTitle("Chatting Client");
+    Metrics.registerMBean("client");
+    Integer metricsPort = Integer.getInteger("chatting.metrics-port");
+    if (metricsPort != null) {
+      MetricsEndpoint.start(metricsPort);
+    }
     Client client = new Client("localhost", 2345);
     SceneManager sceneManager = new SceneManager(stage, client);
     sceneManager.showLoginScene();
@@ -0,0 +1,93 @@
+package cn.edu.sustech.cs209.chatting.client;
+
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.MessageType;
+import java.io.IOException;
+import javafx.css.PseudoClass;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.layout.HBox;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A message in the message pane. The nodes are built once per cell and reused for every message
+ * the cell shows; an update only changes texts and the {@code own}, {@code system} and
+ * {@code file} pseudo-classes, and the look comes from {@code chat.css}.
+ */
+@Slf4j
+class MessageCell extends ListCell<Message> {
+
+  private static final PseudoClass OWN = PseudoClass.getPseudoClass("own");
+  private static final PseudoClass SYSTEM = PseudoClass.getPseudoClass("system");
+  private static final PseudoClass FILE = PseudoClass.getPseudoClass("file");
+
+  private final Client client;
+  private final HBox pane;
+  private final Label sender;
+  private final Label body;
+  private Layout layout;
+
+  MessageCell(Client client, ListView<Message> view) {
+    this.client = client;
+    sender = new Label();
+    sender.getStyleClass().add("message-sender");
+    body = new Label();
+    body.getStyleClass().add("message-body");
+    body.setWrapText(true);
+    body.maxWidthProperty().bind(view.widthProperty().multiply(0.7));
+    body.setOnMouseClicked(e -> download());
+    pane = new HBox();
+    pane.getStyleClass().add("message-pane");
+    getStyleClass().add("message-cell");
+    setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+  }
+
+  @Override
+  protected void updateItem(Message message, boolean empty) {
+    super.updateItem(message, empty);
+    if (empty || message == null) {
+      setGraphic(null);
+      return;
+    }
+    boolean system = message.getSentBy() == null;
+    boolean own = !system && message.getSentBy().equals(client.getUsername());
+    boolean file = message.getType() == MessageType.FILE;
+    pseudoClassStateChanged(SYSTEM, system);
+    pseudoClassStateChanged(OWN, own);
+    pseudoClassStateChanged(FILE, file);
+    sender.setText(message.getSentBy());
+    body.setText(file ? message.getFileName() : message.getData());
+    arrange(system ? Layout.SYSTEM : own ? Layout.OWN : Layout.OTHER);
+    setGraphic(pane);
+  }
+
+  private void arrange(Layout next) {
+    if (layout == next) {
+      return;
+    }
+    layout = next;
+    switch (next) {
+      case SYSTEM -> pane.getChildren().setAll(body);
+      case OWN -> pane.getChildren().setAll(body, sender);
+      case OTHER -> pane.getChildren().setAll(sender, body);
+    }
+  }
+
+  private void download() {
+    Message message = getItem();
+    if (message == null || message.getType() != MessageType.FILE) {
+      return;
+    }
+    try {
+      client.downloadFile(message);
+    } catch (IOException e) {
+      log.error(e.getMessage());
+    }
+  }
+
+  private enum Layout {
+    SYSTEM, OWN, OTHER
+  }
+}
@@ -0,0 +1,296 @@
+package cn.edu.sustech.cs209.chatting.client;
+
+import cn.edu.sustech.cs209.chatting.common.Mappers;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Local message history, kept as one append-only segment per chat room plus an index of fixed-size
+ * (timestamp, offset) entries. Opening the store reads nothing; a room's segment is opened the
+ * first time it is used, and reading a page costs one index read and one segment read regardless
+ * of how much history the room has. Only the {@link #MAX_OPEN_SEGMENTS} most recently used segments
+ * keep their files open; the others are closed and reopened when next used.
+ */
+@Slf4j
+public class MessageStore {
+
+  private static final int INDEX_ENTRY_BYTES = 2 * Long.BYTES;
+  private static final int MAX_OPEN_SEGMENTS = 32;
+
+  private final Path directory;
+  private final ObjectWriter writer;
+  private final ObjectReader reader;
+  private final Map<String, Segment> segments;
+  /**
+   * The segments with open files, least recently used first. Guarded by itself.
+   */
+  private final Map<Segment, Boolean> open;
+
+  public MessageStore(Path directory) {
+    this.directory = directory;
+    writer = Mappers.JSON.writer();
+    reader = Mappers.JSON.readerFor(Message.class);
+    segments = new ConcurrentHashMap<>();
+    open = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Segment, Boolean> eldest) {
+        if (size() <= MAX_OPEN_SEGMENTS) {
+          return false;
+        }
+        eldest.getKey().close();
+        return true;
+      }
+    };
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Splits a single-file message log written by older clients into per-room segments, then moves
+   * it aside so this only happens once.
+   */
+  public void importLegacyLog(Path legacyLog) {
+    if (!Files.exists(legacyLog)) {
+      return;
+    }
+    try (BufferedReader lines = Files.newBufferedReader(legacyLog)) {
+      String line;
+      while ((line = lines.readLine()) != null) {
+        if (!line.isBlank()) {
+          append(reader.readValue(line));
+        }
+      }
+      Files.move(legacyLog, legacyLog.resolveSibling(legacyLog.getFileName() + ".migrated"),
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      log.error(e.getMessage());
+    }
+  }
+
+  public void append(Message message) {
+    Segment segment = segment(message.getChatRoomId());
+    try {
+      segment.append(message);
+    } catch (IOException e) {
+      log.error(e.getMessage());
+    } finally {
+      used(segment);
+    }
+  }
+
+  /**
+   * Returns the newest {@code limit} messages of a room.
+   */
+  public Page recent(String chatRoomId, int limit) {
+    return before(chatRoomId, Long.MAX_VALUE, limit);
+  }
+
+  /**
+   * Returns up to {@code limit} messages stored immediately before record number {@code from}.
+   */
+  public Page before(String chatRoomId, long from, int limit) {
+    Segment segment = segment(chatRoomId);
+    try {
+      return segment.read(from, limit);
+    } catch (IOException e) {
+      log.error(e.getMessage());
+      return new Page(List.of(), 0);
+    } finally {
+      used(segment);
+    }
+  }
+
+  public void close() {
+    synchronized (open) {
+      open.clear();
+    }
+    segments.values().forEach(Segment::close);
+    segments.clear();
+  }
+
+  /**
+   * Marks a segment as the most recently used, closing the least recently used one if that leaves
+   * too many open. Called without the segment's lock held, since eviction takes the evicted one's.
+   */
+  private void used(Segment segment) {
+    synchronized (open) {
+      open.put(segment, Boolean.TRUE);
+    }
+  }
+
+  private Segment segment(String chatRoomId) {
+    Segment segment = segments.get(chatRoomId);
+    if (segment == null) {
+      String name = chatRoomId.replaceAll("[^A-Za-z0-9._-]", "_");
+      segment = segments.computeIfAbsent(chatRoomId, id -> new Segment(
+          directory.resolve(name + ".seg"), directory.resolve(name + ".idx")));
+    }
+    return segment;
+  }
+
+  /**
+   * A page of messages in chronological order. {@code from} is the record number of the first
+   * message and is what {@link #before} takes to fetch the page preceding this one.
+   */
+  public record Page(List<Message> messages, long from) {
+  }
+
+  private final class Segment {
+
+    private final Path dataPath;
+    private final Path indexPath;
+    private FileChannel data;
+    private FileChannel index;
+    private long count;
+
+    Segment(Path dataPath, Path indexPath) {
+      this.dataPath = dataPath;
+      this.indexPath = indexPath;
+    }
+
+    synchronized void open() throws IOException {
+      if (data != null) {
+        return;
+      }
+      data = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      index = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      count = index.size() / INDEX_ENTRY_BYTES;
+      recover();
+    }
+
+    /**
+     * Drops index entries pointing past the segment and indexes records appended after the last
+     * index entry, which is what a crash between the two writes leaves behind.
+     */
+    private void recover() throws IOException {
+      while (count > 0 && entry(count - 1)[1] >= data.size()) {
+        count--;
+      }
+      long position = count == 0 ? 0 : entry(count - 1)[1];
+      if (count > 0) {
+        count--;
+      }
+      index.truncate(count * INDEX_ENTRY_BYTES);
+      byte[] tail = readData(position, data.size() - position);
+      int start = 0;
+      for (int i = 0; i < tail.length; i++) {
+        if (tail[i] != '\n') {
+          continue;
+        }
+        Message message;
+        try {
+          message = reader.readValue(tail, start, i - start);
+        } catch (IOException e) {
+          break;
+        }
+        writeEntry(message, position + start);
+        start = i + 1;
+      }
+      if (position + start < data.size()) {
+        log.warn("Truncating torn record at {} of {}", position + start, dataPath);
+        data.truncate(position + start);
+      }
+    }
+
+    synchronized void append(Message message) throws IOException {
+      open();
+      long position = data.size();
+      ByteBuffer record = ByteBuffer.wrap((writer.writeValueAsString(message) + '\n').getBytes());
+      while (record.hasRemaining()) {
+        position += data.write(record, position);
+      }
+      writeEntry(message, position - record.capacity());
+    }
+
+    synchronized Page read(long from, int limit) throws IOException {
+      open();
+      long end = Math.min(from, count);
+      long start = Math.max(0, end - limit);
+      List<Message> messages = new ArrayList<>((int) (end - start));
+      if (start == end) {
+        return new Page(messages, start);
+      }
+      long first = entry(start)[1];
+      long last = end == count ? data.size() : entry(end)[1];
+      byte[] bytes = readData(first, last - first);
+      int lineStart = 0;
+      for (int i = 0; i < bytes.length; i++) {
+        if (bytes[i] == '\n') {
+          messages.add(reader.readValue(bytes, lineStart, i - lineStart));
+          lineStart = i + 1;
+        }
+      }
+      return new Page(messages, start);
+    }
+
+    /**
+     * Closes the files; the next append or read opens them again.
+     */
+    synchronized void close() {
+      try {
+        if (data != null) {
+          data.close();
+          index.close();
+        }
+      } catch (IOException e) {
+        log.error(e.getMessage());
+      } finally {
+        data = null;
+        index = null;
+      }
+    }
+
+    private void writeEntry(Message message, long position) throws IOException {
+      ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+      entry.putLong(message.getTimestamp() == null ? 0 : message.getTimestamp()).putLong(position);
+      entry.flip();
+      long at = count * INDEX_ENTRY_BYTES;
+      while (entry.hasRemaining()) {
+        at += index.write(entry, at);
+      }
+      count++;
+    }
+
+    private long[] entry(long record) throws IOException {
+      ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+      readFully(index, entry, record * INDEX_ENTRY_BYTES);
+      entry.flip();
+      return new long[]{entry.getLong(), entry.getLong()};
+    }
+
+    private byte[] readData(long position, long length) throws IOException {
+      ByteBuffer bytes = ByteBuffer.allocate((int) length);
+      readFully(data, bytes, position);
+      return bytes.array();
+    }
+
+    private void readFully(FileChannel channel, ByteBuffer buffer, long position)
+        throws IOException {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new IOException("Unexpected end of " + dataPath);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package cn.edu.sustech.cs209.chatting.client;
+
+import cn.edu.sustech.cs209.chatting.common.Message;
+import java.util.ArrayList;
+import java.util.List;
+import javafx.collections.ObservableList;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
+
+/**
+ * The messages of the open room in the message pane. The list view only ever holds a window of at
+ * most {@link #CAPACITY} consecutive messages of the room: arriving messages are appended one by
+ * one and push the oldest out, and scrolling past the top brings in a page of older ones and pushes
+ * the newest out. While the window does not end at the room's newest message, arriving messages
+ * are left out until scrolling down reaches them.
+ *
+ * <p>Rooms are the synchronized lists of {@link Client#getMessageList()}, which the reader thread
+ * appends to; every method copies what it needs while holding the room's lock. All methods must be
+ * called on the JavaFX application thread.
+ */
+class MessageWindow {
+
+  static final int CAPACITY = 500;
+  static final int PAGE = 50;
+
+  private final ListView<Message> view;
+  private boolean atTail;
+
+  MessageWindow(ListView<Message> view) {
+    this.view = view;
+    atTail = true;
+  }
+
+  boolean isAtTail() {
+    return atTail;
+  }
+
+  void clear() {
+    view.getItems().clear();
+    atTail = true;
+  }
+
+  /**
+   * Shows the newest messages of {@code room}, scrolled to the bottom.
+   */
+  void show(List<Message> room) {
+    List<Message> tail;
+    synchronized (room) {
+      tail = new ArrayList<>(room.subList(Math.max(0, room.size() - CAPACITY), room.size()));
+    }
+    view.getItems().setAll(tail);
+    atTail = true;
+    view.scrollTo(tail.size() - 1);
+  }
+
+  /**
+   * Appends the messages of {@code room} that came after the last one shown, following them if the
+   * pane was scrolled to the bottom. Does nothing while the window does not end at the newest.
+   */
+  void refresh(List<Message> room) {
+    ObservableList<Message> items = view.getItems();
+    if (!atTail) {
+      return;
+    }
+    if (items.isEmpty()) {
+      show(room);
+      return;
+    }
+    List<Message> newer;
+    synchronized (room) {
+      int last = room.lastIndexOf(items.get(items.size() - 1));
+      if (last < 0) {
+        show(room);
+        return;
+      }
+      newer = new ArrayList<>(room.subList(last + 1, room.size()));
+    }
+    if (newer.isEmpty()) {
+      return;
+    }
+    boolean follow = isScrolledToBottom();
+    items.addAll(newer);
+    if (items.size() > CAPACITY) {
+      items.remove(0, items.size() - CAPACITY);
+    }
+    if (follow) {
+      view.scrollTo(items.size() - 1);
+    }
+  }
+
+  /**
+   * Puts a page of the messages of {@code room} before the first one shown above it, keeping the
+   * first of them in view. Returns {@code false} if the window already starts at the oldest
+   * message the room has loaded.
+   */
+  boolean showOlder(List<Message> room) {
+    ObservableList<Message> items = view.getItems();
+    List<Message> older;
+    synchronized (room) {
+      int first = items.isEmpty() ? room.size() : room.indexOf(items.get(0));
+      if (first <= 0) {
+        return false;
+      }
+      older = new ArrayList<>(room.subList(Math.max(0, first - PAGE), first));
+    }
+    items.addAll(0, older);
+    if (items.size() > CAPACITY) {
+      items.remove(CAPACITY, items.size());
+      atTail = false;
+    }
+    view.scrollTo(older.size());
+    return true;
+  }
+
+  /**
+   * Puts a page of the messages of {@code room} after the last one shown below it, once the
+   * window no longer ends at the newest message.
+   */
+  void showNewer(List<Message> room) {
+    ObservableList<Message> items = view.getItems();
+    if (atTail) {
+      return;
+    }
+    List<Message> newer;
+    synchronized (room) {
+      int last = items.isEmpty() ? -1 : room.lastIndexOf(items.get(items.size() - 1));
+      if (last < 0) {
+        show(room);
+        return;
+      }
+      int to = Math.min(room.size(), last + 1 + PAGE);
+      newer = new ArrayList<>(room.subList(last + 1, to));
+      atTail = to == room.size();
+    }
+    items.addAll(newer);
+    if (items.size() > CAPACITY) {
+      items.remove(0, items.size() - CAPACITY);
+    }
+  }
+
+  boolean isScrolledToTop() {
+    ScrollBar bar = scrollBar();
+    return bar == null || bar.getValue() <= bar.getMin();
+  }
+
+  boolean isScrolledToBottom() {
+    ScrollBar bar = scrollBar();
+    return bar == null || !bar.isVisible() || bar.getValue() >= bar.getMax();
+  }
+
+  private ScrollBar scrollBar() {
+    return (ScrollBar) view.lookup(".scroll-bar:vertical");
+  }
+}
@@ -1,5 +1,6 @@
 package cn.edu.sustech.cs209.chatting.client;
 
+import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
@@ -61,19 +62,21 @@ public class RegisterController {
       passwordTextField.setText(null);
       confirmPasswordTextField.setText(null);
     } else {
-      try {
-        sceneManager.getClient().register(username, password);
-        sceneManager.showLoginScene();
-      } catch (RuntimeException e) {
-        Alert alert = new Alert(Alert.AlertType.ERROR);
-        alert.setTitle("Error");
-        alert.setHeaderText("Register Failed");
-        alert.setContentText(e.getMessage());
-        alert.showAndWait();
-        usernameTextField.setText(null);
-        passwordTextField.setText(null);
-        confirmPasswordTextField.setText(null);
-      }
+      sceneManager.getClient().register(username, password).whenComplete((v, e) ->
+          Platform.runLater(() -> {
+            if (e == null) {
+              sceneManager.showLoginScene();
+              return;
+            }
+            Alert alert = new Alert(Alert.AlertType.ERROR);
+            alert.setTitle("Error");
+            alert.setHeaderText("Register Failed");
+            alert.setContentText(Client.reason(e));
+            alert.showAndWait();
+            usernameTextField.setText(null);
+            passwordTextField.setText(null);
+            confirmPasswordTextField.setText(null);
+          }));
     }
   }
 
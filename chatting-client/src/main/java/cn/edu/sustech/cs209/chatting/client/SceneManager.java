@@ -16,6 +16,7 @@ public class SceneManager {
   private Scene loginScene;
   private Scene registerScene;
   private Scene mainScene;
+  private Controller mainController;
   private final Client client;
 
   public SceneManager(Stage stage, Client client) {
@@ -32,10 +33,10 @@ public class SceneManager {
       loginScene = new Scene(loginLoader.load());
       registerScene = new Scene(registerLoader.load());
       mainScene = new Scene(mainLoader.load());
-      client.setController(mainLoader.getController());
+      mainController = mainLoader.getController();
+      mainController.setSceneManager(this);
       ((LoginController) loginLoader.getController()).setSceneManager(this);
       ((RegisterController) registerLoader.getController()).setSceneManager(this);
-      ((Controller) mainLoader.getController()).setSceneManager(this);
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -53,8 +54,7 @@ public class SceneManager {
 
   public void showMainScene() {
     stage.setScene(mainScene);
-    client.getController().init();
-    client.initializeLogger();
+    mainController.init();
     stage.show();
   }
 }
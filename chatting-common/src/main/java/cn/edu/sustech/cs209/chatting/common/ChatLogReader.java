@@ -1,36 +1,437 @@
 package cn.edu.sustech.cs209.chatting.common;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Replays a log written by {@link ChatLogger}. Records are parsed lazily from a {@link Spliterator}
+ * over the log's segments. Compressed segments split on block boundaries and plain ones on line
+ * boundaries, so a parallel stream parses large logs on the common ForkJoin pool. Malformed records
+ * are reported and skipped, and so are segments and compressed blocks that cannot be read, so one
+ * damaged part of a log does not lose the records in the rest of it.
+ */
+@Slf4j
 public class ChatLogReader<T> {
 
-  private final ObjectMapper objectMapper;
+  private static final int BLOCK_SIZE = 64 * 1024;
+  private static final long MIN_SPLIT_BYTES = 1024 * 1024;
+
+  private final ObjectReader objectReader;
   private final Class<T> type;
   private final Path path;
+  private final AtomicLong skippedRecords;
 
   public ChatLogReader(Class<T> type, Path path) {
-    objectMapper = new ObjectMapper();
+    objectReader = Mappers.JSON.readerFor(type);
     this.type = type;
     this.path = path;
+    skippedRecords = new AtomicLong();
   }
 
+  /**
+   * Returns every record in log order, parsing large logs in parallel.
+   */
   public List<T> readChatLog() {
-    List<T> messages = new ArrayList<>();
-    try (BufferedReader reader = new BufferedReader(new FileReader(path.toFile()))) {
-      String line;
-      while ((line = reader.readLine()) != null) {
-        T message = objectMapper.readValue(line, type);
-        messages.add(message);
+    return readChatLog(0);
+  }
+
+  /**
+   * Returns the records in segments after {@code segment} and in the active segment, in log order,
+   * or none if the segments cannot even be listed.
+   */
+  public List<T> readChatLog(long segment) {
+    try (Stream<T> records = stream(segment).parallel()) {
+      return records.collect(Collectors.toCollection(ArrayList::new));
+    } catch (UncheckedIOException e) {
+      log.error("Failed to read {}: {}", path, e.getMessage());
+      return new ArrayList<>();
+    }
+  }
+
+  /**
+   * Returns a sequential stream of the records in log order, across the sealed segments and then
+   * the active one; call {@code parallel()} on it to parse in parallel. The stream holds the
+   * segments open and must be closed.
+   */
+  public Stream<T> stream() {
+    return stream(0);
+  }
+
+  /**
+   * Like {@link #stream()}, but skips the sealed segments up to number {@code after}. Throws
+   * {@link UncheckedIOException} if the segments cannot be listed; a segment that cannot be
+   * opened is skipped.
+   */
+  public Stream<T> stream(long after) {
+    List<Closeable> resources = new ArrayList<>();
+    List<Spliterator<T>> parts = new ArrayList<>();
+    List<Path> sealed;
+    try {
+      sealed = LogSegments.sealed(path);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    for (Path segment : sealed) {
+      if (LogSegments.sequenceOf(segment) <= after) {
+        continue;
+      }
+      try {
+        if (segment.getFileName().toString().endsWith(LogSegments.COMPRESSED)) {
+          addCompressed(segment, resources, parts);
+        } else if (!addPlain(segment, resources, parts)) {
+          // Compressed since it was listed; the compressor moves the copy in place first.
+          addCompressed(LogSegments.compressed(segment), resources, parts);
+        }
+      } catch (IOException e) {
+        log.error("Skipping unreadable log segment {}: {}", segment, e.getMessage());
       }
+    }
+    try {
+      addPlain(path, resources, parts);
     } catch (IOException e) {
-      System.err.println(e.getMessage());
+      log.error("Skipping unreadable log segment {}: {}", path, e.getMessage());
+    }
+    return StreamSupport.stream(new SegmentsSpliterator(parts, 0, parts.size()), false)
+        .onClose(() -> closeAll(resources));
+  }
+
+  /**
+   * Adds a plain segment, or returns {@code false} when it does not exist.
+   */
+  private boolean addPlain(Path segment, List<Closeable> resources, List<Spliterator<T>> parts)
+      throws IOException {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(segment, StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    resources.add(channel);
+    parts.add(new RangeSpliterator(segment, channel, 0, channel.size()));
+    return true;
+  }
+
+  private void addCompressed(Path segment, List<Closeable> resources,
+      List<Spliterator<T>> parts) throws IOException {
+    CompressedSegment compressed = CompressedSegment.open(segment);
+    resources.add(compressed);
+    parts.add(new BlockSpliterator(segment, compressed, 0, compressed.blockCount()));
+  }
+
+  private static void closeAll(List<Closeable> resources) {
+    for (Closeable resource : resources) {
+      try {
+        resource.close();
+      } catch (IOException e) {
+        log.warn("Failed to close log segment: {}", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Number of malformed records skipped so far by this reader.
+   */
+  public long getSkippedRecords() {
+    return skippedRecords.get();
+  }
+
+  private void skip(Path segment, String location, Exception e) {
+    skippedRecords.incrementAndGet();
+    log.warn("Skipping malformed {} record at {} of {}: {}", type.getSimpleName(), location,
+        segment, e.getMessage());
+  }
+
+  /**
+   * Concatenation of the per-segment spliterators. Splits between segments first, then within the
+   * last remaining one.
+   */
+  private final class SegmentsSpliterator implements Spliterator<T> {
+
+    private final List<Spliterator<T>> parts;
+    private int from;
+    private final int to;
+
+    SegmentsSpliterator(List<Spliterator<T>> parts, int from, int to) {
+      this.parts = parts;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      while (from < to) {
+        if (parts.get(from).tryAdvance(action)) {
+          return true;
+        }
+        from++;
+      }
+      return false;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+      if (to - from >= 2) {
+        int middle = (from + to) >>> 1;
+        Spliterator<T> prefix = new SegmentsSpliterator(parts, from, middle);
+        from = middle;
+        return prefix;
+      }
+      return from < to ? parts.get(from).trySplit() : null;
+    }
+
+    @Override
+    public long estimateSize() {
+      long size = 0;
+      for (int i = from; i < to; i++) {
+        size += parts.get(i).estimateSize();
+      }
+      return size;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | NONNULL | IMMUTABLE;
+    }
+  }
+
+  /**
+   * Records of blocks {@code [from, to)} of a compressed segment, one inflated block at a time.
+   */
+  private final class BlockSpliterator implements Spliterator<T> {
+
+    private final Path segment;
+    private final CompressedSegment compressed;
+    private int from;
+    private final int to;
+    private byte[] block;
+    private int cursor;
+
+    BlockSpliterator(Path segment, CompressedSegment compressed, int from, int to) {
+      this.segment = segment;
+      this.compressed = compressed;
+      this.from = from;
+      this.to = to;
+    }
+
+    /**
+     * Parses the next record, skipping a block that cannot be inflated: blocks are cut on record
+     * boundaries, so the next block starts with a whole record.
+     */
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      while (true) {
+        if (block == null || cursor >= block.length) {
+          if (from >= to) {
+            return false;
+          }
+          try {
+            block = compressed.block(from++);
+          } catch (IOException e) {
+            log.error("Skipping unreadable block {} of {}: {}", from - 1, segment,
+                e.getMessage());
+            block = null;
+            continue;
+          }
+          cursor = 0;
+        }
+        int start = cursor;
+        while (cursor < block.length && block[cursor] != '\n') {
+          cursor++;
+        }
+        int length = cursor - start;
+        cursor++;
+        if (length > 0 && block[start + length - 1] == '\r') {
+          length--;
+        }
+        if (length == 0) {
+          continue;
+        }
+        try {
+          action.accept(objectReader.readValue(block, start, length));
+          return true;
+        } catch (IOException e) {
+          skip(segment, "block " + (from - 1) + " byte " + start, e);
+        }
+      }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+      if (block != null || to - from < 2) {
+        return null;
+      }
+      int middle = (from + to) >>> 1;
+      Spliterator<T> prefix = new BlockSpliterator(segment, compressed, from, middle);
+      from = middle;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      long size = block == null ? 0 : block.length - cursor;
+      for (int i = from; i < to; i++) {
+        size += compressed.blockLength(i);
+      }
+      return size;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | NONNULL | IMMUTABLE;
+    }
+  }
+
+  /**
+   * Records starting in {@code [position, end)}. Both bounds always sit at the start of a line, so
+   * a record belongs to exactly one range even when it extends past {@code end}.
+   */
+  private final class RangeSpliterator implements Spliterator<T> {
+
+    private final Path segment;
+    private final FileChannel channel;
+    private final byte[] block;
+    private long position;
+    private final long end;
+    private int cursor;
+    private int limit;
+    private byte[] line;
+
+    RangeSpliterator(Path segment, FileChannel channel, long position, long end) {
+      this.segment = segment;
+      this.channel = channel;
+      this.position = position;
+      this.end = end;
+      block = new byte[BLOCK_SIZE];
+      line = new byte[256];
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      try {
+        while (position < end) {
+          long offset = position;
+          int length = readLine();
+          if (length == 0) {
+            continue;
+          }
+          T record;
+          try {
+            record = objectReader.readValue(line, 0, length);
+          } catch (IOException e) {
+            skip(segment, "byte " + offset, e);
+            continue;
+          }
+          action.accept(record);
+          return true;
+        }
+        return false;
+      } catch (IOException e) {
+        log.error("Skipping the rest of {} from byte {}: {}", segment, position, e.getMessage());
+        position = end;
+        return false;
+      }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+      if (end - position < 2 * MIN_SPLIT_BYTES) {
+        return null;
+      }
+      try {
+        long split = lineStartAfter(position + (end - position) / 2);
+        if (split >= end) {
+          return null;
+        }
+        RangeSpliterator prefix = new RangeSpliterator(segment, channel, position, split);
+        position = split;
+        cursor = 0;
+        limit = 0;
+        return prefix;
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public long estimateSize() {
+      return end - position;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+    /**
+     * Copies the line at {@link #position} without its terminator into {@link #line}, advances past
+     * it and returns its length.
+     */
+    private int readLine() throws IOException {
+      int length = 0;
+      while (true) {
+        if (cursor == limit && !fill()) {
+          position = Math.max(position, end);
+          return length;
+        }
+        int newline = cursor;
+        while (newline < limit && block[newline] != '\n') {
+          newline++;
+        }
+        int count = newline - cursor;
+        if (length + count > line.length) {
+          line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+        }
+        System.arraycopy(block, cursor, line, length, count);
+        length += count;
+        position += count;
+        cursor = newline;
+        if (newline < limit) {
+          cursor++;
+          position++;
+          return length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+        }
+      }
+    }
+
+    private boolean fill() throws IOException {
+      int read = channel.read(ByteBuffer.wrap(block), position);
+      cursor = 0;
+      limit = Math.max(read, 0);
+      return read > 0;
+    }
+
+    private long lineStartAfter(long offset) throws IOException {
+      ByteBuffer probe = ByteBuffer.allocate(4096);
+      while (true) {
+        probe.clear();
+        int read = channel.read(probe, offset);
+        if (read <= 0) {
+          return Long.MAX_VALUE;
+        }
+        for (int i = 0; i < read; i++) {
+          if (probe.get(i) == '\n') {
+            return offset + i + 1;
+          }
+        }
+        offset += read;
+      }
     }
-    return messages;
   }
 }
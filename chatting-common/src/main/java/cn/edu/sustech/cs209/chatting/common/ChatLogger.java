@@ -1,39 +1,330 @@
 package cn.edu.sustech.cs209.chatting.common;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class ChatLogger<T> {
+/**
+ * Append-only log of JSON records. Callers only serialize their record and enqueue it; a writer
+ * thread keeps the file open and group-commits whatever accumulated while the previous batch was
+ * being written, in a single gathering write. The returned future completes once the record is
+ * durable according to the logger's {@link SyncMode}.
+ *
+ * <p>Only the active segment, at {@code path}, is ever written. When it outgrows the configured
+ * size or age it is sealed under a numbered name and compressed in the background into a
+ * {@link CompressedSegment}; {@link ChatLogReader} reads the sealed segments and then the active
+ * one as a single log.
+ *
+ * <p>The time from {@link #log} until a record is written, and the time of every sync, are
+ * recorded in {@link Metrics}, labelled with the log's file name.
+ */
+public class ChatLogger<T> implements AutoCloseable {
 
-  private final ObjectMapper objectMapper;
+  private static final ExecutorService COMPRESSOR = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "chat-log-compressor");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final ObjectWriter objectWriter;
   private final Path path;
+  private final SyncMode syncMode;
+  private final long syncIntervalNanos;
+  private final long segmentBytes;
+  private final long segmentAgeNanos;
+  private final Lock lock;
+  private final Condition notEmpty;
+  private final Thread writer;
+  private final Histogram appendMicros;
+  private final Histogram syncMicros;
+  private List<Record> queue;
+  private List<CompletableFuture<Long>> sealRequests;
+  private FileChannel channel;
+  private long activeSince;
+  private long nextSegment;
+  private boolean closed;
 
   public ChatLogger(Path path) {
+    this(path, LogOptions.builder().build());
+  }
+
+  public ChatLogger(Path path, LogOptions options) {
     this.path = path;
-    objectMapper = new ObjectMapper();
+    syncMode = options.getSyncMode();
+    syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(options.getSyncIntervalMillis());
+    segmentBytes = options.getSegmentBytes();
+    segmentAgeNanos = TimeUnit.MILLISECONDS.toNanos(options.getSegmentAgeMillis());
+    objectWriter = Mappers.JSON.writer();
+    lock = new ReentrantLock();
+    notEmpty = lock.newCondition();
+    queue = new ArrayList<>();
+    sealRequests = new ArrayList<>();
+    nextSegment = 1;
+    String name = path.getFileName().toString();
+    appendMicros = Metrics.histogram("chatting_log_append_micros", Histogram.LATENCY_MICROS,
+        "log", name);
+    syncMicros = Metrics.histogram("chatting_log_sync_micros", Histogram.LATENCY_MICROS,
+        "log", name);
     try {
       Files.createDirectories(path.getParent());
-      if (!Files.exists(path)) {
-        Files.createFile(path);
+      for (Path sealed : LogSegments.sealed(path)) {
+        nextSegment = LogSegments.sequenceOf(sealed) + 1;
+        if (sealed.getFileName().toString().endsWith(LogSegments.PLAIN)) {
+          COMPRESSOR.execute(() -> compress(sealed));
+        }
       }
+      openActive();
     } catch (IOException e) {
       System.err.println(e.getMessage());
     }
+    writer = new Thread(this::writeLoop, "chat-logger-" + path.getFileName());
+    writer.setDaemon(true);
+    writer.start();
   }
 
-  public synchronized void log(T message) {
+  public CompletableFuture<Void> log(T message) {
+    byte[] record;
     try {
       if (message instanceof ChatRoom) {
         ((ChatRoom) message).resetUnreadMessageCount();
       }
-      String messageJson = objectMapper.writeValueAsString(message);
-      Files.write(path, (messageJson + System.lineSeparator()).getBytes(),
-          StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      String messageJson = objectWriter.writeValueAsString(message);
+      record = (messageJson + System.lineSeparator()).getBytes();
     } catch (IOException e) {
       System.err.println(e.getMessage());
+      return CompletableFuture.failedFuture(e);
+    }
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    lock.lock();
+    try {
+      if (closed) {
+        return CompletableFuture.failedFuture(new IllegalStateException(path + " is closed"));
+      }
+      queue.add(new Record(ByteBuffer.wrap(record), future, System.nanoTime()));
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+    return future;
+  }
+
+  /**
+   * Seals the active segment once every record logged so far has been written and completes with
+   * the number of the last sealed segment; every record logged before this call is in a segment up
+   * to that number. Completes without sealing when the active segment is empty.
+   */
+  public CompletableFuture<Long> seal() {
+    CompletableFuture<Long> future = new CompletableFuture<>();
+    lock.lock();
+    try {
+      if (closed) {
+        return CompletableFuture.failedFuture(new IllegalStateException(path + " is closed"));
+      }
+      sealRequests.add(future);
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+    return future;
+  }
+
+  /**
+   * Deletes the sealed segments up to {@code segment}, once the records in them are no longer
+   * needed because, say, they are covered by a snapshot.
+   */
+  public void deleteSegmentsThrough(long segment) {
+    COMPRESSOR.execute(() -> {
+      try {
+        for (Path sealed : LogSegments.sealed(path)) {
+          long sequence = LogSegments.sequenceOf(sealed);
+          if (sequence <= segment) {
+            Path plain = LogSegments.seal(path, sequence);
+            Files.deleteIfExists(plain);
+            Files.deleteIfExists(LogSegments.compressed(plain));
+          }
+        }
+      } catch (IOException e) {
+        System.err.println(e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Deletes a log that is no longer written, together with all of its sealed segments.
+   */
+  public static void delete(Path path) throws IOException {
+    for (Path sealed : LogSegments.sealed(path)) {
+      Path plain = LogSegments.seal(path, LogSegments.sequenceOf(sealed));
+      Files.deleteIfExists(plain);
+      Files.deleteIfExists(LogSegments.compressed(plain));
+    }
+    Files.deleteIfExists(path);
+  }
+
+  /**
+   * Writes and syncs every record logged so far, then closes the file.
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeLoop() {
+    List<CompletableFuture<Void>> unsynced = new ArrayList<>();
+    long nextSync = System.nanoTime() + syncIntervalNanos;
+    while (true) {
+      List<Record> batch;
+      List<CompletableFuture<Long>> seals;
+      boolean closing;
+      lock.lock();
+      try {
+        while (queue.isEmpty() && sealRequests.isEmpty() && !closed) {
+          if (unsynced.isEmpty()) {
+            notEmpty.await();
+          } else if (notEmpty.awaitNanos(nextSync - System.nanoTime()) <= 0) {
+            break;
+          }
+        }
+        batch = queue;
+        queue = new ArrayList<>();
+        seals = sealRequests;
+        sealRequests = new ArrayList<>();
+        closing = closed;
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        lock.unlock();
+      }
+      List<CompletableFuture<Void>> futures = new ArrayList<>(batch.size());
+      try {
+        write(batch, futures);
+        if (!seals.isEmpty()) {
+          unsynced.addAll(futures);
+          futures = unsynced;
+          unsynced = new ArrayList<>();
+          long sealed = channel.size() > 0 ? sealActive() : nextSegment - 1;
+          futures.forEach(future -> future.complete(null));
+          seals.forEach(future -> future.complete(sealed));
+          futures = new ArrayList<>();
+        } else if (syncMode == SyncMode.INTERVAL) {
+          unsynced.addAll(futures);
+          futures = unsynced;
+          unsynced = new ArrayList<>();
+          if (!closing && System.nanoTime() - nextSync < 0) {
+            unsynced = futures;
+            continue;
+          }
+          nextSync = System.nanoTime() + syncIntervalNanos;
+        }
+        if (syncMode != SyncMode.NONE && !futures.isEmpty()) {
+          long start = System.nanoTime();
+          channel.force(false);
+          syncMicros.recordSince(start);
+        }
+        futures.forEach(future -> future.complete(null));
+        if (!closing) {
+          rollIfDue();
+        }
+      } catch (IOException e) {
+        System.err.println(e.getMessage());
+        futures.forEach(future -> future.completeExceptionally(e));
+        seals.forEach(future -> future.completeExceptionally(e));
+      }
+      if (closing) {
+        try {
+          if (channel != null) {
+            channel.close();
+          }
+        } catch (IOException e) {
+          System.err.println(e.getMessage());
+        }
+        return;
+      }
     }
   }
+
+  private void openActive() throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    activeSince = System.nanoTime();
+  }
+
+  private void rollIfDue() throws IOException {
+    long size = channel.size();
+    boolean full = size >= segmentBytes;
+    boolean expired = segmentAgeNanos > 0 && size > 0
+        && System.nanoTime() - activeSince >= segmentAgeNanos;
+    if (full || expired) {
+      sealActive();
+    }
+  }
+
+  private long sealActive() throws IOException {
+    channel.force(true);
+    channel.close();
+    channel = null;
+    Path sealed = LogSegments.seal(path, nextSegment++);
+    Files.move(path, sealed, StandardCopyOption.ATOMIC_MOVE);
+    openActive();
+    COMPRESSOR.execute(() -> compress(sealed));
+    return nextSegment - 1;
+  }
+
+  private static void compress(Path sealed) {
+    try {
+      CompressedSegment.compress(sealed, LogSegments.compressed(sealed));
+    } catch (IOException e) {
+      System.err.println("Failed to compress " + sealed + ": " + e.getMessage());
+    }
+  }
+
+  private void write(List<Record> batch, List<CompletableFuture<Void>> futures)
+      throws IOException {
+    ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = batch.get(i).bytes();
+      futures.add(batch.get(i).future());
+    }
+    if (channel == null) {
+      throw new IOException("Cannot open " + path);
+    }
+    long remaining = 0;
+    for (ByteBuffer buffer : buffers) {
+      remaining += buffer.remaining();
+    }
+    while (remaining > 0) {
+      remaining -= channel.write(buffers);
+    }
+    for (Record record : batch) {
+      appendMicros.recordSince(record.loggedAt());
+    }
+  }
+
+  private record Record(ByteBuffer bytes, CompletableFuture<Void> future, long loggedAt) {
+  }
 }
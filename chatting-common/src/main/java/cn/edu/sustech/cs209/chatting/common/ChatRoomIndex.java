@@ -0,0 +1,132 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chat rooms indexed by id, by member set and by member, so finding a room, the room a set of
+ * users already share, or every room of a user does not scan all rooms. Lookups are lock-free;
+ * changes are serialized so a member set can only be claimed once.
+ */
+public class ChatRoomIndex {
+
+  private final Map<String, ChatRoom> rooms;
+  private final Map<String, ChatRoom> roomsByMembers;
+  private final Map<String, Set<String>> roomsByUser;
+
+  public ChatRoomIndex() {
+    rooms = new ConcurrentHashMap<>();
+    roomsByMembers = new ConcurrentHashMap<>();
+    roomsByUser = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Canonical key of a member set: the room type and a SHA-256 hash of the sorted member names, so
+   * equal member sets map to the same key regardless of order or set implementation.
+   */
+  public static String memberKey(ChatType type, Set<String> members) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (String member : new TreeSet<>(members)) {
+        digest.update(member.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+      }
+      return type + ":" + HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Adds a room unless one with the same id or the same type and members exists, and returns the
+   * room that is indexed afterwards: {@code chatRoom} itself when it was added, the existing room
+   * otherwise.
+   */
+  public synchronized ChatRoom add(ChatRoom chatRoom) {
+    ChatRoom existing = rooms.get(chatRoom.getId());
+    if (existing == null) {
+      existing = roomsByMembers.get(memberKey(chatRoom.getType(), chatRoom.getUsers()));
+    }
+    if (existing != null) {
+      return existing;
+    }
+    put(chatRoom);
+    return chatRoom;
+  }
+
+  /**
+   * Adds or replaces a room by id. Rooms restored from logs written before room creation was
+   * idempotent may share a member set; the first one keeps the member key.
+   */
+  public synchronized void put(ChatRoom chatRoom) {
+    ChatRoom previous = rooms.put(chatRoom.getId(), chatRoom);
+    if (previous != null) {
+      unindex(previous);
+    }
+    roomsByMembers.putIfAbsent(memberKey(chatRoom.getType(), chatRoom.getUsers()), chatRoom);
+    for (String user : chatRoom.getUsers()) {
+      roomsByUser.computeIfAbsent(user, u -> ConcurrentHashMap.newKeySet()).add(chatRoom.getId());
+    }
+  }
+
+  public synchronized ChatRoom remove(String id) {
+    ChatRoom removed = rooms.remove(id);
+    if (removed != null) {
+      unindex(removed);
+    }
+    return removed;
+  }
+
+  public ChatRoom get(String id) {
+    return id == null ? null : rooms.get(id);
+  }
+
+  public boolean contains(String id) {
+    return id != null && rooms.containsKey(id);
+  }
+
+  /**
+   * Returns the room of the given type whose members are exactly {@code members}, if any.
+   */
+  public ChatRoom find(ChatType type, Set<String> members) {
+    return roomsByMembers.get(memberKey(type, members));
+  }
+
+  /**
+   * Ids of the rooms {@code username} is a member of; the set is a live, read-only view.
+   */
+  public Set<String> roomsOf(String username) {
+    Set<String> ids = roomsByUser.get(username);
+    return ids == null ? Set.of() : Collections.unmodifiableSet(ids);
+  }
+
+  public boolean isMember(String username, String id) {
+    return roomsOf(username).contains(id);
+  }
+
+  public Collection<ChatRoom> all() {
+    return Collections.unmodifiableCollection(rooms.values());
+  }
+
+  public int size() {
+    return rooms.size();
+  }
+
+  private void unindex(ChatRoom chatRoom) {
+    roomsByMembers.remove(memberKey(chatRoom.getType(), chatRoom.getUsers()), chatRoom);
+    for (String user : chatRoom.getUsers()) {
+      Set<String> ids = roomsByUser.get(user);
+      if (ids != null) {
+        ids.remove(chatRoom.getId());
+      }
+    }
+  }
+}
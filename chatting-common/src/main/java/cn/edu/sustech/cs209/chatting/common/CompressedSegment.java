@@ -0,0 +1,179 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A sealed log segment stored as independently deflated blocks of whole records, followed by an
+ * index of the blocks and a fixed-size footer. Any block can be read without inflating the blocks
+ * before it, which is what lets a reader split a compressed segment across threads.
+ */
+final class CompressedSegment implements Closeable {
+
+  private static final int MAGIC = 0x43484c47;
+  private static final int BLOCK_SIZE = 64 * 1024;
+  private static final int INDEX_ENTRY_BYTES = Long.BYTES + 2 * Integer.BYTES;
+  private static final int FOOTER_BYTES = Long.BYTES + 2 * Integer.BYTES;
+
+  private final FileChannel channel;
+  private final long[] offsets;
+  private final int[] compressedLengths;
+  private final int[] lengths;
+
+  private CompressedSegment(FileChannel channel, long[] offsets, int[] compressedLengths,
+      int[] lengths) {
+    this.channel = channel;
+    this.offsets = offsets;
+    this.compressedLengths = compressedLengths;
+    this.lengths = lengths;
+  }
+
+  /**
+   * Compresses the plain segment {@code source} into {@code target}, replacing it atomically, and
+   * deletes {@code source}.
+   */
+  static void compress(Path source, Path target) throws IOException {
+    Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+    Deflater deflater = new Deflater();
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(source));
+        FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteArrayOutputStream index = new ByteArrayOutputStream();
+      ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE);
+      byte[] compressed = new byte[BLOCK_SIZE];
+      int blocks = 0;
+      int b;
+      while ((b = in.read()) >= 0) {
+        block.write(b);
+        if (b == '\n' && block.size() >= BLOCK_SIZE) {
+          writeBlock(out, deflater, block, compressed, index);
+          blocks++;
+        }
+      }
+      if (block.size() > 0) {
+        writeBlock(out, deflater, block, compressed, index);
+        blocks++;
+      }
+      long indexOffset = out.position();
+      writeFully(out, ByteBuffer.wrap(index.toByteArray()));
+      writeFully(out, ByteBuffer.allocate(FOOTER_BYTES).putLong(indexOffset).putInt(blocks)
+          .putInt(MAGIC).flip());
+      out.force(true);
+    } finally {
+      deflater.end();
+    }
+    Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    Files.delete(source);
+  }
+
+  private static void writeBlock(FileChannel out, Deflater deflater, ByteArrayOutputStream block,
+      byte[] buffer, ByteArrayOutputStream index) throws IOException {
+    byte[] input = block.toByteArray();
+    deflater.reset();
+    deflater.setInput(input);
+    deflater.finish();
+    long offset = out.position();
+    int compressedLength = 0;
+    while (!deflater.finished()) {
+      int produced = deflater.deflate(buffer);
+      writeFully(out, ByteBuffer.wrap(buffer, 0, produced));
+      compressedLength += produced;
+    }
+    index.writeBytes(ByteBuffer.allocate(INDEX_ENTRY_BYTES).putLong(offset)
+        .putInt(compressedLength).putInt(input.length).array());
+    block.reset();
+  }
+
+  static CompressedSegment open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      ByteBuffer footer = readFully(channel, channel.size() - FOOTER_BYTES, FOOTER_BYTES);
+      long indexOffset = footer.getLong();
+      int blocks = footer.getInt();
+      if (footer.getInt() != MAGIC) {
+        throw new IOException("Not a compressed log segment: " + path);
+      }
+      ByteBuffer index = readFully(channel, indexOffset, blocks * INDEX_ENTRY_BYTES);
+      long[] offsets = new long[blocks];
+      int[] compressedLengths = new int[blocks];
+      int[] lengths = new int[blocks];
+      for (int i = 0; i < blocks; i++) {
+        offsets[i] = index.getLong();
+        compressedLengths[i] = index.getInt();
+        lengths[i] = index.getInt();
+      }
+      return new CompressedSegment(channel, offsets, compressedLengths, lengths);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  int blockCount() {
+    return offsets.length;
+  }
+
+  int blockLength(int block) {
+    return lengths[block];
+  }
+
+  /**
+   * Inflates one block; the result holds whole records, each terminated by a line separator.
+   */
+  byte[] block(int block) throws IOException {
+    ByteBuffer compressed = readFully(channel, offsets[block], compressedLengths[block]);
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed.array());
+      byte[] data = new byte[lengths[block]];
+      int length = 0;
+      while (length < data.length && !inflater.finished()) {
+        int inflated = inflater.inflate(data, length, data.length - length);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Corrupt block " + block + " in log segment");
+        }
+        length += inflated;
+      }
+      return data;
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Truncated log segment");
+      }
+    }
+    return buffer.flip();
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
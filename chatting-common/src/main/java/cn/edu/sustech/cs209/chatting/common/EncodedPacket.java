@@ -0,0 +1,50 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import lombok.Getter;
+
+/**
+ * A packet encoded at most once per wire format into an immutable buffer, so that a fan-out to many
+ * connections shares the same bytes instead of serializing the packet per recipient.
+ */
+public final class EncodedPacket {
+
+  @Getter
+  private final Packet packet;
+  private final PacketCodec codec;
+  private final AtomicReferenceArray<ByteBuffer> frames;
+
+  private EncodedPacket(Packet packet, PacketCodec codec) {
+    this.packet = packet;
+    this.codec = codec;
+    frames = new AtomicReferenceArray<>(WireFormat.values().length);
+  }
+
+  public static EncodedPacket of(Packet packet, PacketCodec codec) {
+    return new EncodedPacket(packet, codec);
+  }
+
+  public PacketType getType() {
+    return packet.getType();
+  }
+
+  /**
+   * Returns a view of the encoded frame with its own position, safe to hand to one writer.
+   */
+  public ByteBuffer buffer(WireFormat format) {
+    ByteBuffer frame = frames.get(format.ordinal());
+    if (frame == null) {
+      try {
+        frame = ByteBuffer.wrap(codec.encode(packet, format)).asReadOnlyBuffer();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      if (!frames.compareAndSet(format.ordinal(), null, frame)) {
+        frame = frames.get(format.ordinal());
+      }
+    }
+    return frame.duplicate();
+  }
+}
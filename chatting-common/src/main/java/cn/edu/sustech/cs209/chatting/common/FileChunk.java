@@ -0,0 +1,35 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Builder;
+import lombok.Data;
+import lombok.ToString;
+
+@Data
+@Builder
+public class FileChunk {
+
+  public static final int CHUNK_SIZE = 64 * 1024;
+  public static final int WINDOW = 8;
+
+  private String transferId;
+  private String fileName;
+  private long fileSize;
+  private long offset;
+  @ToString.Exclude
+  private byte[] data;
+
+  @JsonCreator
+  public FileChunk(@JsonProperty("transferId") String transferId,
+      @JsonProperty("fileName") String fileName,
+      @JsonProperty("fileSize") long fileSize,
+      @JsonProperty("offset") long offset,
+      @JsonProperty("data") byte[] data) {
+    this.transferId = transferId;
+    this.fileName = fileName;
+    this.fileSize = fileSize;
+    this.offset = offset;
+    this.data = data;
+  }
+}
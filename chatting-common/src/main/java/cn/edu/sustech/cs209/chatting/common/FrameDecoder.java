@@ -0,0 +1,76 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Incrementally cuts packets out of a heap buffer that is filled from a non-blocking channel.
+ */
+public class FrameDecoder {
+
+  private final PacketCodec codec;
+  @Getter
+  private final int maxFrameBytes;
+  @Getter
+  @Setter
+  private WireFormat format;
+  private int scanned;
+
+  public FrameDecoder(PacketCodec codec, int maxFrameBytes) {
+    this.codec = codec;
+    this.maxFrameBytes = maxFrameBytes;
+    format = WireFormat.JSON_LINES;
+  }
+
+  /**
+   * Decodes the next complete packet between the buffer's position and limit, advancing the
+   * position past it. Returns {@code null} when more bytes are needed.
+   */
+  public Packet decode(ByteBuffer buffer) throws IOException {
+    return format == WireFormat.JSON_LINES ? decodeLine(buffer) : decodeFrame(buffer);
+  }
+
+  /**
+   * Blank lines are skipped in place; a peer may send any number of them.
+   */
+  private Packet decodeLine(ByteBuffer buffer) throws IOException {
+    byte[] array = buffer.array();
+    int start = buffer.arrayOffset() + buffer.position();
+    int limit = buffer.arrayOffset() + buffer.limit();
+    for (int i = start + scanned; i < limit; i++) {
+      if (array[i] != '\n') {
+        continue;
+      }
+      int end = i > start && array[i - 1] == '\r' ? i - 1 : i;
+      buffer.position(buffer.position() + i + 1 - start);
+      scanned = 0;
+      if (end > start) {
+        return codec.decode(array, start, end - start, format);
+      }
+      start = i + 1;
+    }
+    scanned = limit - start;
+    if (scanned > maxFrameBytes) {
+      throw new IOException("Frame exceeds " + maxFrameBytes + " bytes");
+    }
+    return null;
+  }
+
+  private Packet decodeFrame(ByteBuffer buffer) throws IOException {
+    if (buffer.remaining() < PacketCodec.LENGTH_PREFIX_BYTES) {
+      return null;
+    }
+    int length = buffer.getInt(buffer.position());
+    if (length < 0 || length > maxFrameBytes) {
+      throw new IOException("Frame of " + length + " bytes exceeds " + maxFrameBytes + " bytes");
+    }
+    if (buffer.remaining() < PacketCodec.LENGTH_PREFIX_BYTES + length) {
+      return null;
+    }
+    int start = buffer.arrayOffset() + buffer.position() + PacketCodec.LENGTH_PREFIX_BYTES;
+    buffer.position(buffer.position() + PacketCodec.LENGTH_PREFIX_BYTES + length);
+    return codec.decode(buffer.array(), start, length, format);
+  }
+}
@@ -0,0 +1,117 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of recorded values over fixed buckets. Recording only bumps a few striped counters,
+ * so it is cheap enough for per-packet hot paths; quantiles are estimated as the upper bound of
+ * the bucket they fall in.
+ */
+public final class Histogram {
+
+  /**
+   * Bucket bounds for latencies in microseconds, from 1 µs to 10 s.
+   */
+  public static final long[] LATENCY_MICROS = oneTwoFive(10_000_000);
+  /**
+   * Bucket bounds for sizes and counts, from 1 to 1,000,000.
+   */
+  public static final long[] SIZES = oneTwoFive(1_000_000);
+
+  private final long[] bounds;
+  private final LongAdder[] buckets;
+  private final LongAdder sum;
+  private final LongAccumulator max;
+
+  public Histogram(long[] bounds) {
+    this.bounds = bounds.clone();
+    buckets = new LongAdder[bounds.length + 1];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+    sum = new LongAdder();
+    max = new LongAccumulator(Math::max, 0);
+  }
+
+  public void record(long value) {
+    int bucket = Arrays.binarySearch(bounds, value);
+    buckets[bucket < 0 ? -bucket - 1 : bucket].increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /**
+   * Records the microseconds elapsed since {@code startNanos}, a {@link System#nanoTime()} value.
+   */
+  public void recordSince(long startNanos) {
+    record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+  }
+
+  public long[] bounds() {
+    return bounds.clone();
+  }
+
+  /**
+   * Count of values per bucket; the last bucket holds the values above every bound.
+   */
+  public long[] bucketCounts() {
+    long[] counts = new long[buckets.length];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = buckets[i].sum();
+    }
+    return counts;
+  }
+
+  public long count() {
+    long count = 0;
+    for (LongAdder bucket : buckets) {
+      count += bucket.sum();
+    }
+    return count;
+  }
+
+  public long sum() {
+    return sum.sum();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * Upper bound of the bucket holding the {@code quantile} of the values, or the largest value
+   * recorded when that lies above every bound.
+   */
+  public long quantile(double quantile) {
+    long[] counts = bucketCounts();
+    long total = Arrays.stream(counts).sum();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < bounds.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(bounds[i], max());
+      }
+    }
+    return max();
+  }
+
+  private static long[] oneTwoFive(long limit) {
+    long[] bounds = new long[64];
+    int size = 0;
+    for (long decade = 1; decade <= limit; decade *= 10) {
+      for (long step : new long[]{1, 2, 5}) {
+        if (step * decade <= limit) {
+          bounds[size++] = step * decade;
+        }
+      }
+    }
+    return Arrays.copyOf(bounds, size);
+  }
+}
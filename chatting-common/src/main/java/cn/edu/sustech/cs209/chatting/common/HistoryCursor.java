@@ -0,0 +1,34 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Position in a chat room's history. A HISTORY_REQUEST asks for up to {@code limit} messages older
+ * than {@code beforeId}, or the newest ones when it is not set. Ids are assigned by the server in
+ * log order, so they page a room consistently whatever the senders' clocks say. The HISTORY reply
+ * carries the cursor of the page before it, with {@code beforeId} null once the start of the room
+ * has been reached.
+ */
+@Data
+@Builder
+public class HistoryCursor {
+
+  public static final int DEFAULT_LIMIT = 50;
+  public static final int MAX_LIMIT = 500;
+
+  private String chatRoomId;
+  private Long beforeId;
+  private int limit;
+
+  @JsonCreator
+  public HistoryCursor(@JsonProperty("chatRoomId") String chatRoomId,
+      @JsonProperty("beforeId") Long beforeId,
+      @JsonProperty("limit") int limit) {
+    this.chatRoomId = chatRoomId;
+    this.beforeId = beforeId;
+    this.limit = limit;
+  }
+}
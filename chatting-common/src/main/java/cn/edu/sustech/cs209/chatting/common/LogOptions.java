@@ -0,0 +1,23 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Durability and segment rolling settings of a {@link ChatLogger}. A segment is sealed and
+ * compressed once it reaches {@code segmentBytes} or, when {@code segmentAgeMillis} is positive,
+ * once it has been active for that long.
+ */
+@Getter
+@Builder
+public class LogOptions {
+
+  @Builder.Default
+  private final SyncMode syncMode = SyncMode.BATCH;
+  @Builder.Default
+  private final long syncIntervalMillis = 10;
+  @Builder.Default
+  private final long segmentBytes = 64L * 1024 * 1024;
+  @Builder.Default
+  private final long segmentAgeMillis = 0;
+}
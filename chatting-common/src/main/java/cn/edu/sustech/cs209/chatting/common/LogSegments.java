@@ -0,0 +1,64 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Naming of the segments of a log. The active segment keeps the log's own name, e.g.
+ * {@code room.dat}; sealed segments are numbered siblings, {@code room.dat.000001.log} while still
+ * plain and {@code room.dat.000001.blk} once compressed.
+ */
+final class LogSegments {
+
+  static final String PLAIN = ".log";
+  static final String COMPRESSED = ".blk";
+
+  private LogSegments() {
+  }
+
+  /**
+   * Returns the sealed segments of {@code active} in the order they were written, preferring the
+   * compressed copy of a segment when both exist.
+   */
+  static List<Path> sealed(Path active) throws IOException {
+    Map<Long, Path> segments = new TreeMap<>();
+    Pattern name = Pattern.compile(
+        Pattern.quote(active.getFileName().toString()) + "\\.(\\d+)(\\.log|\\.blk)");
+    try (Stream<Path> siblings = Files.list(active.toAbsolutePath().getParent())) {
+      siblings.forEach(sibling -> {
+        Matcher matcher = name.matcher(sibling.getFileName().toString());
+        if (matcher.matches()) {
+          segments.merge(Long.parseLong(matcher.group(1)), sibling,
+              (a, b) -> a.toString().endsWith(COMPRESSED) ? a : b);
+        }
+      });
+    } catch (NoSuchFileException e) {
+      return List.of();
+    }
+    return new ArrayList<>(segments.values());
+  }
+
+  static Path seal(Path active, long sequence) {
+    return active.resolveSibling(String.format("%s.%06d%s", active.getFileName(), sequence, PLAIN));
+  }
+
+  static Path compressed(Path plain) {
+    String name = plain.getFileName().toString();
+    return plain.resolveSibling(name.substring(0, name.length() - PLAIN.length()) + COMPRESSED);
+  }
+
+  static long sequenceOf(Path segment) {
+    String name = segment.getFileName().toString();
+    String withoutSuffix = name.substring(0, name.length() - PLAIN.length());
+    return Long.parseLong(withoutSuffix.substring(withoutSuffix.lastIndexOf('.') + 1));
+  }
+}
@@ -0,0 +1,20 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+/**
+ * Process-wide Jackson mappers. Mappers are thread-safe and expensive to build, so connections,
+ * loggers and readers derive {@code ObjectReader}/{@code ObjectWriter} instances from these instead
+ * of creating their own.
+ */
+public final class Mappers {
+
+  public static final ObjectMapper JSON = new ObjectMapper();
+  public static final ObjectMapper SMILE = new ObjectMapper(
+      SmileFactory.builder().disable(SmileGenerator.Feature.ENCODE_BINARY_AS_7BIT).build());
+
+  private Mappers() {
+  }
+}
@@ -19,6 +19,9 @@ public class Message {
 
   private MessageType type;
   private String fileName;
+  private String fileId;
+  private Long fileSize;
+  private Long id;
 
   @JsonCreator
   public Message(@JsonProperty("chatRoomId") String chatRoomId,
@@ -26,12 +29,18 @@ public class Message {
       @JsonProperty("sentBy") String sentBy,
       @JsonProperty("data") String data,
       @JsonProperty("type") MessageType type,
-      @JsonProperty("fileName") String fileName) {
+      @JsonProperty("fileName") String fileName,
+      @JsonProperty("fileId") String fileId,
+      @JsonProperty("fileSize") Long fileSize,
+      @JsonProperty("id") Long id) {
     this.chatRoomId = chatRoomId;
     this.timestamp = timestamp;
     this.sentBy = sentBy;
     this.data = data;
     this.type = type;
     this.fileName = fileName;
+    this.fileId = fileId;
+    this.fileSize = fileSize;
+    this.id = id;
   }
 }
@@ -0,0 +1,229 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide registry of counters, gauges and histograms. Each series is a name plus optional
+ * label pairs; asking for the same series twice returns the same instrument, so hot paths look
+ * theirs up once and keep it in a field.
+ *
+ * <p>Everything registered is readable over JMX, as attributes of one MBean per process, and in
+ * the Prometheus text format through {@link #scrape()}, which {@link MetricsEndpoint} serves.
+ */
+public final class Metrics {
+
+  public static final String JMX_DOMAIN = "cn.edu.sustech.cs209.chatting";
+
+  private static final Map<String, Series> SERIES = new ConcurrentSkipListMap<>();
+
+  private Metrics() {
+  }
+
+  public static Counter counter(String name, String... labels) {
+    return (Counter) register(name, labels, new Counter());
+  }
+
+  public static Histogram histogram(String name, long[] bounds, String... labels) {
+    return (Histogram) register(name, labels, new Histogram(bounds));
+  }
+
+  /**
+   * Registers a value read whenever metrics are collected; a later gauge with the same series
+   * replaces the earlier one.
+   */
+  public static void gauge(String name, LongSupplier value, String... labels) {
+    String labelText = labels(labels);
+    SERIES.put(key(name, labelText), new Series(name, labelText, value));
+  }
+
+  /**
+   * One counter per constant of {@code type}, labelled {@code label}, indexed by ordinal.
+   */
+  public static <E extends Enum<E>> Counter[] counters(String name, String label, Class<E> type) {
+    E[] constants = type.getEnumConstants();
+    Counter[] counters = new Counter[constants.length];
+    for (E constant : constants) {
+      counters[constant.ordinal()] = counter(name, label, constant.name());
+    }
+    return counters;
+  }
+
+  /**
+   * Exposes every series as an attribute of the MBean {@code <JMX_DOMAIN>:type=Metrics,name=
+   * <component>}. Histograms show up as their count, sum, max and estimated median and 99th
+   * percentile.
+   */
+  public static void registerMBean(String component) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      ObjectName name = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + component);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(new JmxView(), name);
+      }
+    } catch (JMException e) {
+      System.err.println("Failed to register metrics MBean: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Every series in the Prometheus text exposition format.
+   */
+  public static String scrape() {
+    StringBuilder text = new StringBuilder();
+    String family = null;
+    for (Series series : SERIES.values()) {
+      if (!series.name().equals(family)) {
+        family = series.name();
+        text.append("# TYPE ").append(family).append(' ').append(series.type()).append('\n');
+      }
+      if (series.metric() instanceof Histogram histogram) {
+        long[] bounds = histogram.bounds();
+        long[] counts = histogram.bucketCounts();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+          cumulative += counts[i];
+          String le = i < bounds.length ? Long.toString(bounds[i]) : "+Inf";
+          String labels = series.labels().isEmpty() ? "le=\"" + le + "\""
+              : series.labels() + ",le=\"" + le + "\"";
+          line(text, series.name() + "_bucket", labels, cumulative);
+        }
+        line(text, series.name() + "_sum", series.labels(), histogram.sum());
+        line(text, series.name() + "_count", series.labels(), cumulative);
+      } else {
+        line(text, series.name(), series.labels(), series.value());
+      }
+    }
+    return text.toString();
+  }
+
+  private static Object register(String name, String[] labels, Object metric) {
+    String labelText = labels(labels);
+    Series series = SERIES.computeIfAbsent(key(name, labelText),
+        key -> new Series(name, labelText, metric));
+    return series.metric();
+  }
+
+  private static String labels(String[] labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels must be name and value pairs");
+    }
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        text.append(',');
+      }
+      text.append(labels[i]).append("=\"")
+          .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+    }
+    return text.toString();
+  }
+
+  private static String key(String name, String labels) {
+    return labels.isEmpty() ? name : name + "{" + labels + "}";
+  }
+
+  private static void line(StringBuilder text, String name, String labels, long value) {
+    text.append(key(name, labels)).append(' ').append(value).append('\n');
+  }
+
+  private record Series(String name, String labels, Object metric) {
+
+    String type() {
+      return metric instanceof Counter ? "counter"
+          : metric instanceof Histogram ? "histogram" : "gauge";
+    }
+
+    long value() {
+      return metric instanceof Counter counter ? counter.get()
+          : ((LongSupplier) metric).getAsLong();
+    }
+  }
+
+  private static final class JmxView implements DynamicMBean {
+
+    private static final String[] STATISTICS = {"count", "sum", "max", "p50", "p99"};
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Series series = SERIES.get(attribute);
+      if (series != null && !(series.metric() instanceof Histogram)) {
+        return series.value();
+      }
+      int dot = attribute.lastIndexOf('.');
+      series = dot < 0 ? null : SERIES.get(attribute.substring(0, dot));
+      if (series == null || !(series.metric() instanceof Histogram histogram)) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return switch (attribute.substring(dot + 1)) {
+        case "count" -> histogram.count();
+        case "sum" -> histogram.sum();
+        case "max" -> histogram.max();
+        case "p50" -> histogram.quantile(0.5);
+        case "p99" -> histogram.quantile(0.99);
+        default -> throw new AttributeNotFoundException(attribute);
+      };
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        try {
+          list.add(new Attribute(attribute, getAttribute(attribute)));
+        } catch (AttributeNotFoundException e) {
+          // Series come and go only by being added, so this is a name the caller made up.
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes = new ArrayList<>();
+      SERIES.forEach((key, series) -> {
+        if (series.metric() instanceof Histogram) {
+          for (String statistic : STATISTICS) {
+            attributes.add(attribute(key + "." + statistic));
+          }
+        } else {
+          attributes.add(attribute(key));
+        }
+      });
+      return new MBeanInfo(Metrics.class.getName(), "Chatting metrics",
+          attributes.toArray(MBeanAttributeInfo[]::new), null, null, null);
+    }
+
+    private static MBeanAttributeInfo attribute(String name) {
+      return new MBeanAttributeInfo(name, "long", name, true, false, false);
+    }
+  }
+}
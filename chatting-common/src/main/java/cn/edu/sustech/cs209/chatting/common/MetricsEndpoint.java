@@ -0,0 +1,54 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves {@link Metrics#scrape()} at {@code /metrics} over HTTP on the loopback interface, for a
+ * Prometheus agent or {@code curl} running on the same host.
+ */
+public final class MetricsEndpoint implements AutoCloseable {
+
+  private final HttpServer server;
+
+  private MetricsEndpoint(HttpServer server) {
+    this.server = server;
+  }
+
+  public static MetricsEndpoint start(int port) throws IOException {
+    HttpServer server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", MetricsEndpoint::handle);
+    server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "metrics-endpoint");
+      thread.setDaemon(true);
+      return thread;
+    }));
+    server.start();
+    return new MetricsEndpoint(server);
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  private static void handle(HttpExchange exchange) throws IOException {
+    byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
@@ -2,6 +2,7 @@ package cn.edu.sustech.cs209.chatting.common;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
 import lombok.Builder;
 import lombok.Data;
 
@@ -14,17 +15,39 @@ public class Packet {
   private User user;
   private ChatRoom chatRoom;
   private Message message;
+  private List<String> capabilities;
+  private FileChunk fileChunk;
+  private List<Message> messages;
+  private HistoryCursor history;
+  private Presence presence;
+  /**
+   * Chosen by the client for a request that expects a reply; the server copies it into the reply
+   * so several requests can be in flight on one connection.
+   */
+  private String requestId;
 
   @JsonCreator
   public Packet(@JsonProperty("type") PacketType type,
       @JsonProperty("info") String info,
       @JsonProperty("user") User user,
       @JsonProperty("chatRoom") ChatRoom chatRoom,
-      @JsonProperty("message") Message message) {
+      @JsonProperty("message") Message message,
+      @JsonProperty("capabilities") List<String> capabilities,
+      @JsonProperty("fileChunk") FileChunk fileChunk,
+      @JsonProperty("messages") List<Message> messages,
+      @JsonProperty("history") HistoryCursor history,
+      @JsonProperty("presence") Presence presence,
+      @JsonProperty("requestId") String requestId) {
     this.type = type;
     this.info = info;
     this.user = user;
     this.chatRoom = chatRoom;
     this.message = message;
+    this.capabilities = capabilities;
+    this.fileChunk = fileChunk;
+    this.messages = messages;
+    this.history = history;
+    this.presence = presence;
+    this.requestId = requestId;
   }
 }
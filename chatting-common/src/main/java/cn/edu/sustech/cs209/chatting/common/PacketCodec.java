@@ -0,0 +1,144 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes packets into complete wire frames and decodes frame payloads back into packets.
+ *
+ * <p>{@link WireFormat#JSON_LINES} frames are a JSON document followed by a newline;
+ * {@link WireFormat#SMILE_FRAMED} frames are a four byte big-endian payload length followed by a
+ * Smile document. Encoding goes through {@link PacketStreamCodec} into a per-thread scratch buffer,
+ * so the only allocation per frame is the returned array.
+ *
+ * <p>Every decoded packet is counted by type, and encode and decode times are recorded, in
+ * {@link Metrics}.
+ */
+public class PacketCodec {
+
+  public static final int DEFAULT_MAX_FRAME_BYTES = 16 * 1024 * 1024;
+  public static final int LENGTH_PREFIX_BYTES = 4;
+
+  private static final PacketCodec INSTANCE = new PacketCodec();
+  private static final int MAX_POOLED_BUFFER = 64 * 1024;
+  private static final ThreadLocal<ScratchBuffer> SCRATCH =
+      ThreadLocal.withInitial(ScratchBuffer::new);
+  private static final Counter[] PACKETS_IN =
+      Metrics.counters("chatting_packets_in_total", "type", PacketType.class);
+  private static final Histogram ENCODE_MICROS =
+      Metrics.histogram("chatting_encode_micros", Histogram.LATENCY_MICROS);
+  private static final Histogram DECODE_MICROS =
+      Metrics.histogram("chatting_decode_micros", Histogram.LATENCY_MICROS);
+
+  private final JsonFactory jsonFactory;
+  private final JsonFactory smileFactory;
+
+  private PacketCodec() {
+    jsonFactory = Mappers.JSON.getFactory();
+    smileFactory = Mappers.SMILE.getFactory();
+  }
+
+  public static PacketCodec getInstance() {
+    return INSTANCE;
+  }
+
+  public byte[] encode(Packet packet, WireFormat format) throws IOException {
+    long start = System.nanoTime();
+    ScratchBuffer scratch = SCRATCH.get();
+    scratch.reset();
+    try {
+      if (format == WireFormat.SMILE_FRAMED) {
+        scratch.skip(LENGTH_PREFIX_BYTES);
+      }
+      try (JsonGenerator g = factory(format).createGenerator(scratch)) {
+        PacketStreamCodec.writePacket(g, packet);
+      }
+      if (format == WireFormat.JSON_LINES) {
+        scratch.write('\n');
+      } else {
+        scratch.writeLengthPrefix(scratch.size() - LENGTH_PREFIX_BYTES);
+      }
+      return scratch.toByteArray();
+    } finally {
+      scratch.release();
+      ENCODE_MICROS.recordSince(start);
+    }
+  }
+
+  public Packet decode(byte[] payload, int offset, int length, WireFormat format)
+      throws IOException {
+    long start = System.nanoTime();
+    Packet packet;
+    try (JsonParser p = factory(format).createParser(payload, offset, length)) {
+      packet = PacketStreamCodec.readPacket(p);
+    }
+    DECODE_MICROS.recordSince(start);
+    if (packet.getType() != null) {
+      PACKETS_IN[packet.getType().ordinal()].increment();
+    }
+    return packet;
+  }
+
+  private JsonFactory factory(WireFormat format) {
+    return format == WireFormat.SMILE_FRAMED ? smileFactory : jsonFactory;
+  }
+
+  private static final class ScratchBuffer extends OutputStream {
+
+    private byte[] buf = new byte[4096];
+    private int count;
+
+    void reset() {
+      count = 0;
+    }
+
+    int size() {
+      return count;
+    }
+
+    void skip(int length) {
+      ensureCapacity(count + length);
+      count += length;
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(count + 1);
+      buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(count + len);
+      System.arraycopy(b, off, buf, count, len);
+      count += len;
+    }
+
+    void writeLengthPrefix(int length) {
+      buf[0] = (byte) (length >>> 24);
+      buf[1] = (byte) (length >>> 16);
+      buf[2] = (byte) (length >>> 8);
+      buf[3] = (byte) length;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buf, count);
+    }
+
+    void release() {
+      if (buf.length > MAX_POOLED_BUFFER) {
+        buf = new byte[4096];
+      }
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+      }
+    }
+  }
+}
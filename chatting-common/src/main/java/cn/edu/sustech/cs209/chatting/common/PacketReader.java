@@ -0,0 +1,83 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Blocking counterpart of {@link FrameDecoder}. It reads bytes rather than characters, so nothing
+ * past the current frame is consumed and the format can be switched between packets.
+ */
+public class PacketReader {
+
+  private final DataInputStream in;
+  private final PacketCodec codec;
+  private final int maxFrameBytes;
+  @Getter
+  @Setter
+  private WireFormat format;
+  private byte[] buffer;
+
+  public PacketReader(InputStream in, PacketCodec codec, int maxFrameBytes) {
+    this.in = new DataInputStream(new BufferedInputStream(in));
+    this.codec = codec;
+    this.maxFrameBytes = maxFrameBytes;
+    format = WireFormat.JSON_LINES;
+    buffer = new byte[1024];
+  }
+
+  /**
+   * Returns the next packet, or {@code null} once the peer has closed the stream.
+   */
+  public Packet read() throws IOException {
+    return format == WireFormat.JSON_LINES ? readLine() : readFrame();
+  }
+
+  /**
+   * Reads up to the next non-blank line; blank lines are skipped in place.
+   */
+  private Packet readLine() throws IOException {
+    int length = 0;
+    while (length == 0) {
+      int b;
+      while ((b = in.read()) != '\n') {
+        if (b < 0) {
+          return null;
+        }
+        if (length == maxFrameBytes) {
+          throw new IOException("Frame exceeds " + maxFrameBytes + " bytes");
+        }
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, Math.min(maxFrameBytes, buffer.length * 2));
+        }
+        buffer[length++] = (byte) b;
+      }
+      if (length > 0 && buffer[length - 1] == '\r') {
+        length--;
+      }
+    }
+    return codec.decode(buffer, 0, length, format);
+  }
+
+  private Packet readFrame() throws IOException {
+    int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    if (length < 0 || length > maxFrameBytes) {
+      throw new IOException("Frame of " + length + " bytes exceeds " + maxFrameBytes + " bytes");
+    }
+    if (length > buffer.length) {
+      buffer = new byte[length];
+    }
+    in.readFully(buffer, 0, length);
+    return codec.decode(buffer, 0, length, format);
+  }
+}
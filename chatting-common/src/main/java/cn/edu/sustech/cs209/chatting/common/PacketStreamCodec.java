@@ -0,0 +1,395 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hand-written streaming encoding of {@link Packet} and the models it carries. The generator and
+ * parser may be JSON or Smile. Only non-null fields are written, so every packet type carries just
+ * the fields it uses, and the reader accepts the databind layout as well.
+ *
+ * <p>Input comes from peers that have not logged in yet, so the reader checks the shape of every
+ * value and throws {@link JsonParseException} on a mismatch.
+ */
+final class PacketStreamCodec {
+
+  private PacketStreamCodec() {
+  }
+
+  static void writePacket(JsonGenerator g, Packet packet) throws IOException {
+    g.writeStartObject();
+    writeEnum(g, "type", packet.getType());
+    writeString(g, "info", packet.getInfo());
+    if (packet.getUser() != null) {
+      g.writeFieldName("user");
+      writeUser(g, packet.getUser());
+    }
+    if (packet.getChatRoom() != null) {
+      g.writeFieldName("chatRoom");
+      writeChatRoom(g, packet.getChatRoom());
+    }
+    if (packet.getMessage() != null) {
+      g.writeFieldName("message");
+      writeMessage(g, packet.getMessage());
+    }
+    if (packet.getCapabilities() != null) {
+      g.writeFieldName("capabilities");
+      writeStrings(g, packet.getCapabilities());
+    }
+    if (packet.getFileChunk() != null) {
+      g.writeFieldName("fileChunk");
+      writeFileChunk(g, packet.getFileChunk());
+    }
+    if (packet.getMessages() != null) {
+      g.writeFieldName("messages");
+      g.writeStartArray();
+      for (Message message : packet.getMessages()) {
+        writeMessage(g, message);
+      }
+      g.writeEndArray();
+    }
+    if (packet.getHistory() != null) {
+      g.writeFieldName("history");
+      writeHistoryCursor(g, packet.getHistory());
+    }
+    if (packet.getPresence() != null) {
+      g.writeFieldName("presence");
+      writePresence(g, packet.getPresence());
+    }
+    writeString(g, "requestId", packet.getRequestId());
+    g.writeEndObject();
+  }
+
+  static Packet readPacket(JsonParser p) throws IOException {
+    p.nextToken();
+    expect(p, JsonToken.START_OBJECT);
+    Packet.PacketBuilder packet = Packet.builder();
+    String field;
+    while ((field = p.nextFieldName()) != null) {
+      switch (field) {
+        case "type" -> packet.type(readEnum(p, PacketType.class));
+        case "info" -> packet.info(readString(p));
+        case "user" -> packet.user(p.nextToken() == JsonToken.VALUE_NULL ? null : readUser(p));
+        case "chatRoom" ->
+            packet.chatRoom(p.nextToken() == JsonToken.VALUE_NULL ? null : readChatRoom(p));
+        case "message" ->
+            packet.message(p.nextToken() == JsonToken.VALUE_NULL ? null : readMessage(p));
+        case "capabilities" -> packet.capabilities(readStrings(p, new ArrayList<>()));
+        case "fileChunk" ->
+            packet.fileChunk(p.nextToken() == JsonToken.VALUE_NULL ? null : readFileChunk(p));
+        case "messages" -> packet.messages(readMessages(p));
+        case "history" ->
+            packet.history(p.nextToken() == JsonToken.VALUE_NULL ? null : readHistoryCursor(p));
+        case "presence" ->
+            packet.presence(p.nextToken() == JsonToken.VALUE_NULL ? null : readPresence(p));
+        case "requestId" -> packet.requestId(readString(p));
+        default -> skipValue(p);
+      }
+    }
+    expect(p, JsonToken.END_OBJECT);
+    return packet.build();
+  }
+
+  private static void writeUser(JsonGenerator g, User user) throws IOException {
+    g.writeStartObject();
+    writeString(g, "username", user.getUsername());
+    writeString(g, "password", user.getPassword());
+    g.writeEndObject();
+  }
+
+  private static User readUser(JsonParser p) throws IOException {
+    expect(p, JsonToken.START_OBJECT);
+    String username = null;
+    String password = null;
+    String field;
+    while ((field = p.nextFieldName()) != null) {
+      switch (field) {
+        case "username" -> username = readString(p);
+        case "password" -> password = readString(p);
+        default -> skipValue(p);
+      }
+    }
+    expect(p, JsonToken.END_OBJECT);
+    return new User(username, password);
+  }
+
+  private static void writeChatRoom(JsonGenerator g, ChatRoom chatRoom) throws IOException {
+    g.writeStartObject();
+    writeString(g, "id", chatRoom.getId());
+    writeEnum(g, "type", chatRoom.getType());
+    if (chatRoom.getUsers() != null) {
+      g.writeFieldName("users");
+      writeStrings(g, chatRoom.getUsers());
+    }
+    g.writeNumberField("unreadMessageCount", chatRoom.getUnreadMessageCount());
+    g.writeEndObject();
+  }
+
+  private static ChatRoom readChatRoom(JsonParser p) throws IOException {
+    expect(p, JsonToken.START_OBJECT);
+    String id = null;
+    ChatType type = null;
+    Set<String> users = null;
+    int unreadMessageCount = 0;
+    String field;
+    while ((field = p.nextFieldName()) != null) {
+      switch (field) {
+        case "id" -> id = readString(p);
+        case "type" -> type = readEnum(p, ChatType.class);
+        case "users" -> users = readStrings(p, new HashSet<>());
+        case "unreadMessageCount" -> unreadMessageCount = (int) readLong(p, 0);
+        default -> skipValue(p);
+      }
+    }
+    expect(p, JsonToken.END_OBJECT);
+    return new ChatRoom(id, type, users, unreadMessageCount);
+  }
+
+  private static void writeMessage(JsonGenerator g, Message message) throws IOException {
+    g.writeStartObject();
+    writeString(g, "chatRoomId", message.getChatRoomId());
+    if (message.getTimestamp() != null) {
+      g.writeNumberField("timestamp", message.getTimestamp());
+    }
+    writeString(g, "sentBy", message.getSentBy());
+    writeString(g, "data", message.getData());
+    writeEnum(g, "type", message.getType());
+    writeString(g, "fileName", message.getFileName());
+    writeString(g, "fileId", message.getFileId());
+    if (message.getFileSize() != null) {
+      g.writeNumberField("fileSize", message.getFileSize());
+    }
+    if (message.getId() != null) {
+      g.writeNumberField("id", message.getId());
+    }
+    g.writeEndObject();
+  }
+
+  private static Message readMessage(JsonParser p) throws IOException {
+    expect(p, JsonToken.START_OBJECT);
+    String chatRoomId = null;
+    Long timestamp = null;
+    String sentBy = null;
+    String data = null;
+    MessageType type = null;
+    String fileName = null;
+    String fileId = null;
+    Long fileSize = null;
+    Long id = null;
+    String field;
+    while ((field = p.nextFieldName()) != null) {
+      switch (field) {
+        case "chatRoomId" -> chatRoomId = readString(p);
+        case "timestamp" -> timestamp = readLong(p);
+        case "sentBy" -> sentBy = readString(p);
+        case "data" -> data = readString(p);
+        case "type" -> type = readEnum(p, MessageType.class);
+        case "fileName" -> fileName = readString(p);
+        case "fileId" -> fileId = readString(p);
+        case "fileSize" -> fileSize = readLong(p);
+        case "id" -> id = readLong(p);
+        default -> skipValue(p);
+      }
+    }
+    expect(p, JsonToken.END_OBJECT);
+    return new Message(chatRoomId, timestamp, sentBy, data, type, fileName, fileId, fileSize, id);
+  }
+
+  private static List<Message> readMessages(JsonParser p) throws IOException {
+    if (p.nextToken() == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    expect(p, JsonToken.START_ARRAY);
+    List<Message> messages = new ArrayList<>();
+    while (p.nextToken() != JsonToken.END_ARRAY) {
+      messages.add(readMessage(p));
+    }
+    return messages;
+  }
+
+  private static void writeHistoryCursor(JsonGenerator g, HistoryCursor cursor)
+      throws IOException {
+    g.writeStartObject();
+    writeString(g, "chatRoomId", cursor.getChatRoomId());
+    if (cursor.getBeforeId() != null) {
+      g.writeNumberField("beforeId", cursor.getBeforeId());
+    }
+    g.writeNumberField("limit", cursor.getLimit());
+    g.writeEndObject();
+  }
+
+  private static HistoryCursor readHistoryCursor(JsonParser p) throws IOException {
+    expect(p, JsonToken.START_OBJECT);
+    String chatRoomId = null;
+    Long beforeId = null;
+    int limit = 0;
+    String field;
+    while ((field = p.nextFieldName()) != null) {
+      switch (field) {
+        case "chatRoomId" -> chatRoomId = readString(p);
+        case "beforeId" -> beforeId = readLong(p);
+        case "limit" -> limit = (int) readLong(p, 0);
+        default -> skipValue(p);
+      }
+    }
+    expect(p, JsonToken.END_OBJECT);
+    return new HistoryCursor(chatRoomId, beforeId, limit);
+  }
+
+  private static void writePresence(JsonGenerator g, Presence presence) throws IOException {
+    g.writeStartObject();
+    if (presence.getOnline() != null) {
+      g.writeFieldName("online");
+      writeStrings(g, presence.getOnline());
+    }
+    if (presence.getOffline() != null) {
+      g.writeFieldName("offline");
+      writeStrings(g, presence.getOffline());
+    }
+    g.writeEndObject();
+  }
+
+  private static Presence readPresence(JsonParser p) throws IOException {
+    expect(p, JsonToken.START_OBJECT);
+    List<String> online = null;
+    List<String> offline = null;
+    String field;
+    while ((field = p.nextFieldName()) != null) {
+      switch (field) {
+        case "online" -> online = readStrings(p, new ArrayList<>());
+        case "offline" -> offline = readStrings(p, new ArrayList<>());
+        default -> skipValue(p);
+      }
+    }
+    expect(p, JsonToken.END_OBJECT);
+    return new Presence(online, offline);
+  }
+
+  private static void writeFileChunk(JsonGenerator g, FileChunk chunk) throws IOException {
+    g.writeStartObject();
+    writeString(g, "transferId", chunk.getTransferId());
+    writeString(g, "fileName", chunk.getFileName());
+    g.writeNumberField("fileSize", chunk.getFileSize());
+    g.writeNumberField("offset", chunk.getOffset());
+    if (chunk.getData() != null) {
+      g.writeFieldName("data");
+      g.writeBinary(chunk.getData());
+    }
+    g.writeEndObject();
+  }
+
+  private static FileChunk readFileChunk(JsonParser p) throws IOException {
+    expect(p, JsonToken.START_OBJECT);
+    String transferId = null;
+    String fileName = null;
+    long fileSize = 0;
+    long offset = 0;
+    byte[] data = null;
+    String field;
+    while ((field = p.nextFieldName()) != null) {
+      switch (field) {
+        case "transferId" -> transferId = readString(p);
+        case "fileName" -> fileName = readString(p);
+        case "fileSize" -> fileSize = readLong(p, 0);
+        case "offset" -> offset = readLong(p, 0);
+        case "data" -> data = p.nextToken() == JsonToken.VALUE_NULL ? null : p.getBinaryValue();
+        default -> skipValue(p);
+      }
+    }
+    expect(p, JsonToken.END_OBJECT);
+    return new FileChunk(transferId, fileName, fileSize, offset, data);
+  }
+
+  private static void writeString(JsonGenerator g, String field, String value)
+      throws IOException {
+    if (value != null) {
+      g.writeStringField(field, value);
+    }
+  }
+
+  private static void writeEnum(JsonGenerator g, String field, Enum<?> value) throws IOException {
+    if (value != null) {
+      g.writeStringField(field, value.name());
+    }
+  }
+
+  private static void writeStrings(JsonGenerator g, Iterable<String> values) throws IOException {
+    g.writeStartArray();
+    for (String value : values) {
+      g.writeString(value);
+    }
+    g.writeEndArray();
+  }
+
+  private static String readString(JsonParser p) throws IOException {
+    p.nextToken();
+    return scalar(p);
+  }
+
+  private static Long readLong(JsonParser p) throws IOException {
+    p.nextToken();
+    return scalar(p) == null ? null : p.getLongValue();
+  }
+
+  private static long readLong(JsonParser p, long absent) throws IOException {
+    Long value = readLong(p);
+    return value == null ? absent : value;
+  }
+
+  /**
+   * The text of the scalar value the parser is at, or {@code null} for a JSON null.
+   */
+  private static String scalar(JsonParser p) throws IOException {
+    JsonToken token = p.currentToken();
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token == null || !token.isScalarValue()) {
+      throw new JsonParseException(p, "Expected a scalar value but found " + token);
+    }
+    return p.getText();
+  }
+
+  private static <E extends Enum<E>> E readEnum(JsonParser p, Class<E> type) throws IOException {
+    String name = readString(p);
+    try {
+      return name == null ? null : Enum.valueOf(type, name);
+    } catch (IllegalArgumentException e) {
+      throw new JsonParseException(p, "Unknown " + type.getSimpleName() + " " + name);
+    }
+  }
+
+  private static <C extends Collection<String>> C readStrings(JsonParser p, C values)
+      throws IOException {
+    if (p.nextToken() == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    expect(p, JsonToken.START_ARRAY);
+    while (p.nextToken() != JsonToken.END_ARRAY) {
+      values.add(scalar(p));
+    }
+    return values;
+  }
+
+  /**
+   * Fails unless the parser is at {@code token}; input that ends early is a mismatch too.
+   */
+  private static void expect(JsonParser p, JsonToken token) throws IOException {
+    if (p.currentToken() != token) {
+      throw new JsonParseException(p, "Expected " + token + " but found " + p.currentToken());
+    }
+  }
+
+  private static void skipValue(JsonParser p) throws IOException {
+    p.nextToken();
+    p.skipChildren();
+  }
+}
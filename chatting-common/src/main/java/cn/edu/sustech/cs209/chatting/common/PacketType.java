@@ -2,5 +2,7 @@ package cn.edu.sustech.cs209.chatting.common;
 
 public enum PacketType {
   LOGIN, LOGIN_SUCCESS, LOGIN_FAILED, NEW_USER, MESSAGE,
-  CREATE_CHAT, LOGOUT, REGISTER, REGISTER_SUCCESS, REGISTER_FAILED
+  CREATE_CHAT, LOGOUT, REGISTER, REGISTER_SUCCESS, REGISTER_FAILED,
+  FILE_UPLOAD, FILE_ACK, FILE_DOWNLOAD, FILE_CHUNK, CATCH_UP,
+  HISTORY_REQUEST, HISTORY, ROSTER, ROSTER_REQUEST, PRESENCE, SUBSCRIBE, UNSUBSCRIBE
 }
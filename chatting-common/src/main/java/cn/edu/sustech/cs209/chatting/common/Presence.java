@@ -0,0 +1,30 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Who is online. A ROSTER packet lists the online users a client is interested in, or everyone
+ * when it was requested with ROSTER_REQUEST; a PRESENCE packet carries the changes since, batched
+ * and coalesced so a user appears at most once per packet. Clients that offer {@link #CAPABILITY}
+ * at login get these instead of one NEW_USER or LOGOUT packet per change.
+ */
+@Data
+@Builder
+public class Presence {
+
+  public static final String CAPABILITY = "presence/1";
+
+  private List<String> online;
+  private List<String> offline;
+
+  @JsonCreator
+  public Presence(@JsonProperty("online") List<String> online,
+      @JsonProperty("offline") List<String> offline) {
+    this.online = online;
+    this.offline = offline;
+  }
+}
@@ -0,0 +1,19 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+/**
+ * When a {@link ChatLogger} forces appended records to disk.
+ */
+public enum SyncMode {
+  /**
+   * Records are durable once handed to the operating system.
+   */
+  NONE,
+  /**
+   * Every group-committed batch is followed by an fsync.
+   */
+  BATCH,
+  /**
+   * Batches are fsynced together at most once per sync interval.
+   */
+  INTERVAL
+}
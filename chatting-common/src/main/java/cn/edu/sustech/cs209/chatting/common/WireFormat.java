@@ -0,0 +1,40 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import java.util.Collection;
+import lombok.Getter;
+
+@Getter
+public enum WireFormat {
+  JSON_LINES("json"), SMILE_FRAMED("smile/1");
+
+  private final String token;
+
+  WireFormat(String token) {
+    this.token = token;
+  }
+
+  public static WireFormat fromToken(String token) {
+    for (WireFormat format : values()) {
+      if (format.token.equals(token)) {
+        return format;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Picks the first format offered by the peer that is also accepted locally, falling back to
+   * newline-delimited JSON.
+   */
+  public static WireFormat negotiate(Collection<String> offered, Collection<WireFormat> accepted) {
+    if (offered != null) {
+      for (String token : offered) {
+        WireFormat format = fromToken(token);
+        if (format != null && accepted.contains(format)) {
+          return format;
+        }
+      }
+    }
+    return JSON_LINES;
+  }
+}
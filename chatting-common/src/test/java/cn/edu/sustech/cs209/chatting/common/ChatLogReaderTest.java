@@ -0,0 +1,185 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChatLogReaderTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void readsBackRolledAndCompressedSegments() throws Exception {
+    Path path = directory.resolve("message.dat");
+    List<Long> expected = new ArrayList<>();
+    try (ChatLogger<Message> logger = new ChatLogger<>(path,
+        LogOptions.builder().syncMode(SyncMode.NONE).segmentBytes(256 * 1024).build())) {
+      for (long i = 0; i < 5_000; i++) {
+        // One record larger than a compressed block, and one larger than a segment.
+        int length = i == 1_000 ? 100 * 1024 : i == 3_000 ? 300 * 1024 : 64;
+        logger.log(message(i, length));
+        expected.add(i);
+      }
+      logger.seal().join();
+      logger.log(message(5_000, 64)).join();
+      expected.add(5_000L);
+    }
+    awaitCompressed(path);
+
+    ChatLogReader<Message> reader = new ChatLogReader<>(Message.class, path);
+    List<Message> records = reader.readChatLog();
+    assertEquals(expected, timestamps(records));
+    assertEquals(100 * 1024, records.get(1_000).getData().length());
+    assertEquals(300 * 1024, records.get(3_000).getData().length());
+    assertEquals(0, reader.getSkippedRecords());
+  }
+
+  @Test
+  void parallelReadKeepsLogOrder() throws IOException {
+    Path path = directory.resolve("message.dat");
+    int perSegment = 40_000;
+    Path sealed = LogSegments.seal(path, 1);
+    writeMessages(sealed, 0, perSegment);
+    CompressedSegment.compress(sealed, LogSegments.compressed(sealed));
+    writeMessages(path, perSegment, 2 * perSegment);
+    assertTrue(Files.size(path) > 4 * 1024 * 1024, "active segment is large enough to split");
+
+    ChatLogReader<Message> reader = new ChatLogReader<>(Message.class, path);
+    List<Long> read;
+    try (Stream<Message> records = reader.stream().parallel()) {
+      read = records.map(Message::getTimestamp).collect(Collectors.toList());
+    }
+    assertEquals(LongStream.range(0, 2 * perSegment).boxed().toList(), read);
+  }
+
+  @Test
+  void countsMalformedRecordsAsSkipped() throws IOException {
+    Path path = directory.resolve("message.dat");
+    String records = json(0) + "\nnot a record\n\n" + json(1) + "\r\n{\"timestamp\":\n"
+        + json(2) + "\n";
+    Path sealed = LogSegments.seal(path, 1);
+    Files.writeString(sealed, records);
+    CompressedSegment.compress(sealed, LogSegments.compressed(sealed));
+    Files.writeString(path, records);
+
+    ChatLogReader<Message> reader = new ChatLogReader<>(Message.class, path);
+    assertEquals(List.of(0L, 1L, 2L, 0L, 1L, 2L), timestamps(reader.readChatLog()));
+    assertEquals(4, reader.getSkippedRecords());
+  }
+
+  @Test
+  void unreadableBlockLosesOnlyItsRecords() throws IOException {
+    Path path = directory.resolve("message.dat");
+    int sealedRecords = 3_000;
+    Path sealed = LogSegments.seal(path, 1);
+    writeMessages(sealed, 0, sealedRecords);
+    Path compressed = LogSegments.compressed(sealed);
+    CompressedSegment.compress(sealed, compressed);
+    writeMessages(path, sealedRecords, sealedRecords + 10);
+    int lost;
+    try (CompressedSegment segment = CompressedSegment.open(compressed)) {
+      assertTrue(segment.blockCount() >= 3, "segment has several blocks");
+      lost = (int) new String(segment.block(1), StandardCharsets.UTF_8).lines().count();
+    }
+    try (FileChannel channel = FileChannel.open(compressed, StandardOpenOption.WRITE,
+        StandardOpenOption.READ)) {
+      channel.write(ByteBuffer.wrap(new byte[]{0, 0}), blockOffset(channel, 1));
+    }
+
+    List<Long> read = timestamps(new ChatLogReader<>(Message.class, path).readChatLog());
+    assertEquals(sealedRecords + 10 - lost, read.size());
+    assertEquals(0L, read.get(0));
+    assertEquals(sealedRecords + 9L, read.get(read.size() - 1));
+    for (int i = 1; i < read.size(); i++) {
+      assertTrue(read.get(i - 1) < read.get(i), "records stay in log order");
+    }
+  }
+
+  @Test
+  void unreadableSegmentIsSkipped() throws IOException {
+    Path path = directory.resolve("message.dat");
+    Files.writeString(LogSegments.compressed(LogSegments.seal(path, 1)), "x".repeat(64));
+    writeMessages(LogSegments.seal(path, 2), 0, 3);
+    writeMessages(path, 3, 5);
+
+    ChatLogReader<Message> reader = new ChatLogReader<>(Message.class, path);
+    assertEquals(List.of(0L, 1L, 2L, 3L, 4L), timestamps(reader.readChatLog()));
+  }
+
+  @Test
+  void missingLogReadsAsEmpty() {
+    ChatLogReader<Message> reader = new ChatLogReader<>(Message.class,
+        directory.resolve("missing.dat"));
+    assertEquals(List.of(), reader.readChatLog());
+  }
+
+  private static Message message(long timestamp, int length) {
+    return Message.builder().timestamp(timestamp).type(MessageType.TEXT)
+        .data("x".repeat(length)).build();
+  }
+
+  private static String json(long timestamp) {
+    try {
+      return Mappers.JSON.writeValueAsString(message(timestamp, 16));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void writeMessages(Path path, long from, long to) throws IOException {
+    StringBuilder records = new StringBuilder();
+    for (long i = from; i < to; i++) {
+      records.append(json(i)).append('\n');
+    }
+    Files.writeString(path, records, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Where a block starts, read from the index the footer of a compressed segment points to.
+   */
+  private static long blockOffset(FileChannel channel, int block) throws IOException {
+    ByteBuffer footer = ByteBuffer.allocate(Long.BYTES + 2 * Integer.BYTES);
+    channel.read(footer, channel.size() - footer.capacity());
+    ByteBuffer entry = ByteBuffer.allocate(Long.BYTES);
+    channel.read(entry, footer.getLong(0) + (long) block * (Long.BYTES + 2 * Integer.BYTES));
+    return entry.getLong(0);
+  }
+
+  private static List<Long> timestamps(List<Message> records) {
+    return records.stream().map(Message::getTimestamp).toList();
+  }
+
+  /**
+   * Waits for the background compressor to replace every sealed plain segment.
+   */
+  private static void awaitCompressed(Path path) throws Exception {
+    long deadline = System.nanoTime() + 10_000_000_000L;
+    while (hasPlainSegment(path)) {
+      assertTrue(System.nanoTime() < deadline, "sealed segments were not compressed in time");
+      Thread.sleep(20);
+    }
+  }
+
+  private static boolean hasPlainSegment(Path path) throws IOException {
+    try (Stream<Path> siblings = Files.list(path.getParent())) {
+      return siblings.anyMatch(sibling -> sibling.getFileName().toString().endsWith(
+          LogSegments.PLAIN));
+    }
+  }
+}
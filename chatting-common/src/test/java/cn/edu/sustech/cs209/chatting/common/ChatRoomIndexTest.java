@@ -0,0 +1,76 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+class ChatRoomIndexTest {
+
+  @Test
+  void memberKeyIgnoresOrderButNotType() {
+    Set<String> members = new HashSet<>(List.of("bob", "alice", "carol"));
+    String key = ChatRoomIndex.memberKey(ChatType.GROUP_CHAT, members);
+    assertEquals(key, ChatRoomIndex.memberKey(ChatType.GROUP_CHAT, new TreeSet<>(members)));
+    assertNotEquals(key, ChatRoomIndex.memberKey(ChatType.PRIVATE_CHAT, members));
+    assertNotEquals(ChatRoomIndex.memberKey(ChatType.GROUP_CHAT, Set.of("ab", "c")),
+        ChatRoomIndex.memberKey(ChatType.GROUP_CHAT, Set.of("a", "bc")));
+  }
+
+  @Test
+  void addReturnsTheRoomAlreadyHoldingTheMembers() {
+    ChatRoomIndex index = new ChatRoomIndex();
+    ChatRoom first = room("1", "alice", "bob");
+    assertSame(first, index.add(first));
+    assertSame(first, index.add(room("2", "bob", "alice")));
+    assertSame(first, index.add(room("1", "carol")));
+    assertEquals(1, index.size());
+    assertSame(first, index.find(ChatType.GROUP_CHAT, Set.of("bob", "alice")));
+    assertEquals(Set.of("1"), index.roomsOf("alice"));
+    assertTrue(index.isMember("bob", "1"));
+  }
+
+  @Test
+  void putAndRemoveKeepEveryIndexInStep() {
+    ChatRoomIndex index = new ChatRoomIndex();
+    index.put(room("1", "alice", "bob"));
+    index.put(room("1", "alice", "carol"));
+    assertNull(index.find(ChatType.GROUP_CHAT, Set.of("alice", "bob")));
+    assertEquals("1", index.find(ChatType.GROUP_CHAT, Set.of("alice", "carol")).getId());
+    assertFalse(index.isMember("bob", "1"));
+    assertTrue(index.isMember("carol", "1"));
+
+    index.remove("1");
+    assertFalse(index.contains("1"));
+    assertNull(index.find(ChatType.GROUP_CHAT, Set.of("alice", "carol")));
+    assertTrue(index.roomsOf("alice").isEmpty());
+    assertNull(index.get(null));
+  }
+
+  @Test
+  void concurrentAddsOfOneMemberSetKeepOneRoom() {
+    ChatRoomIndex index = new ChatRoomIndex();
+    List<CompletableFuture<ChatRoom>> adds = new ArrayList<>();
+    IntStream.range(0, 16).forEach(i -> adds.add(
+        CompletableFuture.supplyAsync(() -> index.add(room("room-" + i, "alice", "bob")))));
+    Set<ChatRoom> added = new HashSet<>();
+    adds.forEach(add -> added.add(add.join()));
+    assertEquals(1, added.size());
+    assertEquals(1, index.size());
+  }
+
+  private static ChatRoom room(String id, String... users) {
+    return new ChatRoom(id, ChatType.GROUP_CHAT, Set.of(users), 0);
+  }
+}
@@ -0,0 +1,98 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompressedSegmentTest {
+
+  /**
+   * The size a block is cut at, on the first record boundary past it.
+   */
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void emptySegmentHasNoBlocks() throws IOException {
+    try (CompressedSegment segment = roundTrip(new byte[0])) {
+      assertEquals(0, segment.blockCount());
+    }
+  }
+
+  @Test
+  void blockEndingExactlyAtBlockSizeIsCutThere() throws IOException {
+    byte[] content = lines(2 * BLOCK_SIZE / 64, 64);
+    try (CompressedSegment segment = roundTrip(content)) {
+      assertEquals(2, segment.blockCount());
+      assertEquals(BLOCK_SIZE, segment.blockLength(0));
+      assertEquals(BLOCK_SIZE, segment.blockLength(1));
+      assertArrayEquals(content, concatenate(segment));
+    }
+  }
+
+  @Test
+  void oversizeRecordIsKeptWhole() throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    content.writeBytes(lines(1, 32));
+    content.writeBytes(lines(1, 3 * BLOCK_SIZE));
+    content.writeBytes(lines(1, 32));
+    try (CompressedSegment segment = roundTrip(content.toByteArray())) {
+      assertEquals(2, segment.blockCount());
+      assertEquals(32 + 3 * BLOCK_SIZE, segment.blockLength(0));
+      assertEquals(32, segment.blockLength(1));
+      assertArrayEquals(content.toByteArray(), concatenate(segment));
+    }
+  }
+
+  @Test
+  void trailingRecordWithoutSeparatorIsKept() throws IOException {
+    byte[] content = "{\"id\":1}\n{\"id\":2}".getBytes(StandardCharsets.UTF_8);
+    try (CompressedSegment segment = roundTrip(content)) {
+      assertEquals(1, segment.blockCount());
+      assertArrayEquals(content, segment.block(0));
+    }
+  }
+
+  private CompressedSegment roundTrip(byte[] content) throws IOException {
+    Path plain = directory.resolve("log.dat.000001.log");
+    Path compressed = LogSegments.compressed(plain);
+    Files.write(plain, content);
+    CompressedSegment.compress(plain, compressed);
+    assertFalse(Files.exists(plain));
+    return CompressedSegment.open(compressed);
+  }
+
+  private static byte[] concatenate(CompressedSegment segment) throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    for (int i = 0; i < segment.blockCount(); i++) {
+      content.writeBytes(segment.block(i));
+    }
+    return content.toByteArray();
+  }
+
+  /**
+   * {@code count} lines of {@code length} bytes each, separator included.
+   */
+  private static byte[] lines(int count, int length) {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    for (int i = 0; i < count; i++) {
+      byte[] line = new byte[length];
+      for (int j = 0; j < length - 1; j++) {
+        line[j] = (byte) ('a' + (i + j) % 26);
+      }
+      line[length - 1] = '\n';
+      content.writeBytes(line);
+    }
+    return content.toByteArray();
+  }
+}
@@ -0,0 +1,74 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class FrameDecoderTest {
+
+  private final PacketCodec codec = PacketCodec.getInstance();
+
+  @Test
+  void skipsAnyNumberOfBlankLines() throws IOException {
+    byte[] blank = new byte[1_000_000];
+    Arrays.fill(blank, (byte) '\n');
+    FrameDecoder decoder = new FrameDecoder(codec, PacketCodec.DEFAULT_MAX_FRAME_BYTES);
+    ByteBuffer buffer = ByteBuffer.wrap(concat(blank, line("{\"type\":\"LOGIN\"}")));
+    assertEquals(PacketType.LOGIN, decoder.decode(buffer).getType());
+    assertEquals(0, buffer.remaining());
+
+    ByteBuffer onlyBlank = ByteBuffer.wrap(blank);
+    assertNull(decoder.decode(onlyBlank));
+    assertEquals(0, onlyBlank.remaining());
+  }
+
+  @Test
+  void decodesLinesSplitAcrossReads() throws IOException {
+    FrameDecoder decoder = new FrameDecoder(codec, PacketCodec.DEFAULT_MAX_FRAME_BYTES);
+    byte[] bytes = concat(line("{\"type\":\"LOGIN\"}"), "\r\n{\"type\":\"REG".getBytes());
+    ByteBuffer buffer = ByteBuffer.allocate(256);
+    buffer.put(bytes).flip();
+    assertEquals(PacketType.LOGIN, decoder.decode(buffer).getType());
+    assertNull(decoder.decode(buffer));
+    buffer.compact().put("ISTER\"}\r\n".getBytes()).flip();
+    assertEquals(PacketType.REGISTER, decoder.decode(buffer).getType());
+  }
+
+  @Test
+  void decodesSmileFrames() throws IOException {
+    FrameDecoder decoder = new FrameDecoder(codec, PacketCodec.DEFAULT_MAX_FRAME_BYTES);
+    decoder.setFormat(WireFormat.SMILE_FRAMED);
+    byte[] frame = codec.encode(Packet.builder().type(PacketType.LOGIN).build(),
+        WireFormat.SMILE_FRAMED);
+    ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(frame, frame.length - 1));
+    assertNull(decoder.decode(buffer));
+    buffer = ByteBuffer.wrap(frame);
+    assertEquals(PacketType.LOGIN, decoder.decode(buffer).getType());
+  }
+
+  @Test
+  void rejectsOversizeInput() {
+    FrameDecoder lines = new FrameDecoder(codec, 16);
+    assertThrows(IOException.class, () -> lines.decode(ByteBuffer.wrap(new byte[64])));
+    FrameDecoder frames = new FrameDecoder(codec, 16);
+    frames.setFormat(WireFormat.SMILE_FRAMED);
+    assertThrows(IOException.class,
+        () -> frames.decode(ByteBuffer.allocate(8).putInt(0, 1 << 30)));
+  }
+
+  static byte[] line(String json) {
+    return (json + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  static byte[] concat(byte[] first, byte[] second) {
+    byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, bytes, first.length, second.length);
+    return bytes;
+  }
+}
@@ -0,0 +1,128 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class PacketCodecTest {
+
+  private final PacketCodec codec = PacketCodec.getInstance();
+
+  @ParameterizedTest
+  @EnumSource(WireFormat.class)
+  void roundTripsEveryField(WireFormat format) throws IOException {
+    Message message = Message.builder().chatRoomId("room").timestamp(42L).sentBy("alice")
+        .data("hi").type(MessageType.FILE).fileName("a.txt").fileId("f").fileSize(3L).id(7L)
+        .build();
+    Packet packet = Packet.builder()
+        .type(PacketType.MESSAGE)
+        .info("info")
+        .user(User.builder().username("alice").password("pw").build())
+        .chatRoom(ChatRoom.builder().id("room").type(ChatType.GROUP_CHAT)
+            .users(Set.of("alice", "bob")).unreadMessageCount(2).build())
+        .message(message)
+        .capabilities(List.of("smile/1", "json"))
+        .fileChunk(FileChunk.builder().transferId("t").fileName("a.txt").fileSize(3).offset(0)
+            .data(new byte[]{1, 2, 3}).build())
+        .messages(List.of(message, Message.builder().data("bare").build()))
+        .history(HistoryCursor.builder().chatRoomId("room").beforeId(9L).limit(50).build())
+        .presence(Presence.builder().online(List.of("bob")).offline(List.of()).build())
+        .requestId("1")
+        .build();
+
+    Packet decoded = roundTrip(packet, format);
+
+    assertEquals(packet.getType(), decoded.getType());
+    assertEquals(packet.getInfo(), decoded.getInfo());
+    assertEquals(packet.getUser(), decoded.getUser());
+    assertEquals(packet.getChatRoom().getId(), decoded.getChatRoom().getId());
+    assertEquals(packet.getChatRoom().getType(), decoded.getChatRoom().getType());
+    assertEquals(packet.getChatRoom().getUsers(), decoded.getChatRoom().getUsers());
+    assertEquals(2, decoded.getChatRoom().getUnreadMessageCount());
+    assertEquals(message, decoded.getMessage());
+    assertEquals(packet.getCapabilities(), decoded.getCapabilities());
+    assertEquals(packet.getFileChunk().getTransferId(), decoded.getFileChunk().getTransferId());
+    assertEquals(3, decoded.getFileChunk().getFileSize());
+    assertArrayEquals(new byte[]{1, 2, 3}, decoded.getFileChunk().getData());
+    assertEquals(packet.getMessages(), decoded.getMessages());
+    assertEquals(packet.getHistory(), decoded.getHistory());
+    assertEquals(packet.getPresence(), decoded.getPresence());
+    assertEquals("1", decoded.getRequestId());
+  }
+
+  @ParameterizedTest
+  @EnumSource(WireFormat.class)
+  void leavesAbsentFieldsNull(WireFormat format) throws IOException {
+    Packet decoded = roundTrip(Packet.builder().type(PacketType.ROSTER_REQUEST).build(), format);
+    assertEquals(PacketType.ROSTER_REQUEST, decoded.getType());
+    assertNull(decoded.getUser());
+    assertNull(decoded.getMessages());
+    assertNull(decoded.getCapabilities());
+  }
+
+  @Test
+  void readsExplicitNullsAndSkipsUnknownFields() throws IOException {
+    Packet decoded = decode("{\"type\":\"LOGIN\",\"user\":null,\"messages\":null,"
+        + "\"capabilities\":null,\"extra\":{\"nested\":[1,2,{\"a\":[]}]},\"requestId\":\"3\"}");
+    assertEquals(PacketType.LOGIN, decoded.getType());
+    assertNull(decoded.getUser());
+    assertNull(decoded.getMessages());
+    assertEquals("3", decoded.getRequestId());
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "{\"type\":\"LOGIN\",\"capabilities\":\"x\"}",
+      "{\"type\":\"LOGIN\",\"messages\":\"x\"}",
+      "{\"type\":\"LOGIN\",\"messages\":[\"x\"]}",
+      "{\"type\":\"LOGIN\",\"messages\":[null]}",
+      "{\"type\":\"LOGIN\",\"user\":\"bob\"}",
+      "{\"type\":\"LOGIN\",\"user\":[\"bob\"]}",
+      "{\"type\":\"CREATE_CHAT\",\"chatRoom\":\"room\"}",
+      "{\"type\":\"CREATE_CHAT\",\"chatRoom\":{\"users\":\"bob\"}}",
+      "{\"type\":\"CREATE_CHAT\",\"chatRoom\":{\"users\":[{\"a\":1}]}}",
+      "{\"type\":\"HISTORY_REQUEST\",\"history\":{\"limit\":{}}}",
+      "{\"type\":\"LOGIN\",\"info\":{\"a\":1}}",
+      "{\"type\":\"NOT_A_TYPE\"}",
+      "[\"LOGIN\"]",
+      "\"LOGIN\"",
+  })
+  void rejectsValuesOfTheWrongShape(String json) {
+    assertThrows(JsonParseException.class, () -> decode(json));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "{\"type\":\"LOGIN\",\"capabilities\":[\"json\"",
+      "{\"type\":\"LOGIN\",\"messages\":[{\"data\":\"x\"}",
+      "{\"type\":\"LOGIN\",\"user\":{\"username\":\"bob\"",
+      "{\"type\":\"LOGIN\"",
+  })
+  void rejectsTruncatedInput(String json) {
+    assertThrows(IOException.class, () -> decode(json));
+  }
+
+  private Packet roundTrip(Packet packet, WireFormat format) throws IOException {
+    byte[] encoded = codec.encode(packet, format);
+    return format == WireFormat.JSON_LINES
+        ? codec.decode(encoded, 0, encoded.length - 1, format)
+        : codec.decode(encoded, PacketCodec.LENGTH_PREFIX_BYTES,
+            encoded.length - PacketCodec.LENGTH_PREFIX_BYTES, format);
+  }
+
+  private Packet decode(String json) throws IOException {
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    return codec.decode(bytes, 0, bytes.length, WireFormat.JSON_LINES);
+  }
+}
@@ -0,0 +1,42 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import static cn.edu.sustech.cs209.chatting.common.FrameDecoderTest.concat;
+import static cn.edu.sustech.cs209.chatting.common.FrameDecoderTest.line;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class PacketReaderTest {
+
+  private final PacketCodec codec = PacketCodec.getInstance();
+
+  @Test
+  void skipsAnyNumberOfBlankLines() throws IOException {
+    byte[] blank = new byte[1_000_000];
+    Arrays.fill(blank, (byte) '\n');
+    PacketReader reader = reader(concat(blank, line("{\"type\":\"LOGIN\"}")));
+    assertEquals(PacketType.LOGIN, reader.read().getType());
+    assertNull(reader.read());
+    assertNull(reader(blank).read());
+  }
+
+  @Test
+  void switchesFormatBetweenPackets() throws IOException {
+    byte[] frame = codec.encode(Packet.builder().type(PacketType.MESSAGE).build(),
+        WireFormat.SMILE_FRAMED);
+    PacketReader reader = reader(concat(line("{\"type\":\"LOGIN\"}\r"), frame));
+    assertEquals(PacketType.LOGIN, reader.read().getType());
+    reader.setFormat(WireFormat.SMILE_FRAMED);
+    assertEquals(PacketType.MESSAGE, reader.read().getType());
+    assertNull(reader.read());
+  }
+
+  private PacketReader reader(byte[] bytes) {
+    return new PacketReader(new ByteArrayInputStream(bytes), codec,
+        PacketCodec.DEFAULT_MAX_FRAME_BYTES);
+  }
+}
@@ -0,0 +1,19 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+@Data
+public class BlobReference {
+
+  private final String blobId;
+  private final int delta;
+
+  @JsonCreator
+  public BlobReference(@JsonProperty("blobId") String blobId,
+      @JsonProperty("delta") int delta) {
+    this.blobId = blobId;
+    this.delta = delta;
+  }
+}
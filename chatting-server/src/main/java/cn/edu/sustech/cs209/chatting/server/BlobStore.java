@@ -0,0 +1,367 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.ChatLogReader;
+import cn.edu.sustech.cs209.chatting.common.ChatLogger;
+import cn.edu.sustech.cs209.chatting.common.FileChunk;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Content-addressed attachment store. A blob is identified by the SHA-256 of its content and stored
+ * as a manifest of fixed-size chunks, each kept once under its own SHA-256, so identical files and
+ * identical chunks of different files share storage.
+ *
+ * <p>Chunks are reference counted by the manifests (and unfinished uploads) that list them. A blob
+ * is pinned by the logged file messages that carry it; the message log never drops a message, so
+ * a pinned blob is kept for good and only blobs no message ever carried are collectable.
+ * {@link #collectGarbage} drops abandoned uploads and unpinned blobs once they are older than the
+ * grace period, then deletes chunks no manifest refers to. A chunk is stored, retained and deleted
+ * under the same lock, so an upload cannot reuse a chunk that is being deleted.
+ */
+@Slf4j
+public class BlobStore {
+
+  private static final Pattern BLOB_ID = Pattern.compile("[0-9a-f]{64}");
+  private static final int LOCK_STRIPES = 64;
+  private static final int MAX_CACHED_UPLOAD_SIZES = 1024;
+
+  private final Path chunkDirectory;
+  private final Path manifestDirectory;
+  private final Path uploadDirectory;
+  private final Map<String, AtomicInteger> chunkReferences;
+  private final Map<String, AtomicInteger> blobReferences;
+  private final Map<String, List<Chunk>> manifests;
+  private final Map<String, Long> uploadSizes;
+  private final ChatLogger<BlobReference> referenceLog;
+  private final Lock[] locks;
+  private final Lock[] chunkLocks;
+
+  public BlobStore(Path directory) {
+    chunkDirectory = directory.resolve("chunks");
+    manifestDirectory = directory.resolve("manifests");
+    uploadDirectory = directory.resolve("uploads");
+    chunkReferences = new ConcurrentHashMap<>();
+    blobReferences = new ConcurrentHashMap<>();
+    manifests = new ConcurrentHashMap<>();
+    // Sizes of recently active uploads; an evicted size is read back from the upload's manifest.
+    uploadSizes = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        return size() > MAX_CACHED_UPLOAD_SIZES;
+      }
+    });
+    locks = new Lock[LOCK_STRIPES];
+    chunkLocks = new Lock[LOCK_STRIPES];
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      locks[i] = new ReentrantLock();
+      chunkLocks[i] = new ReentrantLock();
+    }
+    Path referencePath = directory.resolve("refs.dat");
+    try {
+      Files.createDirectories(chunkDirectory);
+      Files.createDirectories(manifestDirectory);
+      Files.createDirectories(uploadDirectory);
+      for (Path manifest : list(manifestDirectory)) {
+        readManifest(manifest).forEach(chunk -> retain(chunk.hash()));
+      }
+      for (Path upload : list(uploadDirectory)) {
+        readManifest(upload).forEach(chunk -> retain(chunk.hash()));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    referenceLog = new ChatLogger<>(referencePath);
+    new ChatLogReader<>(BlobReference.class, referencePath).readChatLog().forEach(reference ->
+        blobReferences.computeIfAbsent(reference.getBlobId(), id -> new AtomicInteger())
+            .addAndGet(reference.getDelta()));
+  }
+
+  public boolean contains(String blobId) {
+    return blobId != null && BLOB_ID.matcher(blobId).matches()
+        && Files.exists(manifestDirectory.resolve(blobId));
+  }
+
+  public long size(String blobId) throws IOException {
+    if (contains(blobId)) {
+      return manifest(blobId).stream().mapToLong(Chunk::size).sum();
+    }
+    Long size = uploadSizes.get(blobId);
+    if (size == null) {
+      Path upload = uploadPath(blobId);
+      size = Files.exists(upload) ? readManifest(upload).stream().mapToLong(Chunk::size).sum() : 0;
+      uploadSizes.put(blobId, size);
+    }
+    return size;
+  }
+
+  /**
+   * Stores the chunk at {@code offset} if it starts exactly where the stored prefix ends and
+   * returns the number of bytes stored afterwards. Chunks must be {@link FileChunk#CHUNK_SIZE}
+   * long except for the last one. Returns -1 if the completed content does not hash to
+   * {@code blobId}.
+   */
+  public long append(String blobId, long offset, byte[] data, long fileSize) throws IOException {
+    Lock lock = lockFor(blobId);
+    lock.lock();
+    try {
+      if (contains(blobId)) {
+        return size(blobId);
+      }
+      Path upload = uploadPath(blobId);
+      long size = size(blobId);
+      boolean last = offset + data.length == fileSize;
+      if (offset != size || (!last && data.length != FileChunk.CHUNK_SIZE)
+          || offset + data.length > fileSize) {
+        return size;
+      }
+      String chunkHash = storeChunk(data);
+      try {
+        Files.writeString(upload, chunkHash + ' ' + data.length + '\n', StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      } catch (IOException e) {
+        release(chunkHash);
+        throw e;
+      }
+      size += data.length;
+      uploadSizes.put(blobId, size);
+      if (last) {
+        uploadSizes.remove(blobId);
+        if (!blobId.equals(hash(readManifest(upload)))) {
+          log.warn("Upload of {} does not match its content hash, discarding", blobId);
+          discardUpload(upload);
+          return -1;
+        }
+        Files.move(upload, manifestPath(blobId), StandardCopyOption.ATOMIC_MOVE);
+      }
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public byte[] read(String blobId, long offset, int length) throws IOException {
+    List<Chunk> chunks = manifest(blobId);
+    int index = (int) (offset / FileChunk.CHUNK_SIZE);
+    if (offset % FileChunk.CHUNK_SIZE != 0 || index >= chunks.size()) {
+      throw new IOException("Offset " + offset + " is not a chunk boundary of " + blobId);
+    }
+    byte[] data = Files.readAllBytes(chunkPath(chunks.get(index).hash()));
+    return data.length <= length ? data : Arrays.copyOf(data, length);
+  }
+
+  /**
+   * Pins {@code blobId} for a logged file message. Logged messages are never dropped, so there is
+   * no matching release; the count only tells collection whether any message carries the blob.
+   */
+  public void addReference(String blobId) {
+    if (!contains(blobId)) {
+      return;
+    }
+    blobReferences.computeIfAbsent(blobId, id -> new AtomicInteger()).incrementAndGet();
+    referenceLog.log(new BlobReference(blobId, 1));
+  }
+
+  public void collectGarbage(Duration grace) {
+    Instant cutoff = Instant.now().minus(grace);
+    int blobs = 0;
+    int chunks = 0;
+    try {
+      for (Path upload : list(uploadDirectory)) {
+        if (discardIfOlder(upload, cutoff)) {
+          blobs++;
+        }
+      }
+      for (Path manifest : list(manifestDirectory)) {
+        AtomicInteger references = blobReferences.get(manifest.getFileName().toString());
+        if ((references == null || references.get() <= 0) && discardIfOlder(manifest, cutoff)) {
+          blobs++;
+        }
+      }
+      for (Path chunk : list(chunkDirectory)) {
+        if (deleteIfUnreferenced(chunk, cutoff)) {
+          chunks++;
+        }
+      }
+    } catch (IOException e) {
+      log.error("Blob garbage collection failed: {}", e.getMessage());
+    }
+    log.info("Blob garbage collection removed {} blobs and {} chunks", blobs, chunks);
+  }
+
+  private boolean discardIfOlder(Path manifest, Instant cutoff) throws IOException {
+    String blobId = manifest.getFileName().toString();
+    Lock lock = lockFor(blobId);
+    lock.lock();
+    try {
+      if (!Files.exists(manifest) || !olderThan(manifest, cutoff)) {
+        return false;
+      }
+      discardUpload(manifest);
+      manifests.remove(blobId);
+      uploadSizes.remove(blobId);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean deleteIfUnreferenced(Path chunk, Instant cutoff) throws IOException {
+    String chunkHash = chunk.getFileName().toString();
+    Lock lock = stripe(chunkLocks, chunkHash);
+    lock.lock();
+    try {
+      AtomicInteger references = chunkReferences.get(chunkHash);
+      if ((references != null && references.get() > 0) || !Files.exists(chunk)
+          || !olderThan(chunk, cutoff)) {
+        return false;
+      }
+      Files.delete(chunk);
+      chunkReferences.remove(chunkHash);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stores {@code data} unless an identical chunk is already stored and retains it for the caller.
+   */
+  private String storeChunk(byte[] data) throws IOException {
+    String chunkHash = HexFormat.of().formatHex(digest().digest(data));
+    Path chunk = chunkPath(chunkHash);
+    Lock lock = stripe(chunkLocks, chunkHash);
+    lock.lock();
+    try {
+      if (Files.exists(chunk)) {
+        Files.setLastModifiedTime(chunk, FileTime.from(Instant.now()));
+      } else {
+        Path temp = Files.createTempFile(chunkDirectory, chunkHash, ".tmp");
+        Files.write(temp, data);
+        Files.move(temp, chunk, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+      retain(chunkHash);
+      return chunkHash;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private String hash(List<Chunk> chunks) throws IOException {
+    MessageDigest digest = digest();
+    for (Chunk chunk : chunks) {
+      digest.update(Files.readAllBytes(chunkPath(chunk.hash())));
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private void discardUpload(Path manifest) throws IOException {
+    for (Chunk chunk : readManifest(manifest)) {
+      release(chunk.hash());
+    }
+    Files.deleteIfExists(manifest);
+  }
+
+  private List<Chunk> manifest(String blobId) throws IOException {
+    List<Chunk> chunks = manifests.get(blobId);
+    if (chunks == null) {
+      chunks = readManifest(manifestPath(blobId));
+      manifests.put(blobId, chunks);
+    }
+    return chunks;
+  }
+
+  private Lock lockFor(String blobId) {
+    return stripe(locks, validate(blobId));
+  }
+
+  private void retain(String chunkHash) {
+    chunkReferences.computeIfAbsent(chunkHash, hash -> new AtomicInteger()).incrementAndGet();
+  }
+
+  private void release(String chunkHash) {
+    AtomicInteger references = chunkReferences.get(chunkHash);
+    if (references != null) {
+      references.decrementAndGet();
+    }
+  }
+
+  private static Lock stripe(Lock[] stripes, String key) {
+    return stripes[Math.floorMod(key.hashCode(), stripes.length)];
+  }
+
+  private static List<Chunk> readManifest(Path manifest) throws IOException {
+    List<Chunk> chunks = new ArrayList<>();
+    for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+      int space = line.indexOf(' ');
+      if (space > 0) {
+        chunks.add(new Chunk(line.substring(0, space), Long.parseLong(line.substring(space + 1))));
+      }
+    }
+    return chunks;
+  }
+
+  private static List<Path> list(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> !file.getFileName().toString().endsWith(".tmp")).toList();
+    }
+  }
+
+  private static boolean olderThan(Path file, Instant cutoff) throws IOException {
+    return Files.getLastModifiedTime(file).toInstant().isBefore(cutoff);
+  }
+
+  private static MessageDigest digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private Path manifestPath(String blobId) {
+    return manifestDirectory.resolve(validate(blobId));
+  }
+
+  private Path uploadPath(String blobId) {
+    return uploadDirectory.resolve(validate(blobId));
+  }
+
+  private Path chunkPath(String chunkHash) {
+    return chunkDirectory.resolve(chunkHash);
+  }
+
+  private static String validate(String blobId) {
+    if (blobId == null || !BLOB_ID.matcher(blobId).matches()) {
+      throw new IllegalArgumentException("Invalid blob id: " + blobId);
+    }
+    return blobId;
+  }
+
+  private record Chunk(String hash, long size) {
+
+  }
+}
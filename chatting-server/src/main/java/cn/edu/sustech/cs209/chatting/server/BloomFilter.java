@@ -0,0 +1,75 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free Bloom filter over strings. {@link #mightContain} never returns {@code false} for a
+ * string that was {@link #put}, and returns {@code true} for other strings with roughly the
+ * configured false-positive rate until more than the expected number of strings have been added.
+ */
+final class BloomFilter {
+
+  private final AtomicLongArray bits;
+  private final long bitCount;
+  private final int hashCount;
+
+  BloomFilter(long expectedInsertions, double falsePositiveRate) {
+    long n = Math.max(1, expectedInsertions);
+    long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    bits = new AtomicLongArray((int) Math.max(1, (m + 63) >>> 6));
+    bitCount = (long) bits.length() << 6;
+    hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+  }
+
+  void put(String value) {
+    long hash = hash(value);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashCount; i++) {
+      long bit = index(h1 + i * h2);
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+      long current = bits.get(word);
+      while ((current & mask) == 0 && !bits.weakCompareAndSetVolatile(word, current,
+          current | mask)) {
+        current = bits.get(word);
+      }
+    }
+  }
+
+  boolean mightContain(String value) {
+    long hash = hash(value);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashCount; i++) {
+      long bit = index(h1 + i * h2);
+      if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long index(int combined) {
+    return (combined & Integer.MAX_VALUE) % bitCount;
+  }
+
+  /**
+   * 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer so both halves are
+   * usable as independent hashes.
+   */
+  private static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,37 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Transport between the nodes of a cluster. Messages from one node to another are handed to the
+ * receiver's handler in the order they were sent, and membership changes are reported in order
+ * with the messages, so a node never hears from a peer it has not been told about.
+ */
+public interface Broker extends AutoCloseable {
+
+  /**
+   * Joins the cluster as {@code nodeId}. {@code handler} receives the messages sent to this node
+   * and {@code membership} every set of members, this node included, starting with the current
+   * one.
+   */
+  void join(String nodeId, Consumer<ClusterMessage> handler, Consumer<Set<String>> membership);
+
+  /**
+   * Sends a message to one node; messages to nodes that are not members are dropped.
+   */
+  void send(String nodeId, ClusterMessage message);
+
+  /**
+   * Sends a message to every member but this node.
+   */
+  void broadcast(ClusterMessage message);
+
+  Set<String> members();
+
+  /**
+   * Leaves the cluster.
+   */
+  @Override
+  void close();
+}
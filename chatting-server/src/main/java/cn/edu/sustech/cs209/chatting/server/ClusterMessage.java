@@ -0,0 +1,57 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.ChatRoom;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.User;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * What cluster nodes send each other through a {@link Broker}. Like {@link Packet}, each type only
+ * sets the fields it uses.
+ */
+@Data
+@Builder
+public class ClusterMessage {
+
+  private final ClusterMessageType type;
+  private final String origin;
+  private final String username;
+  private final List<String> usernames;
+  private final Packet packet;
+  private final String requestId;
+  private final boolean success;
+  private final String info;
+  private final List<User> users;
+  private final List<ChatRoom> chatRooms;
+  private final List<Message> messages;
+
+  @JsonCreator
+  public ClusterMessage(@JsonProperty("type") ClusterMessageType type,
+      @JsonProperty("origin") String origin,
+      @JsonProperty("username") String username,
+      @JsonProperty("usernames") List<String> usernames,
+      @JsonProperty("packet") Packet packet,
+      @JsonProperty("requestId") String requestId,
+      @JsonProperty("success") boolean success,
+      @JsonProperty("info") String info,
+      @JsonProperty("users") List<User> users,
+      @JsonProperty("chatRooms") List<ChatRoom> chatRooms,
+      @JsonProperty("messages") List<Message> messages) {
+    this.type = type;
+    this.origin = origin;
+    this.username = username;
+    this.usernames = usernames;
+    this.packet = packet;
+    this.requestId = requestId;
+    this.success = success;
+    this.info = info;
+    this.users = users;
+    this.chatRooms = chatRooms;
+    this.messages = messages;
+  }
+}
@@ -0,0 +1,7 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+public enum ClusterMessageType {
+  USER_ONLINE, USER_OFFLINE, PACKET, DELIVER, CATCH_UP_REQUEST,
+  REGISTER_REQUEST, REGISTER_RESULT, USER_REGISTERED, ADD_ROOM_REQUEST, ADD_ROOM_RESULT,
+  ROOM_CREATED, SYNC, HANDOFF, HANDOFF_COMPLETE
+}
@@ -0,0 +1,413 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.ChatRoom;
+import cn.edu.sustech.cs209.chatting.common.ChatRoomIndex;
+import cn.edu.sustech.cs209.chatting.common.EncodedPacket;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.User;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * This server's membership in a cluster. Rooms are spread over the nodes by consistent hashing:
+ * the node owning a room id logs its messages, fans them out and serves its history, and the node
+ * owning a room's member set decides whether creating it is a duplicate. A user can connect to any
+ * node; packets for rooms owned elsewhere are routed to the owner, and every node keeps a
+ * {@link RemoteConnection} for each user connected elsewhere, so fan-out, catch-up and presence
+ * reach them through the usual {@link Connection} calls.
+ *
+ * <p>Users and rooms are small and replicated to every node, each persisting its own copy; a
+ * username is claimed on the node owning it. When nodes join or leave, each node hands the logged
+ * messages of the rooms it no longer owns to their new owner, page by page, and then tells every
+ * member it is done. Until then the new owner holds back messages and history requests for those
+ * rooms, so new messages get ids above the handed-over ones and history reads are complete.
+ *
+ * <p>Logs are not replicated: when a node leaves, the history of the rooms it owned stays on it and
+ * is unreachable until it rejoins, and the new owner starts those rooms afresh. Blobs likewise
+ * stay on the node they were uploaded to.
+ */
+@Slf4j
+public class ClusterNode {
+
+  private static final int VIRTUAL_NODES = 64;
+  private static final long REQUEST_TIMEOUT_SECONDS = 10;
+
+  private final Server server;
+  @Getter
+  private final String nodeId;
+  private final Broker broker;
+  private final Map<String, CompletableFuture<Boolean>> requests;
+  private final ExecutorService handoffs;
+  private final Set<String> handingOver;
+  private final List<Deferred> deferred;
+  private volatile HashRing ring;
+  private HashRing handoffRing;
+  private boolean member;
+
+  public ClusterNode(Server server, String nodeId, Broker broker) {
+    this.server = server;
+    this.nodeId = nodeId;
+    this.broker = broker;
+    requests = new ConcurrentHashMap<>();
+    handoffs = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "handoff-" + nodeId);
+      thread.setDaemon(true);
+      return thread;
+    });
+    handingOver = new HashSet<>();
+    deferred = new ArrayList<>();
+    ring = new HashRing(Set.of(nodeId), VIRTUAL_NODES);
+  }
+
+  public void start() {
+    broker.join(nodeId, this::receive, this::rebalance);
+  }
+
+  public void close() {
+    broker.close();
+    handoffs.shutdownNow();
+  }
+
+  public boolean owns(String key) {
+    return nodeId.equals(ring.ownerOf(key));
+  }
+
+  /**
+   * Sends a packet from a local user to the node owning the room it concerns and returns
+   * {@code true}, or returns {@code false} when this node should handle it.
+   */
+  public boolean route(Connection connection, Packet packet) {
+    if (connection.getUsername() == null || connection instanceof RemoteConnection) {
+      return false;
+    }
+    String key = switch (packet.getType()) {
+      case MESSAGE -> packet.getMessage() == null ? null : packet.getMessage().getChatRoomId();
+      case HISTORY_REQUEST -> packet.getHistory() == null ? null
+          : packet.getHistory().getChatRoomId();
+      case CREATE_CHAT -> packet.getChatRoom() == null || packet.getChatRoom().getUsers() == null
+          ? null : ChatRoomIndex.memberKey(packet.getChatRoom().getType(),
+          packet.getChatRoom().getUsers());
+      default -> null;
+    };
+    if (key == null || owns(key)) {
+      return false;
+    }
+    broker.send(ring.ownerOf(key), message(ClusterMessageType.PACKET)
+        .username(connection.getUsername()).packet(packet).build());
+    return true;
+  }
+
+  /**
+   * Holds back a message or history request for a room whose history is still being handed over
+   * by its previous owner and returns {@code true}; the packet is handled again once that owner
+   * completes its handoff or leaves.
+   */
+  public synchronized boolean defer(Connection connection, Packet packet) {
+    if (handingOver.isEmpty()) {
+      return false;
+    }
+    String roomId = switch (packet.getType()) {
+      case MESSAGE -> packet.getMessage() == null ? null : packet.getMessage().getChatRoomId();
+      case HISTORY_REQUEST -> packet.getHistory() == null ? null
+          : packet.getHistory().getChatRoomId();
+      default -> null;
+    };
+    if (roomId == null || !handingOver.contains(handoffRing.ownerOf(roomId))) {
+      return false;
+    }
+    deferred.add(new Deferred(connection, packet));
+    return true;
+  }
+
+  public void deliver(String node, List<String> usernames, Packet packet) {
+    broker.send(node, message(ClusterMessageType.DELIVER).usernames(usernames).packet(packet)
+        .build());
+  }
+
+  /**
+   * Claims a username on the node owning it; completes like {@link UserDirectory#register}.
+   */
+  public CompletableFuture<Boolean> register(User user) {
+    String owner = ring.ownerOf(user.getUsername());
+    if (nodeId.equals(owner)) {
+      return claim(user);
+    }
+    return request(owner, message(ClusterMessageType.REGISTER_REQUEST).users(List.of(user)));
+  }
+
+  public void userOnline(String username) {
+    broker.broadcast(message(ClusterMessageType.USER_ONLINE).username(username).build());
+    broker.broadcast(message(ClusterMessageType.CATCH_UP_REQUEST).username(username).build());
+  }
+
+  public void userOffline(String username) {
+    broker.broadcast(message(ClusterMessageType.USER_OFFLINE).username(username).build());
+  }
+
+  /**
+   * Announces a room this node created as the owner of its member set. Completes once the node
+   * owning the room's id has added it, so the messages routed there by id find the room.
+   */
+  public CompletableFuture<Void> roomCreated(ChatRoom chatRoom) {
+    broker.broadcast(message(ClusterMessageType.ROOM_CREATED).chatRooms(List.of(chatRoom)).build());
+    String owner = ring.ownerOf(chatRoom.getId());
+    if (nodeId.equals(owner)) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return request(owner, message(ClusterMessageType.ADD_ROOM_REQUEST)
+        .chatRooms(List.of(chatRoom))).thenApply(added -> null);
+  }
+
+  private CompletableFuture<Boolean> request(String node,
+      ClusterMessage.ClusterMessageBuilder request) {
+    String requestId = UUID.randomUUID().toString();
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    requests.put(requestId, result);
+    broker.send(node, request.requestId(requestId).build());
+    return result.orTimeout(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        .whenComplete((success, e) -> requests.remove(requestId));
+  }
+
+  private CompletableFuture<Boolean> claim(User user) {
+    return server.getUserDirectory().register(user).thenApply(registered -> {
+      if (registered) {
+        server.startDeliveryCursor(user.getUsername());
+        broker.broadcast(message(ClusterMessageType.USER_REGISTERED).users(List.of(user)).build());
+      }
+      return registered;
+    });
+  }
+
+  private void receive(ClusterMessage message) {
+    Map<String, Connection> onlineUsers = server.getOnlineUsers();
+    switch (message.getType()) {
+      case USER_ONLINE -> {
+        onlineUsers.put(message.getUsername(),
+            new RemoteConnection(message.getUsername(), message.getOrigin(), this));
+        server.getPresence().changed(message.getUsername(), true);
+      }
+      case USER_OFFLINE -> {
+        Connection connection = onlineUsers.get(message.getUsername());
+        if (connection instanceof RemoteConnection remote
+            && remote.getNodeId().equals(message.getOrigin())) {
+          dropRemote(message.getUsername(), connection);
+        }
+      }
+      case CATCH_UP_REQUEST -> {
+        Connection connection = onlineUsers.get(message.getUsername());
+        if (connection instanceof RemoteConnection) {
+          server.catchUp(message.getUsername(), connection);
+        }
+      }
+      case PACKET -> {
+        Connection connection = message.getUsername() == null ? null
+            : onlineUsers.get(message.getUsername());
+        if (!(connection instanceof RemoteConnection)) {
+          connection = new RemoteConnection(message.getUsername(), message.getOrigin(), this);
+        }
+        server.getPacketHandler().process(connection, message.getPacket());
+      }
+      case DELIVER -> {
+        EncodedPacket encoded = EncodedPacket.of(message.getPacket(), server.getPacketCodec());
+        for (String username : message.getUsernames()) {
+          Connection connection = onlineUsers.get(username);
+          if (connection == null || connection instanceof RemoteConnection) {
+            continue;
+          }
+          try {
+            connection.send(encoded);
+          } catch (RuntimeException e) {
+            log.error("Failed to deliver packet to {}: {}", username, e.getMessage());
+          }
+        }
+      }
+      case REGISTER_REQUEST -> claim(message.getUsers().get(0)).whenComplete((registered, e) ->
+          broker.send(message.getOrigin(), message(ClusterMessageType.REGISTER_RESULT)
+              .requestId(message.getRequestId()).success(e == null && registered)
+              .info(e == null ? null : e.getMessage()).build()));
+      case ADD_ROOM_REQUEST -> {
+        ChatRoom chatRoom = message.getChatRooms().get(0);
+        if (addRoom(chatRoom)) {
+          server.getPresence().roomCreated(chatRoom);
+        }
+        broker.send(message.getOrigin(), message(ClusterMessageType.ADD_ROOM_RESULT)
+            .requestId(message.getRequestId()).success(true).build());
+      }
+      case REGISTER_RESULT, ADD_ROOM_RESULT -> {
+        CompletableFuture<Boolean> result = requests.get(message.getRequestId());
+        if (result == null) {
+          return;
+        }
+        if (message.getInfo() != null) {
+          result.completeExceptionally(new IllegalStateException(message.getInfo()));
+        } else {
+          result.complete(message.isSuccess());
+        }
+      }
+      case USER_REGISTERED -> message.getUsers().forEach(user -> server.getUserDirectory()
+          .register(user).thenAccept(registered -> {
+            if (registered) {
+              server.startDeliveryCursor(user.getUsername());
+            }
+          }));
+      case ROOM_CREATED -> message.getChatRooms().forEach(chatRoom -> {
+        if (addRoom(chatRoom)) {
+          server.getPresence().roomCreated(chatRoom);
+        }
+      });
+      case SYNC -> {
+        message.getUsers().forEach(server.getUserDirectory()::register);
+        message.getChatRooms().forEach(this::addRoom);
+        for (String username : message.getUsernames()) {
+          if (onlineUsers.putIfAbsent(username,
+              new RemoteConnection(username, message.getOrigin(), this)) == null) {
+            server.getPresence().changed(username, true);
+          }
+        }
+      }
+      case HANDOFF -> server.getMessageLog().importMessages(message.getMessages());
+      case HANDOFF_COMPLETE -> handedOver(Set.of(message.getOrigin()));
+    }
+  }
+
+  /**
+   * Stops waiting for the handoffs of {@code nodes} and handles the packets held back meanwhile;
+   * those for rooms still being handed over are deferred again, in the same order.
+   */
+  private synchronized void handedOver(Set<String> nodes) {
+    if (!handingOver.removeAll(nodes) || deferred.isEmpty()) {
+      return;
+    }
+    List<Deferred> packets = List.copyOf(deferred);
+    deferred.clear();
+    for (Deferred packet : packets) {
+      try {
+        server.getPacketHandler().handlePacket(packet.connection(), packet.packet());
+      } catch (RuntimeException e) {
+        log.error("Failed to handle deferred {}: {}", packet.packet().getType(), e.getMessage());
+      }
+    }
+  }
+
+  private boolean addRoom(ChatRoom chatRoom) {
+    if (server.getChatRooms().add(chatRoom) != chatRoom) {
+      return false;
+    }
+    server.getChatroomWriter().log(chatRoom);
+    return true;
+  }
+
+  private void dropRemote(String username, Connection connection) {
+    server.recordDeliveryCursor(username);
+    if (server.getOnlineUsers().remove(username, connection)) {
+      server.getPresence().changed(username, false);
+    }
+  }
+
+  /**
+   * Adopts a new member set: forgets users connected to nodes that left, brings nodes that joined
+   * up to date, waits for the remaining previous owners to hand rooms over, and hands rooms this
+   * node no longer owns to their new owner off the broker thread.
+   */
+  private synchronized void rebalance(Set<String> members) {
+    HashRing previous = ring;
+    if (member && members.equals(previous.nodes())) {
+      return;
+    }
+    ring = new HashRing(members, VIRTUAL_NODES);
+    // On joining, the rooms were spread over the other members before.
+    Set<String> owners = new HashSet<>(members);
+    owners.remove(nodeId);
+    handoffRing = member ? previous : new HashRing(owners, VIRTUAL_NODES);
+    member = true;
+    owners.retainAll(handoffRing.nodes());
+    handingOver.addAll(owners);
+    Set<String> joined = new HashSet<>(members);
+    joined.removeAll(previous.nodes());
+    Set<String> left = new HashSet<>(previous.nodes());
+    left.removeAll(members);
+    log.info("Cluster members are now {}", members);
+    server.getOnlineUsers().forEach((username, connection) -> {
+      if (connection instanceof RemoteConnection remote && left.contains(remote.getNodeId())) {
+        dropRemote(username, connection);
+      }
+    });
+    joined.remove(nodeId);
+    handedOver(left);
+    if (!joined.isEmpty()) {
+      List<String> local = new ArrayList<>();
+      server.getOnlineUsers().forEach((username, connection) -> {
+        if (!(connection instanceof RemoteConnection)) {
+          local.add(username);
+        }
+      });
+      ClusterMessage sync = message(ClusterMessageType.SYNC)
+          .users(server.getUserDirectory().copy())
+          .chatRooms(List.copyOf(server.getChatRooms().all())).usernames(local).build();
+      joined.forEach(node -> broker.send(node, sync));
+    }
+    HashRing current = ring;
+    try {
+      handoffs.execute(() -> handOff(previous, current));
+    } catch (RejectedExecutionException e) {
+      log.warn("Not handing rooms over, node {} is closing", nodeId);
+    }
+  }
+
+  /**
+   * Streams the logged messages of the rooms owned under {@code previous} but not under
+   * {@code current} to their new owner, one page at a time, then tells every member this node's
+   * handoff is complete, even when it failed, so no owner waits forever.
+   */
+  private void handOff(HashRing previous, HashRing current) {
+    MessageLog messageLog = server.getMessageLog();
+    int batchSize = server.getConfig().getCatchUpBatchSize();
+    int moved = 0;
+    try {
+      for (String roomId : messageLog.roomIds()) {
+        String owner = current.ownerOf(roomId);
+        if (!nodeId.equals(previous.ownerOf(roomId)) || nodeId.equals(owner)) {
+          continue;
+        }
+        Long after = null;
+        MessageLog.Page page;
+        do {
+          page = messageLog.messagesAfter(roomId, after, batchSize);
+          if (page.messages().isEmpty()) {
+            break;
+          }
+          broker.send(owner, message(ClusterMessageType.HANDOFF).messages(page.messages())
+              .build());
+          after = page.messages().get(page.messages().size() - 1).getId();
+        } while (page.hasMore());
+        moved++;
+      }
+    } catch (RuntimeException e) {
+      log.error("Failed to hand rooms over: {}", e.getMessage());
+    } finally {
+      broker.broadcast(message(ClusterMessageType.HANDOFF_COMPLETE).build());
+    }
+    if (moved > 0) {
+      log.info("Handed {} rooms over to their new owners", moved);
+    }
+  }
+
+  private ClusterMessage.ClusterMessageBuilder message(ClusterMessageType type) {
+    return ClusterMessage.builder().type(type).origin(nodeId);
+  }
+
+  private record Deferred(Connection connection, Packet packet) {
+  }
+}
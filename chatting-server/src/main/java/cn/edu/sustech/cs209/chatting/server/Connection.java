@@ -0,0 +1,50 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.EncodedPacket;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+
+public interface Connection {
+
+  String getUsername();
+
+  void setUsername(String username);
+
+  WireFormat getWireFormat();
+
+  /**
+   * Sends {@code announcement} in the current wire format and every later packet in
+   * {@code format}. The switch takes effect before the announcement is queued, so a packet sent in
+   * answer to what the peer does on receiving it is already encoded in the new format.
+   */
+  void setWireFormat(WireFormat format, Packet announcement);
+
+  /**
+   * Decodes every packet received after the current one in {@code format}. Must be called on the
+   * thread reading the connection, while it handles a packet.
+   */
+  void setInboundFormat(WireFormat format);
+
+  void sendPacket(Packet packet);
+
+  void send(EncodedPacket packet);
+
+  /**
+   * Sends a packet carrying log entries from {@code sequence} on, and keeps track of it until it
+   * has been written to the peer.
+   */
+  default void send(EncodedPacket packet, long sequence) {
+    send(packet);
+  }
+
+  /**
+   * The lowest sequence sent with {@link #send(EncodedPacket, long)} that has not been written to
+   * the peer, because it is still queued or was dropped, or {@link Long#MAX_VALUE} if there is
+   * none.
+   */
+  default long firstUnwritten() {
+    return Long.MAX_VALUE;
+  }
+
+  void close();
+}
@@ -0,0 +1,34 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public final class ConnectionExecutors {
+
+  private ConnectionExecutors() {
+  }
+
+  public static ExecutorService forMode(ServerMode mode) {
+    if (mode == ServerMode.VIRTUAL) {
+      return virtualThreadPerTask();
+    }
+    return Executors.newCachedThreadPool();
+  }
+
+  /**
+   * Looked up reflectively so the server still builds for Java 17; on a runtime without virtual
+   * threads this falls back to one platform thread per connection.
+   */
+  public static ExecutorService virtualThreadPerTask() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      log.warn("Virtual threads are not available on this runtime, using platform threads");
+      return Executors.newCachedThreadPool();
+    }
+  }
+}
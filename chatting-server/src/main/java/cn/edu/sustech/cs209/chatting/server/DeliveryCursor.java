@@ -0,0 +1,19 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+@Data
+public class DeliveryCursor {
+
+  private final String username;
+  private final long sequence;
+
+  @JsonCreator
+  public DeliveryCursor(@JsonProperty("username") String username,
+      @JsonProperty("sequence") long sequence) {
+    this.username = username;
+    this.sequence = sequence;
+  }
+}
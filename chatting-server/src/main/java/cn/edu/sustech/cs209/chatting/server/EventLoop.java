@@ -0,0 +1,140 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class EventLoop implements Runnable {
+
+  private final Server server;
+  private final Selector selector;
+  private final Queue<Runnable> tasks;
+  private final PriorityQueue<ScheduledTask> scheduledTasks;
+  private final Thread thread;
+
+  public EventLoop(String name, Server server) {
+    this.server = server;
+    tasks = new ConcurrentLinkedQueue<>();
+    scheduledTasks = new PriorityQueue<>(Comparator.comparingLong(ScheduledTask::deadline));
+    try {
+      selector = Selector.open();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    thread = new Thread(this, name);
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  public boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  public void execute(Runnable task) {
+    tasks.add(task);
+    if (!inEventLoop()) {
+      selector.wakeup();
+    }
+  }
+
+  public void schedule(Runnable task, long delayNanos) {
+    long deadline = System.nanoTime() + delayNanos;
+    execute(() -> scheduledTasks.add(new ScheduledTask(deadline, task)));
+  }
+
+  public void register(SocketChannel channel) {
+    execute(() -> {
+      try {
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new NioConnection(channel, key, this, server));
+      } catch (IOException e) {
+        log.error(e.getMessage());
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+          // already failing, nothing left to release
+        }
+      }
+    });
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (Throwable e) {
+        log.error("Event loop task failed", e);
+      }
+    }
+  }
+
+  private void runScheduledTasks() {
+    long now = System.nanoTime();
+    while (!scheduledTasks.isEmpty() && scheduledTasks.peek().deadline() - now <= 0) {
+      tasks.add(scheduledTasks.poll().task());
+    }
+    runTasks();
+  }
+
+  private long selectTimeoutMillis() {
+    if (scheduledTasks.isEmpty()) {
+      return 0;
+    }
+    long remaining = scheduledTasks.peek().deadline() - System.nanoTime();
+    return remaining <= 0 ? -1 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+  }
+
+  @Override
+  public void run() {
+    while (!thread.isInterrupted()) {
+      try {
+        long timeout = selectTimeoutMillis();
+        if (timeout < 0) {
+          selector.selectNow();
+        } else {
+          selector.select(timeout);
+        }
+      } catch (IOException e) {
+        log.error(e.getMessage());
+        break;
+      }
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        NioConnection connection = (NioConnection) key.attachment();
+        // Whatever one connection throws must not take down the others sharing this thread.
+        try {
+          if (key.isValid() && key.isReadable()) {
+            connection.onReadable();
+          }
+          if (key.isValid() && key.isWritable()) {
+            connection.onWritable();
+          }
+        } catch (Throwable e) {
+          log.error("Closing connection of {} after failure", connection.getUsername(), e);
+          connection.close();
+        }
+      }
+      runTasks();
+      runScheduledTasks();
+    }
+  }
+
+  private record ScheduledTask(long deadline, Runnable task) {
+
+  }
+}
@@ -0,0 +1,55 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent-hash ring. Every node is placed at {@code virtualNodes} points, and a key
+ * belongs to the first node at or after its own hash, so adding or removing a node only moves the
+ * keys between it and its neighbours.
+ */
+public final class HashRing {
+
+  private final NavigableMap<Long, String> points;
+  private final Set<String> nodes;
+
+  public HashRing(Collection<String> nodes, int virtualNodes) {
+    points = new TreeMap<>();
+    this.nodes = Set.copyOf(new TreeSet<>(nodes));
+    for (String node : this.nodes) {
+      for (int i = 0; i < virtualNodes; i++) {
+        points.put(hash(node + "#" + i), node);
+      }
+    }
+  }
+
+  public String ownerOf(String key) {
+    if (points.isEmpty()) {
+      return null;
+    }
+    Map.Entry<Long, String> owner = points.ceilingEntry(hash(key));
+    return owner != null ? owner.getValue() : points.firstEntry().getValue();
+  }
+
+  public Set<String> nodes() {
+    return nodes;
+  }
+
+  private static long hash(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(key.getBytes(StandardCharsets.UTF_8));
+      return ByteBuffer.wrap(digest).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.Mappers;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Broker between nodes running in the same JVM, for tests and local experiments. Every node has a
+ * single inbox thread, which gives the ordering {@link Broker} promises. Messages are copied
+ * through JSON on the way, as they would be over the network, so nodes never share objects.
+ */
+@Slf4j
+public class InProcessBroker implements Broker {
+
+  private static final ObjectWriter WRITER = Mappers.JSON.writerFor(ClusterMessage.class);
+  private static final ObjectReader READER = Mappers.JSON.readerFor(ClusterMessage.class);
+
+  private final Hub hub;
+  private String nodeId;
+  private Consumer<ClusterMessage> handler;
+  private Consumer<Set<String>> membership;
+  private ExecutorService inbox;
+
+  public InProcessBroker(Hub hub) {
+    this.hub = hub;
+  }
+
+  @Override
+  public void join(String nodeId, Consumer<ClusterMessage> handler,
+      Consumer<Set<String>> membership) {
+    this.nodeId = nodeId;
+    this.handler = handler;
+    this.membership = membership;
+    inbox = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "broker-" + nodeId);
+      thread.setDaemon(true);
+      return thread;
+    });
+    hub.add(this);
+  }
+
+  @Override
+  public void send(String nodeId, ClusterMessage message) {
+    InProcessBroker target = hub.nodes.get(nodeId);
+    if (target == null) {
+      log.warn("Dropping {} for unknown node {}", message.getType(), nodeId);
+      return;
+    }
+    byte[] bytes;
+    try {
+      bytes = WRITER.writeValueAsBytes(message);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    target.inbox.execute(() -> {
+      try {
+        target.handler.accept(READER.readValue(bytes));
+      } catch (IOException | RuntimeException e) {
+        log.error("Failed to handle {} on {}: {}", message.getType(), nodeId, e.getMessage());
+      }
+    });
+  }
+
+  @Override
+  public void broadcast(ClusterMessage message) {
+    for (String member : hub.nodes.keySet()) {
+      if (!member.equals(nodeId)) {
+        send(member, message);
+      }
+    }
+  }
+
+  @Override
+  public Set<String> members() {
+    return new TreeSet<>(hub.nodes.keySet());
+  }
+
+  @Override
+  public void close() {
+    if (hub.nodes.remove(nodeId, this)) {
+      hub.announce();
+      inbox.shutdown();
+    }
+  }
+
+  /**
+   * The nodes that can reach each other; share one hub between the brokers of a cluster.
+   */
+  public static final class Hub {
+
+    private final Map<String, InProcessBroker> nodes = new ConcurrentHashMap<>();
+
+    /**
+     * Tells a joining node the members before it becomes reachable, so nothing sent to it can
+     * overtake its first membership.
+     */
+    private synchronized void add(InProcessBroker node) {
+      Set<String> members = new TreeSet<>(nodes.keySet());
+      members.add(node.nodeId);
+      node.inbox.execute(() -> node.membership.accept(members));
+      nodes.put(node.nodeId, node);
+      announce(node);
+    }
+
+    private synchronized void announce() {
+      announce(null);
+    }
+
+    private void announce(InProcessBroker skipped) {
+      Set<String> members = new TreeSet<>(nodes.keySet());
+      for (InProcessBroker node : nodes.values()) {
+        if (node != skipped) {
+          node.inbox.execute(() -> node.membership.accept(members));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A fixed set of single-thread executors for blocking storage work, such as file transfers and
+ * log reads, that must not run on an I/O thread. Tasks are spread over the threads by key, so
+ * the tasks of one key run one at a time in the order they were submitted.
+ */
+@Slf4j
+public class KeyedExecutor implements AutoCloseable {
+
+  private final ExecutorService[] executors;
+
+  public KeyedExecutor(String name, int threads) {
+    executors = new ExecutorService[threads];
+    for (int i = 0; i < threads; i++) {
+      String threadName = name + "-" + i;
+      executors[i] = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, threadName);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  public void execute(String key, Runnable task) {
+    int index = key == null ? 0 : Math.floorMod(key.hashCode(), executors.length);
+    executors[index].execute(() -> {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        log.error("Storage task for {} failed", key, e);
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+    for (ExecutorService executor : executors) {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.ChatRoom;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * One record of the {@link MessageLog}: either a forwarded message or a newly created chat room.
+ * Messages handed over by another node are marked {@code imported}.
+ */
+@Data
+@Builder
+public class LogEntry {
+
+  private final long sequence;
+  private final String sender;
+  private final ChatRoom chatRoom;
+  private final Message message;
+  @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+  private final boolean imported;
+
+  @JsonCreator
+  public LogEntry(@JsonProperty("sequence") long sequence,
+      @JsonProperty("sender") String sender,
+      @JsonProperty("chatRoom") ChatRoom chatRoom,
+      @JsonProperty("message") Message message,
+      @JsonProperty("imported") boolean imported) {
+    this.sequence = sequence;
+    this.sender = sender;
+    this.chatRoom = chatRoom;
+    this.message = message;
+    this.imported = imported;
+  }
+
+  @JsonIgnore
+  public String getRoomId() {
+    return chatRoom != null ? chatRoom.getId() : message.getChatRoomId();
+  }
+}
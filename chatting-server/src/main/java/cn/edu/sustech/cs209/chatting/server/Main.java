@@ -6,8 +6,12 @@ import lombok.extern.slf4j.Slf4j;
 public class Main {
 
   public static void main(String[] args) {
-    Server server = new Server(2345);
+    ServerConfig config = ServerConfig.fromSystemProperties();
+    log.info("Starting server on port {} in {} mode", config.getPort(), config.getMode());
+    if (config.getNodeId() != null) {
+      log.info("Joining cluster as {} on port {}", config.getNodeId(), config.getClusterPort());
+    }
+    Server server = new Server(config);
     server.start();
-    log.info("Starting server");
   }
 }
@@ -0,0 +1,602 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.ChatRoom;
+import cn.edu.sustech.cs209.chatting.common.Histogram;
+import cn.edu.sustech.cs209.chatting.common.LogOptions;
+import cn.edu.sustech.cs209.chatting.common.Mappers;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.Metrics;
+import cn.edu.sustech.cs209.chatting.common.SyncMode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Durable, append-only log of the messages and chat rooms the server forwards. Rooms are spread
+ * over a fixed number of shard files, and every entry carries a server-wide sequence number, so a
+ * user who comes back online can be sent everything after the last sequence delivered to them.
+ *
+ * <p>Each shard keeps a sparse in-memory index from sequence to file position, so catching up only
+ * reads the tail of the shard. A torn record left by a crash is truncated away on startup; a
+ * corrupt record followed by intact ones is skipped, on startup and when reading.
+ *
+ * <p>A message's id is its sequence, raised if needed above the last id of its room, so ids keep
+ * growing within a room even when the room's messages were logged by another node before.
+ *
+ * <p>Appended entries are forced to disk by a sync thread according to the {@link SyncMode}, one
+ * fsync per shard for whatever accumulated since the previous one. An entry counts towards
+ * {@link #deliveredThrough()} only once it is durable and has been released.
+ */
+@Slf4j
+public class MessageLog {
+
+  private static final int INDEX_INTERVAL = 128;
+
+  private final ObjectWriter writer;
+  private final ObjectReader reader;
+  private final Shard[] shards;
+  private final AtomicLong sequence;
+  private final NavigableSet<Long> inFlight;
+  private final Lock sequenceLock;
+  private final Map<String, RoomIndex> rooms;
+  private final Histogram appendMicros;
+  private final Histogram syncMicros;
+  private final SyncMode syncMode;
+  private final long syncIntervalNanos;
+  private final Lock syncLock;
+  private final Condition unsynced;
+  private List<PendingSync> syncQueue;
+
+  public MessageLog(Path directory, int shardCount) {
+    this(directory, shardCount, LogOptions.builder().build());
+  }
+
+  public MessageLog(Path directory, int shardCount, LogOptions options) {
+    writer = Mappers.JSON.writer();
+    reader = Mappers.JSON.readerFor(LogEntry.class);
+    shards = new Shard[shardCount];
+    inFlight = new ConcurrentSkipListSet<>();
+    sequenceLock = new ReentrantLock();
+    rooms = new ConcurrentHashMap<>();
+    appendMicros = Metrics.histogram("chatting_message_log_append_micros",
+        Histogram.LATENCY_MICROS);
+    syncMicros = Metrics.histogram("chatting_message_log_sync_micros", Histogram.LATENCY_MICROS);
+    syncMode = options.getSyncMode();
+    syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(options.getSyncIntervalMillis());
+    syncLock = new ReentrantLock();
+    unsynced = syncLock.newCondition();
+    syncQueue = new ArrayList<>();
+    long last = 0;
+    try {
+      Files.createDirectories(directory);
+      for (int i = 0; i < shardCount; i++) {
+        shards[i] = new Shard(directory.resolve(String.format("shard-%02d.log", i)));
+        last = Math.max(last, shards[i].recover());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    sequence = new AtomicLong(last);
+    if (syncMode != SyncMode.NONE) {
+      Thread syncer = new Thread(this::syncLoop, "message-log-sync");
+      syncer.setDaemon(true);
+      syncer.start();
+    }
+  }
+
+  /**
+   * Appends an entry and returns a future of its sequence number that completes once the entry is
+   * durable. The entry stays in flight, and is excluded from {@link #deliveredThrough()}, until
+   * {@link #release} is called once it has been fanned out; when it cannot be made durable the
+   * future fails and the entry is released.
+   */
+  public CompletableFuture<Long> append(String sender, ChatRoom chatRoom, Message message) {
+    String roomId = chatRoom != null ? chatRoom.getId() : message.getChatRoomId();
+    long start = System.nanoTime();
+    Shard shard = shardFor(roomId);
+    long appended = shard.append(sender, chatRoom, message, false);
+    appendMicros.recordSince(start);
+    return durable(shard, appended);
+  }
+
+  /**
+   * Appends messages another node logged, keeping their ids. Messages whose id is already logged
+   * for their room are skipped; the others are merged into the room by id, so a handoff arriving
+   * after the room got newer messages here still brings its whole history. Imported entries were
+   * delivered by the node that logged them, so catch-up leaves them out.
+   */
+  public int importMessages(List<Message> messages) {
+    int imported = 0;
+    for (Message message : messages) {
+      if (message.getChatRoomId() == null || message.getId() == null) {
+        continue;
+      }
+      RoomIndex index = rooms.get(message.getChatRoomId());
+      if (index != null) {
+        synchronized (index) {
+          if (index.contains(message.getId())) {
+            continue;
+          }
+        }
+      }
+      Shard shard = shardFor(message.getChatRoomId());
+      durable(shard, shard.append(message.getSentBy(), null, message, true))
+          .thenAccept(this::release);
+      imported++;
+    }
+    return imported;
+  }
+
+  /**
+   * Ids of the rooms with at least one logged message.
+   */
+  public Set<String> roomIds() {
+    return Set.copyOf(rooms.keySet());
+  }
+
+  /**
+   * Returns up to {@code limit} messages of a room, oldest first, that follow the message with id
+   * {@code afterId}, or the start of the room when no id is given; {@link Page#hasMore()} tells
+   * whether newer messages exist.
+   */
+  public Page messagesAfter(String roomId, Long afterId, int limit) {
+    RoomIndex index = rooms.get(roomId);
+    if (index == null) {
+      return new Page(List.of(), false);
+    }
+    long[] positions;
+    int[] lengths;
+    boolean hasMore;
+    synchronized (index) {
+      int start = afterId != null ? index.lowerBound(afterId + 1) : 0;
+      int end = (int) Math.min(index.size, (long) start + limit);
+      positions = Arrays.copyOfRange(index.positions, start, end);
+      lengths = Arrays.copyOfRange(index.lengths, start, end);
+      hasMore = end < index.size;
+    }
+    return new Page(load(roomId, positions, lengths), hasMore);
+  }
+
+  public void release(long sequence) {
+    inFlight.remove(sequence);
+  }
+
+  public long lastSequence() {
+    return sequence.get();
+  }
+
+  /**
+   * The highest sequence up to which every entry has been fanned out to whoever was online.
+   */
+  public long deliveredThrough() {
+    sequenceLock.lock();
+    try {
+      return inFlight.isEmpty() ? sequence.get() : inFlight.first() - 1;
+    } finally {
+      sequenceLock.unlock();
+    }
+  }
+
+  private CompletableFuture<Long> durable(Shard shard, long appended) {
+    if (syncMode == SyncMode.NONE) {
+      return CompletableFuture.completedFuture(appended);
+    }
+    CompletableFuture<Long> future = new CompletableFuture<>();
+    syncLock.lock();
+    try {
+      syncQueue.add(new PendingSync(shard, appended, future));
+      unsynced.signal();
+    } finally {
+      syncLock.unlock();
+    }
+    return future;
+  }
+
+  /**
+   * Forces the shards written since the last pass and completes their entries in append order.
+   * Under {@link SyncMode#INTERVAL} entries accumulate until the interval has passed.
+   */
+  private void syncLoop() {
+    long nextSync = System.nanoTime() + syncIntervalNanos;
+    while (true) {
+      List<PendingSync> batch;
+      syncLock.lock();
+      try {
+        while (syncQueue.isEmpty()) {
+          unsynced.await();
+        }
+        if (syncMode == SyncMode.INTERVAL) {
+          long remaining;
+          while ((remaining = nextSync - System.nanoTime()) > 0) {
+            unsynced.awaitNanos(remaining);
+          }
+        }
+        batch = syncQueue;
+        syncQueue = new ArrayList<>();
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        syncLock.unlock();
+      }
+      Map<Shard, Boolean> forced = new IdentityHashMap<>();
+      IOException failure = null;
+      for (PendingSync pending : batch) {
+        if (forced.containsKey(pending.shard())) {
+          continue;
+        }
+        long start = System.nanoTime();
+        try {
+          pending.shard().channel.force(false);
+          forced.put(pending.shard(), true);
+        } catch (IOException e) {
+          log.error("Failed to sync {}: {}", pending.shard().path, e.getMessage());
+          forced.put(pending.shard(), false);
+          failure = e;
+        }
+        syncMicros.recordSince(start);
+      }
+      nextSync = System.nanoTime() + syncIntervalNanos;
+      for (PendingSync pending : batch) {
+        if (forced.get(pending.shard())) {
+          pending.future().complete(pending.sequence());
+        } else {
+          release(pending.sequence());
+          pending.future().completeExceptionally(failure);
+        }
+      }
+    }
+  }
+
+  private long nextSequence() {
+    sequenceLock.lock();
+    try {
+      long next = sequence.incrementAndGet();
+      inFlight.add(next);
+      return next;
+    } finally {
+      sequenceLock.unlock();
+    }
+  }
+
+  /**
+   * Passes the entries with a sequence in {@code (after, upTo]} that match {@code filter} to
+   * {@code sink} as they are read, one shard after another. Entries come in sequence order within
+   * a shard, and a room's entries all live in one shard, so each room's entries arrive in order.
+   */
+  public void read(long after, long upTo, Predicate<LogEntry> filter, Consumer<LogEntry> sink) {
+    if (after >= upTo) {
+      return;
+    }
+    for (Shard shard : shards) {
+      try {
+        shard.read(after, upTo, filter, sink);
+      } catch (IOException e) {
+        log.error("Failed to read {}: {}", shard.path, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Returns up to {@code limit} messages of a room, oldest first, that precede the message with id
+   * {@code beforeId}, or the end of the room when no id is given.
+   */
+  public Page history(String roomId, Long beforeId, int limit) {
+    RoomIndex index = rooms.get(roomId);
+    if (index == null) {
+      return new Page(List.of(), false);
+    }
+    long[] positions;
+    int[] lengths;
+    boolean hasMore;
+    synchronized (index) {
+      int end = beforeId != null ? index.lowerBound(beforeId) : index.size;
+      int start = Math.max(0, end - limit);
+      positions = Arrays.copyOfRange(index.positions, start, end);
+      lengths = Arrays.copyOfRange(index.lengths, start, end);
+      hasMore = start > 0;
+    }
+    return new Page(load(roomId, positions, lengths), hasMore);
+  }
+
+  private List<Message> load(String roomId, long[] positions, int[] lengths) {
+    Shard shard = shardFor(roomId);
+    List<Message> messages = new ArrayList<>(positions.length);
+    try (FileChannel in = FileChannel.open(shard.path, StandardOpenOption.READ)) {
+      for (int i = 0; i < positions.length; i++) {
+        ByteBuffer record = ByteBuffer.allocate(lengths[i]);
+        while (record.hasRemaining()) {
+          if (in.read(record, positions[i] + record.position()) < 0) {
+            throw new IOException("Unexpected end of " + shard.path);
+          }
+        }
+        LogEntry entry = reader.readValue(record.array());
+        Message message = entry.getMessage();
+        if (message.getId() == null) {
+          message.setId(entry.getSequence());
+        }
+        messages.add(message);
+      }
+    } catch (IOException e) {
+      log.error("Failed to read history of {}: {}", roomId, e.getMessage());
+    }
+    return messages;
+  }
+
+  private void index(LogEntry entry, long position, int length) {
+    Message message = entry.getMessage();
+    if (message == null) {
+      return;
+    }
+    RoomIndex index = rooms.computeIfAbsent(message.getChatRoomId(), id -> new RoomIndex());
+    synchronized (index) {
+      index.add(message.getId() != null ? message.getId() : entry.getSequence(), position,
+          length);
+    }
+  }
+
+  private Shard shardFor(String roomId) {
+    return shards[Math.floorMod(roomId.hashCode(), shards.length)];
+  }
+
+  private static byte[] readRecord(InputStream in, ByteArrayOutputStream line) throws IOException {
+    line.reset();
+    int b;
+    while ((b = in.read()) >= 0) {
+      if (b == '\n') {
+        return line.toByteArray();
+      }
+      line.write(b);
+    }
+    return null;
+  }
+
+  private record PendingSync(Shard shard, long sequence, CompletableFuture<Long> future) {
+  }
+
+  /**
+   * A page of a room's history, oldest first, and whether older messages exist.
+   */
+  public record Page(List<Message> messages, boolean hasMore) {
+  }
+
+  /**
+   * Id and location of every message of one room in increasing id order. Messages logged here
+   * come in that order; imported ones may be older and are inserted in place.
+   */
+  private static final class RoomIndex {
+
+    private long[] ids = new long[16];
+    private long[] positions = new long[16];
+    private int[] lengths = new int[16];
+    private int size;
+
+    void add(long id, long position, int length) {
+      int at = id > lastId() ? size : lowerBound(id);
+      if (at < size && ids[at] == id) {
+        return;
+      }
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+        positions = Arrays.copyOf(positions, size * 2);
+        lengths = Arrays.copyOf(lengths, size * 2);
+      }
+      System.arraycopy(ids, at, ids, at + 1, size - at);
+      System.arraycopy(positions, at, positions, at + 1, size - at);
+      System.arraycopy(lengths, at, lengths, at + 1, size - at);
+      ids[at] = id;
+      positions[at] = position;
+      lengths[at] = length;
+      size++;
+    }
+
+    boolean contains(long id) {
+      int at = lowerBound(id);
+      return at < size && ids[at] == id;
+    }
+
+    long lastId() {
+      return size == 0 ? 0 : ids[size - 1];
+    }
+
+    int lowerBound(long id) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (ids[mid] < id) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
+  private final class Shard {
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Lock lock;
+    private final List<long[]> index;
+    private volatile long committed;
+    private int sinceCheckpoint;
+
+    Shard(Path path) throws IOException {
+      this.path = path;
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      lock = new ReentrantLock();
+      index = new ArrayList<>();
+    }
+
+    /**
+     * Indexes the shard and returns its last sequence. Records that do not parse are skipped when
+     * an intact record follows them; only the ones at the end, which a crash can leave torn, are
+     * truncated away.
+     */
+    long recover() throws IOException {
+      long position = 0;
+      long end = 0;
+      long last = 0;
+      int corrupt = 0;
+      int skipped = 0;
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      try (InputStream in = new BufferedInputStream(Channels.newInputStream(
+          FileChannel.open(path, StandardOpenOption.READ)))) {
+        byte[] record;
+        while ((record = readRecord(in, line)) != null) {
+          LogEntry entry;
+          try {
+            entry = reader.readValue(record);
+          } catch (IOException e) {
+            corrupt++;
+            position += record.length + 1;
+            continue;
+          }
+          skipped += corrupt;
+          corrupt = 0;
+          checkpoint(entry.getSequence(), position);
+          index(entry, position, record.length);
+          position += record.length + 1;
+          end = position;
+          last = entry.getSequence();
+        }
+      }
+      if (skipped > 0) {
+        log.warn("Skipped {} corrupt records in {}", skipped, path);
+      }
+      if (end < channel.size()) {
+        log.warn("Truncating torn record at {} of {}", end, path);
+        channel.truncate(end);
+      }
+      committed = end;
+      return last;
+    }
+
+    long append(String sender, ChatRoom chatRoom, Message message, boolean imported) {
+      lock.lock();
+      long next = nextSequence();
+      try {
+        if (message != null && !imported) {
+          RoomIndex room = rooms.get(message.getChatRoomId());
+          long lastId;
+          if (room == null) {
+            lastId = 0;
+          } else {
+            synchronized (room) {
+              lastId = room.lastId();
+            }
+          }
+          message.setId(Math.max(next, lastId + 1));
+        }
+        LogEntry entry = new LogEntry(next, sender, chatRoom, message, imported);
+        byte[] json = writer.writeValueAsBytes(entry);
+        ByteBuffer record = ByteBuffer.allocate(json.length + 1).put(json).put((byte) '\n');
+        record.flip();
+        long position = committed;
+        while (record.hasRemaining()) {
+          position += channel.write(record, position);
+        }
+        checkpoint(next, committed);
+        index(entry, committed, json.length);
+        committed = position;
+        return next;
+      } catch (IOException e) {
+        inFlight.remove(next);
+        throw new RuntimeException(e);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void checkpoint(long entrySequence, long position) {
+      if (index.isEmpty() || ++sinceCheckpoint >= INDEX_INTERVAL) {
+        index.add(new long[]{entrySequence, position});
+        sinceCheckpoint = 0;
+      }
+    }
+
+    void read(long after, long upTo, Predicate<LogEntry> filter, Consumer<LogEntry> sink)
+        throws IOException {
+      long start;
+      long end;
+      lock.lock();
+      try {
+        start = startOf(after + 1);
+        end = committed;
+      } finally {
+        lock.unlock();
+      }
+      if (start >= end) {
+        return;
+      }
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+        in.position(start);
+        InputStream stream = new BufferedInputStream(Channels.newInputStream(in));
+        long position = start;
+        byte[] record;
+        while (position < end && (record = readRecord(stream, line)) != null) {
+          position += record.length + 1;
+          LogEntry entry;
+          try {
+            entry = reader.readValue(record);
+          } catch (IOException e) {
+            // Skipped on recovery too.
+            continue;
+          }
+          if (entry.getSequence() > upTo) {
+            break;
+          }
+          if (entry.getSequence() > after && filter.test(entry)) {
+            sink.accept(entry);
+          }
+        }
+      }
+    }
+
+    private long startOf(long target) {
+      int low = 0;
+      int high = index.size() - 1;
+      long start = 0;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (index.get(mid)[0] <= target) {
+          start = index.get(mid)[1];
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return start;
+    }
+  }
+}
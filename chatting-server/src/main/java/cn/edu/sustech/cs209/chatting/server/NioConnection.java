@@ -0,0 +1,202 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.EncodedPacket;
+import cn.edu.sustech.cs209.chatting.common.FrameDecoder;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.PacketCodec;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class NioConnection implements Connection {
+
+  private static final int READ_BUFFER_SIZE = 8192;
+
+  private volatile String username;
+  private final SocketChannel channel;
+  private final SelectionKey key;
+  private final EventLoop eventLoop;
+  private final Server server;
+  private final PacketCodec codec;
+  private final FrameDecoder decoder;
+  private volatile WireFormat wireFormat;
+  private final OutboundQueue outbound;
+  private final long latencyBudgetNanos;
+  private final AtomicBoolean flushScheduled;
+  private final AtomicBoolean closed;
+  private ByteBuffer readBuffer;
+
+  public NioConnection(SocketChannel channel, SelectionKey key, EventLoop eventLoop,
+      Server server) {
+    this.channel = channel;
+    this.key = key;
+    this.eventLoop = eventLoop;
+    this.server = server;
+    codec = server.getPacketCodec();
+    decoder = new FrameDecoder(codec, server.getConfig().getMaxFrameBytes());
+    wireFormat = WireFormat.JSON_LINES;
+    outbound = new OutboundQueue(server.getConfig().getMaxBatchBytes(),
+        server.getConfig().getOutboundBufferBytes(), server.getConfig().getSlowConsumerPolicy(),
+        TimeUnit.MILLISECONDS.toNanos(server.getConfig().getSlowConsumerTimeoutMillis()));
+    latencyBudgetNanos = TimeUnit.MICROSECONDS.toNanos(
+        server.getConfig().getFlushLatencyBudgetMicros());
+    flushScheduled = new AtomicBoolean();
+    closed = new AtomicBoolean();
+    readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+  }
+
+  @Override
+  public String getUsername() {
+    return username;
+  }
+
+  @Override
+  public void setUsername(String username) {
+    this.username = username;
+  }
+
+  @Override
+  public WireFormat getWireFormat() {
+    return wireFormat;
+  }
+
+  @Override
+  public void setWireFormat(WireFormat format, Packet announcement) {
+    if (closed.get()) {
+      return;
+    }
+    ByteBuffer frame = EncodedPacket.of(announcement, codec).buffer(wireFormat);
+    wireFormat = format;
+    enqueue(frame, announcement.getType(), 0);
+    log.info("Sent packet to {}: {}", username, announcement);
+  }
+
+  @Override
+  public void setInboundFormat(WireFormat format) {
+    decoder.setFormat(format);
+  }
+
+  @Override
+  public void sendPacket(Packet packet) {
+    if (closed.get()) {
+      return;
+    }
+    enqueue(EncodedPacket.of(packet, codec));
+    log.info("Sent packet to {}: {}", username, packet);
+  }
+
+  @Override
+  public void send(EncodedPacket packet) {
+    send(packet, 0);
+  }
+
+  @Override
+  public void send(EncodedPacket packet, long sequence) {
+    if (closed.get()) {
+      outbound.missed(sequence);
+      return;
+    }
+    enqueue(packet.buffer(wireFormat), packet.getType(), sequence);
+    log.debug("Sent {} packet to {}", packet.getType(), username);
+  }
+
+  @Override
+  public long firstUnwritten() {
+    return outbound.firstUnwritten();
+  }
+
+  private void enqueue(EncodedPacket packet) {
+    enqueue(packet.buffer(wireFormat), packet.getType(), 0);
+  }
+
+  private void enqueue(ByteBuffer frame, PacketType type, long sequence) {
+    OutboundQueue.Offer offer = outbound.offer(frame, type, sequence);
+    if (offer != OutboundQueue.Offer.QUEUED && !server.getSlowConsumers()
+        .record(username, type, offer, outbound.queuedBytes())) {
+      close();
+      return;
+    }
+    if (flushScheduled.compareAndSet(false, true)) {
+      if (latencyBudgetNanos > 0) {
+        eventLoop.schedule(this::flush, latencyBudgetNanos);
+      } else {
+        eventLoop.execute(this::flush);
+      }
+    }
+  }
+
+  void onReadable() {
+    try {
+      if (channel.read(readBuffer) < 0) {
+        close();
+        return;
+      }
+      readBuffer.flip();
+      decodePackets();
+      if (!readBuffer.hasRemaining()) {
+        readBuffer.clear();
+      } else if (readBuffer.position() == 0 && readBuffer.limit() == readBuffer.capacity()) {
+        ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+        larger.put(readBuffer);
+        readBuffer = larger;
+      } else {
+        readBuffer.compact();
+      }
+    } catch (IOException | RuntimeException e) {
+      log.info("Connection of {} closed: {}", username, e.getMessage());
+      close();
+    }
+  }
+
+  private void decodePackets() throws IOException {
+    Packet packet;
+    while (!closed.get() && (packet = decoder.decode(readBuffer)) != null) {
+      log.info("Received packet from {}: {}", username, packet);
+      server.getPacketHandler().handlePacket(this, packet);
+    }
+  }
+
+  void onWritable() {
+    flush();
+  }
+
+  private void flush() {
+    flushScheduled.set(false);
+    try {
+      boolean drained;
+      do {
+        outbound.collect();
+        drained = outbound.writeTo(channel);
+      } while (drained && !outbound.isEmpty());
+      if (key.isValid()) {
+        int ops = key.interestOps();
+        key.interestOps(drained ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE);
+      }
+    } catch (IOException | RuntimeException e) {
+      log.info("Connection of {} closed: {}", username, e.getMessage());
+      close();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    key.cancel();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      log.error(e.getMessage());
+    }
+    outbound.discard();
+    server.clientLogout(username);
+  }
+}
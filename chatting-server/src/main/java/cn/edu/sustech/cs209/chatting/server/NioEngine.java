@@ -0,0 +1,94 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class NioEngine {
+
+  private static final int BACKLOG = 1024;
+
+  private final Server server;
+  private final ServerConfig config;
+  private final EventLoop[] eventLoops;
+  private final AtomicInteger nextLoop;
+
+  public NioEngine(Server server, ServerConfig config) {
+    this.server = server;
+    this.config = config;
+    nextLoop = new AtomicInteger();
+    eventLoops = new EventLoop[Math.max(1, config.getIoThreads())];
+    for (int i = 0; i < eventLoops.length; i++) {
+      eventLoops[i] = new EventLoop("event-loop-" + i, server);
+    }
+  }
+
+  public void start() {
+    for (EventLoop eventLoop : eventLoops) {
+      eventLoop.start();
+    }
+    List<Thread> acceptors = new ArrayList<>();
+    try {
+      ServerSocketChannel shared = null;
+      for (int i = 0; i < Math.max(1, config.getAcceptorThreads()); i++) {
+        ServerSocketChannel channel;
+        if (i == 0 || reusePortSupported(shared)) {
+          channel = openServerChannel(config.getAcceptorThreads() > 1);
+          shared = channel;
+        } else {
+          channel = shared;
+        }
+        Thread acceptor = new Thread(() -> accept(channel), "acceptor-" + i);
+        acceptors.add(acceptor);
+        acceptor.start();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    log.info("NIO engine listening on port {} with {} event loops and {} acceptors",
+        config.getPort(), eventLoops.length, acceptors.size());
+    for (Thread acceptor : acceptors) {
+      try {
+        acceptor.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private ServerSocketChannel openServerChannel(boolean reusePort) throws IOException {
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    if (reusePort && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+      channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+    }
+    channel.bind(new InetSocketAddress(config.getPort()), BACKLOG);
+    return channel;
+  }
+
+  private static boolean reusePortSupported(ServerSocketChannel channel) throws IOException {
+    return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)
+        && channel.getOption(StandardSocketOptions.SO_REUSEPORT);
+  }
+
+  private void accept(ServerSocketChannel serverChannel) {
+    while (serverChannel.isOpen()) {
+      try {
+        SocketChannel channel = serverChannel.accept();
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)]
+            .register(channel);
+      } catch (IOException e) {
+        log.error(e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,296 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.Counter;
+import cn.edu.sustech.cs209.chatting.common.Histogram;
+import cn.edu.sustech.cs209.chatting.common.Metrics;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Packets waiting to be written to one connection. Any thread may {@link #offer} encoded packets;
+ * only the connection's writer collects them into a batch and writes the batch with a single
+ * gathering write.
+ *
+ * <p>The bytes queued but not yet collected are bounded by {@code maxQueuedBytes}; what happens
+ * to a packet that does not fit is up to the {@link SlowConsumerPolicy}. A packet offered to an
+ * empty queue is always accepted, however large.
+ *
+ * <p>A packet carrying log entries is offered with the sequence of its first entry, which is
+ * tracked until the packet has been written in full; a packet that is dropped, refused or
+ * discarded is never written, so its sequence stays tracked. {@link #firstUnwritten()} therefore
+ * bounds what the connection's user has actually been sent.
+ *
+ * <p>Queued packets are counted by type, and the bytes queued when a packet is offered and across
+ * all connections are recorded, in {@link Metrics}.
+ */
+public class OutboundQueue {
+
+  private static final int MAX_GATHER = 64;
+  private static final Set<PacketType> PRESENCE_TYPES =
+      EnumSet.of(PacketType.PRESENCE, PacketType.NEW_USER, PacketType.LOGOUT);
+  private static final Counter[] PACKETS_OUT =
+      Metrics.counters("chatting_packets_out_total", "type", PacketType.class);
+  private static final Histogram QUEUE_BYTES =
+      Metrics.histogram("chatting_outbound_queue_bytes", Histogram.SIZES);
+  private static final LongAdder TOTAL_QUEUED_BYTES = new LongAdder();
+
+  static {
+    Metrics.gauge("chatting_outbound_queued_bytes", TOTAL_QUEUED_BYTES::sum);
+  }
+
+  private final BlockingQueue<Frame> queue;
+  private final ArrayDeque<Frame> pending;
+  private final NavigableMap<Long, Integer> unwritten;
+  private final int maxBatchBytes;
+  private final long maxQueuedBytes;
+  private final SlowConsumerPolicy policy;
+  private final long blockTimeoutNanos;
+  private final AtomicLong queuedBytes;
+  private final Lock spaceLock;
+  private final Condition space;
+  private volatile int waiting;
+  private int pendingBytes;
+
+  public OutboundQueue(int maxBatchBytes, long maxQueuedBytes, SlowConsumerPolicy policy,
+      long blockTimeoutNanos) {
+    this.maxBatchBytes = maxBatchBytes;
+    this.maxQueuedBytes = maxQueuedBytes;
+    this.policy = policy;
+    this.blockTimeoutNanos = blockTimeoutNanos;
+    queue = new LinkedBlockingQueue<>();
+    pending = new ArrayDeque<>();
+    unwritten = new TreeMap<>();
+    queuedBytes = new AtomicLong();
+    spaceLock = new ReentrantLock();
+    space = spaceLock.newCondition();
+  }
+
+  /**
+   * What became of an offered packet.
+   */
+  public enum Offer {
+    QUEUED,
+    /**
+     * Queued after the sender waited for room.
+     */
+    QUEUED_AFTER_WAIT,
+    DROPPED,
+    /**
+     * Not queued; the consumer is too slow and should be disconnected.
+     */
+    OVERFLOW
+  }
+
+  public Offer offer(ByteBuffer buffer, PacketType type) {
+    return offer(buffer, type, 0);
+  }
+
+  /**
+   * Offers a packet carrying log entries from {@code sequence} on, or no entries if it is 0.
+   */
+  public Offer offer(ByteBuffer buffer, PacketType type, long sequence) {
+    track(sequence);
+    Frame frame = new Frame(buffer, sequence);
+    long size = buffer.remaining();
+    QUEUE_BYTES.record(queuedBytes.get());
+    if (fits(size)) {
+      enqueue(frame, size, type);
+      return Offer.QUEUED;
+    }
+    switch (policy) {
+      case DROP_PRESENCE -> {
+        if (PRESENCE_TYPES.contains(type)) {
+          return Offer.DROPPED;
+        }
+      }
+      case BLOCK -> {
+        if (awaitSpace(size)) {
+          enqueue(frame, size, type);
+          return Offer.QUEUED_AFTER_WAIT;
+        }
+        return Offer.OVERFLOW;
+      }
+      case DISCONNECT -> {
+        return Offer.OVERFLOW;
+      }
+    }
+    if (queuedBytes.get() + size <= maxQueuedBytes) {
+      enqueue(frame, size, type);
+      return Offer.QUEUED;
+    }
+    return Offer.OVERFLOW;
+  }
+
+  /**
+   * Records a packet carrying log entries from {@code sequence} on that was meant for this
+   * connection but never offered, because it was closing.
+   */
+  public void missed(long sequence) {
+    track(sequence);
+  }
+
+  private void track(long sequence) {
+    if (sequence <= 0) {
+      return;
+    }
+    synchronized (unwritten) {
+      unwritten.merge(sequence, 1, Integer::sum);
+    }
+  }
+
+  /**
+   * The lowest sequence of a packet offered or missed but not written in full, or
+   * {@link Long#MAX_VALUE} if every such packet was written.
+   */
+  public long firstUnwritten() {
+    synchronized (unwritten) {
+      return unwritten.isEmpty() ? Long.MAX_VALUE : unwritten.firstKey();
+    }
+  }
+
+  private void written(long sequence) {
+    if (sequence <= 0) {
+      return;
+    }
+    synchronized (unwritten) {
+      unwritten.computeIfPresent(sequence, (key, count) -> count == 1 ? null : count - 1);
+    }
+  }
+
+  public long queuedBytes() {
+    return queuedBytes.get();
+  }
+
+  /**
+   * Throws away the packets not yet collected, for a connection that is closing.
+   */
+  public void discard() {
+    Frame frame;
+    while ((frame = queue.poll()) != null) {
+      queuedBytes.addAndGet(-frame.buffer().remaining());
+      TOTAL_QUEUED_BYTES.add(-frame.buffer().remaining());
+    }
+  }
+
+  public boolean isEmpty() {
+    return pending.isEmpty() && queue.isEmpty();
+  }
+
+  public void collect() {
+    Frame frame;
+    while (!batchFull() && (frame = queue.poll()) != null) {
+      addPending(frame);
+    }
+  }
+
+  /**
+   * Whether a packet of {@code size} bytes fits without the policy stepping in. Under
+   * {@link SlowConsumerPolicy#DROP_PRESENCE} that is only up to half of the bound, leaving the
+   * other half for the packets that are never dropped.
+   */
+  private boolean fits(long size) {
+    long queued = queuedBytes.get();
+    long bound = policy == SlowConsumerPolicy.DROP_PRESENCE ? maxQueuedBytes / 2 : maxQueuedBytes;
+    return queued == 0 || queued + size <= bound;
+  }
+
+  private boolean awaitSpace(long size) {
+    long remaining = blockTimeoutNanos;
+    spaceLock.lock();
+    waiting++;
+    try {
+      while (!fits(size)) {
+        if (remaining <= 0) {
+          return false;
+        }
+        remaining = space.awaitNanos(remaining);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      waiting--;
+      spaceLock.unlock();
+    }
+  }
+
+  private void enqueue(Frame frame, long size, PacketType type) {
+    queuedBytes.addAndGet(size);
+    TOTAL_QUEUED_BYTES.add(size);
+    queue.add(frame);
+    if (type != null) {
+      PACKETS_OUT[type.ordinal()].increment();
+    }
+  }
+
+  public void awaitBatch(long latencyBudgetNanos) throws InterruptedException {
+    if (pending.isEmpty()) {
+      addPending(queue.take());
+    }
+    long deadline = System.nanoTime() + latencyBudgetNanos;
+    while (!batchFull()) {
+      long remaining = deadline - System.nanoTime();
+      Frame frame = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS)
+          : queue.poll();
+      if (frame == null) {
+        return;
+      }
+      addPending(frame);
+    }
+  }
+
+  public boolean writeTo(GatheringByteChannel channel) throws IOException {
+    if (pending.isEmpty()) {
+      return true;
+    }
+    ByteBuffer[] buffers = new ByteBuffer[pending.size()];
+    int i = 0;
+    for (Frame frame : pending) {
+      buffers[i++] = frame.buffer();
+    }
+    pendingBytes -= (int) channel.write(buffers);
+    while (!pending.isEmpty() && !pending.peek().buffer().hasRemaining()) {
+      written(pending.poll().sequence());
+    }
+    return pending.isEmpty();
+  }
+
+  private boolean batchFull() {
+    return pending.size() >= MAX_GATHER || pendingBytes >= maxBatchBytes;
+  }
+
+  private void addPending(Frame frame) {
+    ByteBuffer buffer = frame.buffer();
+    pending.add(frame);
+    pendingBytes += buffer.remaining();
+    queuedBytes.addAndGet(-buffer.remaining());
+    TOTAL_QUEUED_BYTES.add(-buffer.remaining());
+    if (waiting > 0) {
+      spaceLock.lock();
+      try {
+        space.signalAll();
+      } finally {
+        spaceLock.unlock();
+      }
+    }
+  }
+
+  private record Frame(ByteBuffer buffer, long sequence) {
+  }
+}
@@ -0,0 +1,290 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.ChatRoom;
+import cn.edu.sustech.cs209.chatting.common.FileChunk;
+import cn.edu.sustech.cs209.chatting.common.HistoryCursor;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.MessageType;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import cn.edu.sustech.cs209.chatting.common.Presence;
+import cn.edu.sustech.cs209.chatting.common.User;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class PacketHandler {
+
+  private final Server server;
+
+  public PacketHandler(Server server) {
+    this.server = server;
+  }
+
+  public void handlePacket(Connection connection, Packet packet) {
+    if (server.getCluster() != null && server.getCluster().route(connection, packet)) {
+      return;
+    }
+    process(connection, packet);
+  }
+
+  /**
+   * Handles a packet on this node, whether it came from a local connection or was routed here by
+   * another node of the cluster.
+   */
+  public void process(Connection connection, Packet packet) {
+    if (server.getCluster() != null && server.getCluster().defer(connection, packet)) {
+      return;
+    }
+    switch (packet.getType()) {
+      case LOGIN -> {
+        WireFormat format = negotiate(connection, packet);
+        String username = packet.getUser().getUsername();
+        String password = packet.getUser().getPassword();
+        if (!server.getUserDirectory().authenticate(username, password)) {
+          respond(connection, format, packet, Packet.builder()
+              .info("Username or Password not Correct").type(PacketType.LOGIN_FAILED).build());
+        } else if (server.getOnlineUsers().containsKey(username)) {
+          respond(connection, format, packet,
+              Packet.builder().info("User Already Login").type(PacketType.LOGIN_FAILED)
+                  .build());
+        } else {
+          log.info("User {} logged in", username);
+          connection.setUsername(username);
+          respond(connection, format, packet,
+              Packet.builder().type(PacketType.LOGIN_SUCCESS).build());
+          server.addUser(username, connection, packet.getCapabilities() != null
+              && packet.getCapabilities().contains(Presence.CAPABILITY));
+          server.catchUp(username, connection);
+        }
+      }
+      case REGISTER -> {
+        WireFormat format = negotiate(connection, packet);
+        String username = packet.getUser().getUsername();
+        String password = packet.getUser().getPassword();
+        // Completes on the log writer or broker thread; respond only enqueues the reply, so the
+        // I/O thread is not held up while the user is persisted or claimed on another node.
+        server.register(new User(username, password)).whenComplete((registered, e) -> {
+          if (e != null) {
+            log.error("Failed to persist user {}: {}", username, e.getMessage());
+            respond(connection, format, packet, Packet.builder().info("Registration Failed")
+                .type(PacketType.REGISTER_FAILED).build());
+          } else if (!registered) {
+            respond(connection, format, packet,
+                Packet.builder().info("Username Already Exist").type(PacketType.REGISTER_FAILED)
+                    .build());
+          } else {
+            respond(connection, format, packet,
+                Packet.builder().type(PacketType.REGISTER_SUCCESS).build());
+          }
+        });
+      }
+      case MESSAGE -> {
+        Message message = packet.getMessage();
+        // Only a logged message keeps its file from being collected.
+        if (server.forward(packet) && message.getType() == MessageType.FILE
+            && message.getFileId() != null) {
+          server.getBlobStore().addReference(message.getFileId());
+        }
+      }
+      case CREATE_CHAT -> {
+        ChatRoom requested = packet.getChatRoom();
+        if (requested == null || requested.getId() == null || requested.getUsers() == null) {
+          return;
+        }
+        ChatRoom chatRoom = server.getChatRooms().add(requested);
+        if (chatRoom != requested) {
+          if (!chatRoom.getId().equals(requested.getId())) {
+            log.info("Room {} already exists as {}", requested.getId(), chatRoom.getId());
+          }
+          replyCreated(connection, packet, chatRoom);
+          return;
+        }
+        server.getChatroomWriter().log(chatRoom);
+        // Members only hear of the room, and the creator only gets the reply, once the node
+        // owning the room's id has it; messages are routed there.
+        CompletableFuture<Void> announced = server.getCluster() == null
+            ? CompletableFuture.completedFuture(null) : server.getCluster().roomCreated(chatRoom);
+        announced.whenComplete((ignored, e) -> {
+          if (e != null) {
+            log.warn("Room {} may not have reached its owner: {}", chatRoom.getId(),
+                e.getMessage());
+          }
+          server.forward(packet);
+          server.getPresence().roomCreated(chatRoom);
+          replyCreated(connection, packet, chatRoom);
+        });
+      }
+      case HISTORY_REQUEST -> server.getStorage().execute(connection.getUsername(),
+          () -> handleHistory(connection, packet));
+      case ROSTER_REQUEST, SUBSCRIBE, UNSUBSCRIBE -> handlePresence(connection, packet);
+      case FILE_UPLOAD -> handleUpload(connection, packet.getFileChunk());
+      case FILE_DOWNLOAD -> handleDownload(connection, packet.getFileChunk());
+    }
+  }
+
+  /**
+   * Tells the creator which room stands for the one requested, when they asked for a reply or
+   * when the members already had a room under another id.
+   */
+  private void replyCreated(Connection connection, Packet request, ChatRoom chatRoom) {
+    if (request.getRequestId() != null
+        || !chatRoom.getId().equals(request.getChatRoom().getId())) {
+      connection.sendPacket(Packet.builder().type(PacketType.CREATE_CHAT).chatRoom(chatRoom)
+          .requestId(request.getRequestId()).build());
+    }
+  }
+
+  private void handlePresence(Connection connection, Packet packet) {
+    String username = connection.getUsername();
+    String target = packet.getUser() == null ? null : packet.getUser().getUsername();
+    if (username == null) {
+      return;
+    }
+    switch (packet.getType()) {
+      case ROSTER_REQUEST ->
+          server.getPresence().sendRoster(username, connection, packet.getRequestId());
+      case SUBSCRIBE -> server.getPresence().subscribe(username, target);
+      case UNSUBSCRIBE -> server.getPresence().unsubscribe(username, target);
+    }
+  }
+
+  /**
+   * Answers a history request with a single page of messages and the cursor of the page before it.
+   * Runs on a storage thread, since the page is read from the log.
+   */
+  private void handleHistory(Connection connection, Packet packet) {
+    HistoryCursor request = packet.getHistory();
+    ChatRoom chatRoom = request == null ? null : server.getChatRooms().get(request.getChatRoomId());
+    if (chatRoom == null || !chatRoom.getUsers().contains(connection.getUsername())) {
+      connection.sendPacket(Packet.builder().type(PacketType.HISTORY).info("Chat Room Not Found")
+          .history(request).messages(List.of()).requestId(packet.getRequestId()).build());
+      return;
+    }
+    int limit = request.getLimit() <= 0 ? HistoryCursor.DEFAULT_LIMIT
+        : Math.min(request.getLimit(), HistoryCursor.MAX_LIMIT);
+    MessageLog.Page page = server.getMessageLog().history(chatRoom.getId(),
+        request.getBeforeId(), limit);
+    Long next = page.hasMore() && !page.messages().isEmpty()
+        ? page.messages().get(0).getId() : null;
+    connection.sendPacket(Packet.builder().type(PacketType.HISTORY).messages(page.messages())
+        .history(new HistoryCursor(chatRoom.getId(), next, limit))
+        .requestId(packet.getRequestId()).build());
+  }
+
+  /**
+   * Stores an uploaded chunk and acknowledges how much of the file is stored. Chunks are stored on
+   * a storage thread picked by transfer, which keeps the pipelined chunks of an upload in order
+   * and the I/O thread free while they are written and the finished file is hashed.
+   */
+  private void handleUpload(Connection connection, FileChunk chunk) {
+    if (chunk == null) {
+      return;
+    }
+    if (connection.getUsername() == null) {
+      acknowledge(connection, chunk, -1);
+      return;
+    }
+    server.getStorage().execute(chunk.getTransferId(), () -> upload(connection, chunk));
+  }
+
+  private void upload(Connection connection, FileChunk chunk) {
+    BlobStore blobStore = server.getBlobStore();
+    long committed;
+    try {
+      committed = chunk.getData() == null && chunk.getFileSize() > 0
+          ? blobStore.size(chunk.getTransferId())
+          : blobStore.append(chunk.getTransferId(), chunk.getOffset(),
+              chunk.getData() == null ? new byte[0] : chunk.getData(), chunk.getFileSize());
+    } catch (IOException | IllegalArgumentException e) {
+      log.error("Upload of {} failed: {}", chunk.getTransferId(), e.getMessage());
+      committed = -1;
+    }
+    acknowledge(connection, chunk, committed);
+  }
+
+  private void acknowledge(Connection connection, FileChunk chunk, long committed) {
+    connection.sendPacket(Packet.builder().type(PacketType.FILE_ACK)
+        .fileChunk(FileChunk.builder().transferId(chunk.getTransferId())
+            .fileSize(chunk.getFileSize()).offset(committed).build())
+        .build());
+  }
+
+  /**
+   * Streams one window of chunks starting at the requested offset, read on a storage thread. The
+   * client asks for the next window once it has written this one, which bounds the data buffered
+   * per download.
+   */
+  private void handleDownload(Connection connection, FileChunk request) {
+    if (request == null) {
+      return;
+    }
+    if (connection.getUsername() == null) {
+      connection.sendPacket(Packet.builder().type(PacketType.FILE_CHUNK).info("Not Logged In")
+          .fileChunk(FileChunk.builder().transferId(request.getTransferId()).offset(-1).build())
+          .build());
+      return;
+    }
+    server.getStorage().execute(request.getTransferId(), () -> download(connection, request));
+  }
+
+  private void download(Connection connection, FileChunk request) {
+    BlobStore blobStore = server.getBlobStore();
+    String transferId = request.getTransferId();
+    try {
+      if (!blobStore.contains(transferId)) {
+        connection.sendPacket(Packet.builder().type(PacketType.FILE_CHUNK).info("File Not Found")
+            .fileChunk(FileChunk.builder().transferId(transferId).offset(-1).build()).build());
+        return;
+      }
+      long size = blobStore.size(transferId);
+      long window = (long) FileChunk.CHUNK_SIZE * FileChunk.WINDOW;
+      long end = Math.min(size, request.getOffset() + window);
+      for (long offset = request.getOffset(); offset < end; offset += FileChunk.CHUNK_SIZE) {
+        byte[] data = blobStore.read(transferId, offset,
+            (int) Math.min(FileChunk.CHUNK_SIZE, end - offset));
+        connection.sendPacket(Packet.builder().type(PacketType.FILE_CHUNK)
+            .fileChunk(FileChunk.builder().transferId(transferId).fileSize(size).offset(offset)
+                .data(data).build())
+            .build());
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      log.error("Download of {} failed: {}", transferId, e.getMessage());
+      connection.sendPacket(Packet.builder().type(PacketType.FILE_CHUNK).info(e.getMessage())
+          .fileChunk(FileChunk.builder().transferId(transferId).offset(-1).build()).build());
+    }
+  }
+
+  /**
+   * Chooses the wire format for a LOGIN or REGISTER request that carries the client's
+   * capabilities, or returns {@code null} when the format was settled earlier. The client sends
+   * nothing more until it has the reply, so later packets are decoded in the chosen format right
+   * away, on the thread reading the connection.
+   */
+  private WireFormat negotiate(Connection connection, Packet request) {
+    if (connection.getWireFormat() != WireFormat.JSON_LINES || request.getCapabilities() == null) {
+      return null;
+    }
+    WireFormat format = WireFormat.negotiate(request.getCapabilities(),
+        server.getConfig().getWireFormats());
+    connection.setInboundFormat(format);
+    return format;
+  }
+
+  /**
+   * Replies to a LOGIN or REGISTER request. A reply that settles the wire format still travels as
+   * a JSON line and announces the format; every later packet is sent in it.
+   */
+  private void respond(Connection connection, WireFormat format, Packet request, Packet reply) {
+    reply.setRequestId(request.getRequestId());
+    if (format == null) {
+      connection.sendPacket(reply);
+      return;
+    }
+    reply.setCapabilities(List.of(format.getToken()));
+    connection.setWireFormat(format, reply);
+  }
+}
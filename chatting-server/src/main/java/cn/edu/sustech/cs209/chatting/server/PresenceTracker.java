@@ -0,0 +1,237 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.ChatRoom;
+import cn.edu.sustech.cs209.chatting.common.EncodedPacket;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import cn.edu.sustech.cs209.chatting.common.Presence;
+import cn.edu.sustech.cs209.chatting.common.User;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tells users who is online. A user who logs in gets one ROSTER packet listing the online users
+ * they share a room with or subscribed to. After that, a change is queued only for those
+ * interested in it, and queued changes are flushed every {@code presenceBatchMillis} as one
+ * PRESENCE packet per recipient, with a user that changed twice in between listed once. Recipients
+ * that queued the same changes share one encoded packet.
+ *
+ * <p>Clients that did not offer {@link Presence#CAPABILITY} keep getting a NEW_USER packet per
+ * online user at login and a NEW_USER or LOGOUT broadcast per change.
+ *
+ * <p>In a cluster, every node tells its own users about changes, whichever node they happened on.
+ */
+@Slf4j
+public class PresenceTracker {
+
+  private final Server server;
+  private final long batchMillis;
+  private final Set<String> legacyUsers;
+  private final Map<String, Set<String>> subscribers;
+  private final Map<String, Set<String>> subscriptions;
+  private final Map<String, Map<String, Boolean>> pending;
+  private final AtomicBoolean flushScheduled;
+  private final ScheduledExecutorService scheduler;
+
+  public PresenceTracker(Server server, long batchMillis) {
+    this.server = server;
+    this.batchMillis = batchMillis;
+    legacyUsers = ConcurrentHashMap.newKeySet();
+    subscribers = new ConcurrentHashMap<>();
+    subscriptions = new ConcurrentHashMap<>();
+    pending = new ConcurrentHashMap<>();
+    flushScheduled = new AtomicBoolean();
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "presence");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Sends the roster to a user who just came online and queues the change for everyone else
+   * interested in them. Must be called once the user is in {@link Server#getOnlineUsers()}.
+   */
+  public void online(String username, Connection connection, boolean batched) {
+    if (batched) {
+      connection.sendPacket(Packet.builder().type(PacketType.ROSTER)
+          .presence(new Presence(new ArrayList<>(contactsOnline(username)), null)).build());
+    } else {
+      legacyUsers.add(username);
+      server.getOnlineUsers().keySet().stream().filter(user -> !user.equals(username))
+          .forEach(user -> connection.sendPacket(Packet.builder().type(PacketType.NEW_USER)
+              .user(User.builder().username(user).build()).build()));
+    }
+    changed(username, true);
+  }
+
+  /**
+   * Queues a user who went offline for everyone interested in them and drops their subscriptions.
+   * Must be called once the user was removed from {@link Server#getOnlineUsers()}.
+   */
+  public void offline(String username) {
+    legacyUsers.remove(username);
+    Set<String> targets = subscriptions.remove(username);
+    if (targets != null) {
+      targets.forEach(target -> unsubscribe(username, target));
+    }
+    changed(username, false);
+  }
+
+  /**
+   * Sends {@code connection} everyone who is online, for clients choosing whom to start a chat
+   * with.
+   */
+  public void sendRoster(String username, Connection connection, String requestId) {
+    List<String> online = server.getOnlineUsers().keySet().stream()
+        .filter(user -> !user.equals(username)).toList();
+    connection.sendPacket(Packet.builder().type(PacketType.ROSTER)
+        .presence(new Presence(online, null)).requestId(requestId).build());
+  }
+
+  /**
+   * Makes {@code watcher} receive the changes of {@code target} and queues its current state.
+   */
+  public void subscribe(String watcher, String target) {
+    if (watcher == null || target == null || watcher.equals(target)) {
+      return;
+    }
+    subscribers.computeIfAbsent(target, t -> ConcurrentHashMap.newKeySet()).add(watcher);
+    subscriptions.computeIfAbsent(watcher, w -> ConcurrentHashMap.newKeySet()).add(target);
+    queue(watcher, target, server.getOnlineUsers().containsKey(target));
+    scheduleFlush();
+  }
+
+  public void unsubscribe(String watcher, String target) {
+    if (watcher == null || target == null) {
+      return;
+    }
+    subscribers.computeIfPresent(target, (t, watchers) -> {
+      watchers.remove(watcher);
+      return watchers.isEmpty() ? null : watchers;
+    });
+    Set<String> targets = subscriptions.get(watcher);
+    if (targets != null) {
+      targets.remove(target);
+    }
+  }
+
+  /**
+   * Members of a new room now share it, so queue each online member for the others.
+   */
+  public void roomCreated(ChatRoom chatRoom) {
+    List<String> online = chatRoom.getUsers().stream()
+        .filter(server.getOnlineUsers()::containsKey).toList();
+    for (String recipient : online) {
+      for (String member : online) {
+        if (!member.equals(recipient) && !legacyUsers.contains(recipient)) {
+          queue(recipient, member, true);
+        }
+      }
+    }
+    scheduleFlush();
+  }
+
+  /**
+   * Queues a change for the users of this node interested in it. Called directly for changes that
+   * happened on another node of the cluster.
+   */
+  public void changed(String username, boolean online) {
+    Packet legacy = Packet.builder().type(online ? PacketType.NEW_USER : PacketType.LOGOUT)
+        .user(User.builder().username(username).build()).build();
+    EncodedPacket encoded = null;
+    for (String user : legacyUsers) {
+      Connection connection = user.equals(username) ? null : server.getOnlineUsers().get(user);
+      if (connection != null && !(connection instanceof RemoteConnection)) {
+        if (encoded == null) {
+          encoded = EncodedPacket.of(legacy, server.getPacketCodec());
+        }
+        connection.send(encoded);
+      }
+    }
+    for (String recipient : interestedIn(username)) {
+      if (!legacyUsers.contains(recipient) && server.getOnlineUsers().containsKey(recipient)) {
+        queue(recipient, username, online);
+      }
+    }
+    scheduleFlush();
+  }
+
+  private Set<String> interestedIn(String username) {
+    Set<String> users = new HashSet<>(subscribers.getOrDefault(username, Set.of()));
+    for (String roomId : server.getChatRooms().roomsOf(username)) {
+      ChatRoom chatRoom = server.getChatRooms().get(roomId);
+      if (chatRoom != null) {
+        users.addAll(chatRoom.getUsers());
+      }
+    }
+    users.remove(username);
+    return users;
+  }
+
+  private Set<String> contactsOnline(String username) {
+    Set<String> contacts = interestedIn(username);
+    contacts.addAll(subscriptions.getOrDefault(username, Set.of()));
+    contacts.retainAll(server.getOnlineUsers().keySet());
+    contacts.remove(username);
+    return contacts;
+  }
+
+  /**
+   * Records the latest state of {@code user} for {@code recipient}. The map of a recipient is only
+   * changed inside {@code compute}, so once {@link #flush} removed it nobody writes to it anymore.
+   */
+  private void queue(String recipient, String user, boolean online) {
+    pending.compute(recipient, (r, changes) -> {
+      Map<String, Boolean> queued = changes == null ? new LinkedHashMap<>() : changes;
+      queued.put(user, online);
+      return queued;
+    });
+  }
+
+  private void scheduleFlush() {
+    if (!pending.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+      scheduler.schedule(this::flush, batchMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void flush() {
+    flushScheduled.set(false);
+    Map<Map<String, Boolean>, EncodedPacket> encoded = new HashMap<>();
+    int recipients = 0;
+    for (String recipient : pending.keySet()) {
+      Map<String, Boolean> changes = pending.remove(recipient);
+      Connection connection = server.getOnlineUsers().get(recipient);
+      if (changes == null || connection == null || connection instanceof RemoteConnection) {
+        continue;
+      }
+      try {
+        connection.send(encoded.computeIfAbsent(changes, this::encode));
+        recipients++;
+      } catch (RuntimeException e) {
+        log.error("Failed to send presence to {}: {}", recipient, e.getMessage());
+      }
+    }
+    log.debug("Flushed presence to {} users in {} distinct batches", recipients, encoded.size());
+  }
+
+  private EncodedPacket encode(Map<String, Boolean> changes) {
+    List<String> online = new ArrayList<>();
+    List<String> offline = new ArrayList<>();
+    changes.forEach((user, isOnline) -> (isOnline ? online : offline).add(user));
+    return EncodedPacket.of(Packet.builder().type(PacketType.PRESENCE)
+        .presence(new Presence(online.isEmpty() ? null : online,
+            offline.isEmpty() ? null : offline)).build(), server.getPacketCodec());
+  }
+}
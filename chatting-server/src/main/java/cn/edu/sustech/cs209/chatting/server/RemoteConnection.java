@@ -0,0 +1,63 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.EncodedPacket;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * Stands in for a user connected to another node of the cluster. Packets sent to it are relayed
+ * to that node, which writes them to the user's real connection.
+ */
+public class RemoteConnection implements Connection {
+
+  private final String username;
+  @Getter
+  private final String nodeId;
+  private final ClusterNode cluster;
+
+  public RemoteConnection(String username, String nodeId, ClusterNode cluster) {
+    this.username = username;
+    this.nodeId = nodeId;
+    this.cluster = cluster;
+  }
+
+  @Override
+  public String getUsername() {
+    return username;
+  }
+
+  @Override
+  public void setUsername(String username) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public WireFormat getWireFormat() {
+    return WireFormat.JSON_LINES;
+  }
+
+  @Override
+  public void setWireFormat(WireFormat format, Packet announcement) {
+    sendPacket(announcement);
+  }
+
+  @Override
+  public void setInboundFormat(WireFormat format) {
+  }
+
+  @Override
+  public void sendPacket(Packet packet) {
+    cluster.deliver(nodeId, List.of(username), packet);
+  }
+
+  @Override
+  public void send(EncodedPacket packet) {
+    cluster.deliver(nodeId, List.of(username), packet.getPacket());
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -5,99 +5,402 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Getter
 public class Server {
 
-  private final ServerSocket serverSocket;
-  private final Map<String, ServerService> onlineUsers;
-  private final Map<String, ChatRoom> chatRooms;
-  private final Set<User> users;
+  private final ServerConfig config;
+  private final PacketHandler packetHandler;
+  private final PacketCodec packetCodec;
+  private final Map<String, Connection> onlineUsers;
+  private final ChatRoomIndex chatRooms;
+  private final UserDirectory userDirectory;
   private final ChatLogReader<ChatRoom> chatroomReader;
-  private final ChatLogReader<User> userReader;
   private final ChatLogger<ChatRoom> chatroomWriter;
-  private final ChatLogger<User> userWriter;
-  private static final String BASE_PATH = "/Users/suih/chatting/";
+  private final BlobStore blobStore;
+  private final MessageLog messageLog;
+  private final Map<String, Long> deliveredSequences;
+  private final Map<String, Long> catchingUp;
+  private final ChatLogReader<DeliveryCursor> cursorReader;
+  private final ChatLogger<DeliveryCursor> cursorWriter;
+  private final Path snapshotPath;
+  private final PresenceTracker presence;
+  private final Path directory;
+  private final ClusterNode cluster;
+  private final KeyedExecutor storage;
+  private final SlowConsumerStats slowConsumers;
+  private final Histogram fanOutRecipients;
+  private final Histogram fanOutMicros;
 
   public Server(int port) {
+    this(ServerConfig.builder().port(port).build());
+  }
+
+  public Server(ServerConfig config) {
+    config.validate();
+    this.config = config;
+    packetCodec = PacketCodec.getInstance();
+    directory = config.getNodeId() == null ? config.getDataDirectory()
+        : config.getDataDirectory().resolve(config.getNodeId());
     try {
-      serverSocket = new ServerSocket(port);
-      Path userPath = Path.of(BASE_PATH + "server" + "/user.dat");
-      Path roomPath = Path.of(BASE_PATH + "server" + "/room.dat");
+      Path roomPath = directory.resolve("room.dat");
       chatroomReader = new ChatLogReader<>(ChatRoom.class, roomPath);
-      userReader = new ChatLogReader<>(User.class, userPath);
-      chatroomWriter = new ChatLogger<>(roomPath);
-      userWriter = new ChatLogger<>(userPath);
-      users = new HashSet<>();
-      users.addAll(userReader.readChatLog());
-      chatRooms = new HashMap<>();
-      chatroomReader.readChatLog().forEach(chatRoom -> chatRooms.put(chatRoom.getId(), chatRoom));
+      chatroomWriter = new ChatLogger<>(roomPath, config.getLogOptions());
+      userDirectory = new UserDirectory(directory.resolve("users"),
+          config.getUserLogShards(), config.getExpectedUsers(), config.getLogOptions());
+      blobStore = new BlobStore(directory.resolve("blobs"));
+      messageLog = new MessageLog(directory.resolve("messages"),
+          config.getMessageLogShards(), config.getLogOptions());
+      Path cursorPath = directory.resolve("cursor.dat");
+      cursorReader = new ChatLogReader<>(DeliveryCursor.class, cursorPath);
+      cursorWriter = new ChatLogger<>(cursorPath, config.getLogOptions());
+      snapshotPath = directory.resolve("state.snap");
+      chatRooms = new ChatRoomIndex();
+      deliveredSequences = new ConcurrentHashMap<>();
+      catchingUp = new ConcurrentHashMap<>();
+      restoreState();
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
     onlineUsers = new ConcurrentHashMap<>();
+    slowConsumers = new SlowConsumerStats();
+    fanOutRecipients = Metrics.histogram("chatting_fanout_recipients", Histogram.SIZES);
+    fanOutMicros = Metrics.histogram("chatting_fanout_micros", Histogram.LATENCY_MICROS);
+    Metrics.gauge("chatting_online_users", () -> onlineUsers.values().stream()
+        .filter(connection -> !(connection instanceof RemoteConnection)).count(), "node", "local");
+    Metrics.gauge("chatting_online_users", () -> onlineUsers.values().stream()
+        .filter(RemoteConnection.class::isInstance).count(), "node", "remote");
+    presence = new PresenceTracker(this, config.getPresenceBatchMillis());
+    storage = new KeyedExecutor("storage", config.getStorageThreads());
+    packetHandler = new PacketHandler(this);
+    if (config.getNodeId() == null) {
+      cluster = null;
+    } else {
+      cluster = new ClusterNode(this, config.getNodeId(), config.getBroker() != null
+          ? config.getBroker() : new TcpBroker(config.getClusterHost(), config.getClusterPort(),
+          config.getClusterPeers()));
+    }
   }
 
-  public void addUser(String username, ServerService serverService) {
-    notifyAllUsers(
-        Packet.builder().type(PacketType.NEW_USER).user(User.builder().username(username).build())
-            .build());
-    onlineUsers.put(username, serverService);
+  /**
+   * Loads the latest snapshot, if any, and replays only the log segments written after it.
+   */
+  private void restoreState() {
+    StateSnapshot snapshot = null;
+    try {
+      snapshot = StateSnapshot.read(snapshotPath);
+    } catch (IOException e) {
+      log.error("Ignoring snapshot: {}", e.getMessage());
+    }
+    List<User> users = List.of();
+    long[] userSegments = new long[0];
+    long roomSegment = 0;
+    long cursorSegment = 0;
+    if (snapshot != null) {
+      users = snapshot.users();
+      snapshot.chatRooms().forEach(chatRooms::put);
+      deliveredSequences.putAll(snapshot.deliveredSequences());
+      userSegments = snapshot.userSegments();
+      roomSegment = snapshot.roomSegment();
+      cursorSegment = snapshot.cursorSegment();
+    }
+    userDirectory.restore(users, userSegments);
+    userDirectory.importLegacyLog(directory.resolve("user.dat"));
+    chatroomReader.readChatLog(roomSegment).forEach(chatRooms::put);
+    cursorReader.readChatLog(cursorSegment).forEach(
+        cursor -> deliveredSequences.put(cursor.getUsername(), cursor.getSequence()));
+    log.info("Restored {} users and {} chat rooms", userDirectory.size(), chatRooms.size());
+  }
+
+  /**
+   * Snapshots the user directory, room table and delivery cursors, then deletes the log segments
+   * the snapshot covers. The logs are sealed before the state is copied, and every change is
+   * applied in memory before it is logged, so a sealed record is always reflected in the copy.
+   */
+  public void snapshot() {
+    try {
+      long[] userSegments = userDirectory.seal();
+      long roomSegment = chatroomWriter.seal().join();
+      long cursorSegment = cursorWriter.seal().join();
+      List<ChatRoom> rooms = chatRooms.all().stream()
+          .map(chatRoom -> new ChatRoom(chatRoom.getId(), chatRoom.getType(),
+              Set.copyOf(chatRoom.getUsers()), 0))
+          .toList();
+      List<User> users = userDirectory.copy();
+      new StateSnapshot(userSegments, roomSegment, cursorSegment, users, rooms,
+          Map.copyOf(deliveredSequences)).write(snapshotPath);
+      userDirectory.deleteSegmentsThrough(userSegments);
+      chatroomWriter.deleteSegmentsThrough(roomSegment);
+      cursorWriter.deleteSegmentsThrough(cursorSegment);
+      log.info("Snapshot of {} users and {} chat rooms written", users.size(), rooms.size());
+    } catch (IOException | CompletionException e) {
+      log.error("Snapshot failed: {}", e.getMessage());
+    }
+  }
+
+  public void addUser(String username, Connection connection, boolean batchedPresence) {
+    onlineUsers.put(username, connection);
+    presence.online(username, connection, batchedPresence);
+    if (cluster != null) {
+      cluster.userOnline(username);
+    }
+  }
+
+  /**
+   * Registers a user, through the node owning their name when clustered; completes like
+   * {@link UserDirectory#register}.
+   */
+  public CompletableFuture<Boolean> register(User user) {
+    return (cluster != null ? cluster.register(user) : userDirectory.register(user))
+        .thenApply(registered -> {
+          if (registered) {
+            startDeliveryCursor(user.getUsername());
+          }
+          return registered;
+        });
+  }
+
+  /**
+   * Starts the delivery cursor of a user who has just registered at the end of the log, since
+   * nothing logged so far can concern them, so their first catch-up does not scan the whole log.
+   */
+  public void startDeliveryCursor(String username) {
+    long last = messageLog.lastSequence();
+    if (deliveredSequences.putIfAbsent(username, last) == null) {
+      cursorWriter.log(new DeliveryCursor(username, last));
+    }
   }
 
   public void notifyAllUsers(Packet packet) {
-    onlineUsers.values().forEach(serverService -> serverService.sendPacket(packet));
+    EncodedPacket encoded = EncodedPacket.of(packet, packetCodec);
+    onlineUsers.values().forEach(connection -> connection.send(encoded));
+    log.info("Broadcast packet to {} users: {}", onlineUsers.size(), packet);
   }
 
-  public void forward(Packet packet) {
+  /**
+   * Logs a message or a new chat room and, once the entry is durable, fans it out to the online
+   * members. The fan-out may therefore run on the log's sync thread; it only enqueues packets.
+   * Returns whether the packet was logged, which a message to an unknown room is not.
+   */
+  public boolean forward(Packet packet) {
     if (packet.getType() == PacketType.MESSAGE) {
       Message message = packet.getMessage();
       if (message == null || message.getChatRoomId() == null
           || chatRooms.get(message.getChatRoomId()) == null) {
-        return;
+        return false;
       }
       Set<String> userInChatRoom = chatRooms.get(message.getChatRoomId()).getUsers();
-      userInChatRoom.stream()
-          .filter(user -> !user.equals(message.getSentBy()))
-          .filter(onlineUsers::containsKey)
-          .forEach(user -> onlineUsers.get(user)
-              .sendPacket(Packet.builder().type(PacketType.MESSAGE).message(message).build()));
+      fanOutWhenDurable(messageLog.append(message.getSentBy(), null, message),
+          Packet.builder().type(PacketType.MESSAGE).message(message).build(),
+          userInChatRoom, message.getSentBy());
+      return true;
     } else if (packet.getType() == PacketType.CREATE_CHAT) {
       ChatRoom chatRoom = packet.getChatRoom();
-      chatRoom.getUsers().stream()
-          .filter(user -> !user.equals(packet.getUser().getUsername()))
-          .filter(onlineUsers::containsKey)
-          .forEach(user -> onlineUsers.get(user).sendPacket(
-              Packet.builder().type(PacketType.CREATE_CHAT).chatRoom(chatRoom).build()));
+      String creator = packet.getUser().getUsername();
+      fanOutWhenDurable(messageLog.append(creator, chatRoom, null),
+          Packet.builder().type(PacketType.CREATE_CHAT).chatRoom(chatRoom).build(),
+          chatRoom.getUsers(), creator);
+      return true;
+    }
+    return false;
+  }
+
+  private void fanOutWhenDurable(CompletableFuture<Long> appended, Packet packet,
+      Set<String> recipients, String sender) {
+    appended.whenComplete((sequence, e) -> {
+      if (e != null) {
+        log.error("Dropped packet that could not be logged: {}", e.getMessage());
+        return;
+      }
+      try {
+        fanOut(packet, recipients, sender, sequence);
+      } finally {
+        messageLog.release(sequence);
+      }
+    });
+  }
+
+  /**
+   * Sends {@code username} the rooms and messages logged since the last sequence delivered to
+   * them. Rooms go first as CREATE_CHAT packets so the messages that follow have somewhere to go;
+   * messages are batched into CATCH_UP packets. Must be called after the user was added to
+   * {@link #onlineUsers}, so that anything logged later reaches them through {@link #forward}.
+   *
+   * <p>The log is read on a storage thread. Until every entry has been queued, a delivery cursor
+   * recorded for the user stays where the catch-up started.
+   */
+  public void catchUp(String username, Connection connection) {
+    Set<String> rooms = chatRooms.roomsOf(username);
+    if (rooms.isEmpty()) {
+      return;
+    }
+    long after = deliveredSequences.getOrDefault(username, 0L);
+    catchingUp.put(username, after);
+    storage.execute(username, () -> {
+      try {
+        catchUp(username, connection, rooms, after);
+      } finally {
+        catchingUp.remove(username, after);
+      }
+    });
+  }
+
+  private void catchUp(String username, Connection connection, Set<String> rooms, long after) {
+    int batchSize = config.getCatchUpBatchSize();
+    List<Message> batch = new ArrayList<>(batchSize);
+    long[] batchStart = new long[1];
+    int[] sent = new int[1];
+    messageLog.read(after, messageLog.lastSequence(),
+        entry -> !entry.isImported() && !username.equals(entry.getSender())
+            && rooms.contains(entry.getRoomId()),
+        entry -> {
+          sent[0]++;
+          if (entry.getChatRoom() != null) {
+            connection.send(EncodedPacket.of(Packet.builder().type(PacketType.CREATE_CHAT)
+                .chatRoom(entry.getChatRoom()).build(), packetCodec), entry.getSequence());
+            return;
+          }
+          if (batch.isEmpty()) {
+            batchStart[0] = entry.getSequence();
+          }
+          batch.add(entry.getMessage());
+          if (batch.size() == batchSize) {
+            connection.send(EncodedPacket.of(Packet.builder().type(PacketType.CATCH_UP)
+                .messages(List.copyOf(batch)).build(), packetCodec), batchStart[0]);
+            batch.clear();
+          }
+        });
+    if (!batch.isEmpty()) {
+      connection.send(EncodedPacket.of(Packet.builder().type(PacketType.CATCH_UP)
+          .messages(batch).build(), packetCodec), batchStart[0]);
     }
+    log.info("Caught {} up on {} entries after sequence {}", username, sent[0], after);
+  }
+
+  /**
+   * Sends a packet to the online recipients but the sender. Recipients connected to other nodes of
+   * the cluster are relayed with one message per node.
+   */
+  private void fanOut(Packet packet, Set<String> recipients, String sender, long sequence) {
+    long start = System.nanoTime();
+    EncodedPacket encoded = null;
+    Map<String, List<String>> remote = new HashMap<>();
+    int delivered = 0;
+    for (String user : recipients) {
+      Connection connection = user.equals(sender) ? null : onlineUsers.get(user);
+      if (connection == null) {
+        continue;
+      }
+      if (connection instanceof RemoteConnection remoteConnection) {
+        remote.computeIfAbsent(remoteConnection.getNodeId(), node -> new ArrayList<>()).add(user);
+        delivered++;
+        continue;
+      }
+      if (encoded == null) {
+        encoded = EncodedPacket.of(packet, packetCodec);
+      }
+      try {
+        connection.send(encoded, sequence);
+        delivered++;
+      } catch (RuntimeException e) {
+        log.error("Failed to forward packet to {}: {}", user, e.getMessage());
+      }
+    }
+    remote.forEach((node, users) -> cluster.deliver(node, users, packet));
+    fanOutRecipients.record(delivered);
+    fanOutMicros.recordSince(start);
+    log.info("Forwarded packet to {} users: {}", delivered, packet);
   }
 
   public void start() {
-    try {
-      while (true) {
-        Socket socket = serverSocket.accept();
-        new Thread(new ServerService(socket, this)).start();
+    Metrics.registerMBean(config.getNodeId() == null ? "server" : "server-" + config.getNodeId());
+    if (config.getMetricsPort() > 0) {
+      try {
+        MetricsEndpoint.start(config.getMetricsPort());
+        log.info("Serving metrics on http://localhost:{}/metrics", config.getMetricsPort());
+      } catch (IOException e) {
+        log.error("Failed to serve metrics on port {}: {}", config.getMetricsPort(),
+            e.getMessage());
+      }
+    }
+    ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "maintenance");
+      thread.setDaemon(true);
+      return thread;
+    });
+    maintenance.scheduleWithFixedDelay(
+        () -> blobStore.collectGarbage(Duration.ofMinutes(config.getBlobGcGraceMinutes())),
+        config.getBlobGcIntervalMinutes(), config.getBlobGcIntervalMinutes(), TimeUnit.MINUTES);
+    maintenance.scheduleWithFixedDelay(this::snapshot, config.getSnapshotIntervalMinutes(),
+        config.getSnapshotIntervalMinutes(), TimeUnit.MINUTES);
+    if (cluster != null) {
+      cluster.start();
+    }
+    switch (config.getMode()) {
+      case NIO -> new NioEngine(this, config).start();
+      case BLOCKING, VIRTUAL -> {
+        ExecutorService executor = config.getConnectionExecutor() != null
+            ? config.getConnectionExecutor() : ConnectionExecutors.forMode(config.getMode());
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+          serverChannel.bind(new InetSocketAddress(config.getPort()));
+          while (true) {
+            SocketChannel channel = serverChannel.accept();
+            executor.execute(new ServerService(channel, this, executor));
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        } finally {
+          executor.shutdown();
+        }
       }
-    } catch (IOException e) {
-      throw new RuntimeException(e);
     }
   }
 
   public void clientLogout(String username) {
     if (username != null && onlineUsers.containsKey(username)) {
+      recordDeliveryCursor(username);
       onlineUsers.remove(username);
-      notifyAllUsers(
-          Packet.builder().type(PacketType.LOGOUT).user(User.builder().username(username).build())
-              .build());
+      presence.offline(username);
+      if (cluster != null) {
+        cluster.userOffline(username);
+      }
+    }
+  }
+
+  /**
+   * Remembers how far the log reached {@code username}, who is going offline: up to the first
+   * entry that was still being fanned out or caught up on, or that was queued for their
+   * connection but never written to it.
+   */
+  public void recordDeliveryCursor(String username) {
+    long delivered = messageLog.deliveredThrough();
+    Connection connection = onlineUsers.get(username);
+    if (connection != null) {
+      delivered = Math.min(delivered, connection.firstUnwritten() - 1);
+    }
+    Long caughtUpFrom = catchingUp.get(username);
+    if (caughtUpFrom != null) {
+      delivered = Math.min(delivered, caughtUpFrom);
     }
+    deliveredSequences.put(username, delivered);
+    cursorWriter.log(new DeliveryCursor(username, delivered));
   }
 }
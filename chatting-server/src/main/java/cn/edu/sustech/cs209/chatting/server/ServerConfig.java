@@ -0,0 +1,162 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.LogOptions;
+import cn.edu.sustech.cs209.chatting.common.PacketCodec;
+import cn.edu.sustech.cs209.chatting.common.SyncMode;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import lombok.Builder;
+import lombok.Getter;
+
+@Getter
+@Builder
+public class ServerConfig {
+
+  @Builder.Default
+  private final int port = 2345;
+  @Builder.Default
+  private final Path dataDirectory = Path.of("/Users/suih/chatting/server");
+  @Builder.Default
+  private final ServerMode mode = ServerMode.NIO;
+  @Builder.Default
+  private final int ioThreads = Runtime.getRuntime().availableProcessors();
+  @Builder.Default
+  private final int acceptorThreads = 1;
+  @Builder.Default
+  private final long flushLatencyBudgetMicros = 0;
+  @Builder.Default
+  private final int maxBatchBytes = 64 * 1024;
+  @Builder.Default
+  private final int maxFrameBytes = PacketCodec.DEFAULT_MAX_FRAME_BYTES;
+  @Builder.Default
+  private final boolean binaryFraming = true;
+  @Builder.Default
+  private final long blobGcIntervalMinutes = 60;
+  @Builder.Default
+  private final long blobGcGraceMinutes = 24 * 60;
+  @Builder.Default
+  private final int messageLogShards = 16;
+  @Builder.Default
+  private final int userLogShards = 4;
+  @Builder.Default
+  private final long expectedUsers = 1_000_000;
+  @Builder.Default
+  private final int catchUpBatchSize = 256;
+  /**
+   * Threads for file transfers and log reads requested by clients, kept off the I/O threads.
+   */
+  @Builder.Default
+  private final int storageThreads = 4;
+  @Builder.Default
+  private final long presenceBatchMillis = 50;
+  @Builder.Default
+  private final long snapshotIntervalMinutes = 30;
+  @Builder.Default
+  private final SyncMode logSyncMode = SyncMode.BATCH;
+  @Builder.Default
+  private final long logSyncIntervalMillis = 10;
+  @Builder.Default
+  private final long logSegmentBytes = 64L * 1024 * 1024;
+  @Builder.Default
+  private final long logSegmentAgeMinutes = 0;
+  /**
+   * Bytes a connection may have queued for sending before the slow-consumer policy applies.
+   */
+  @Builder.Default
+  private final long outboundBufferBytes = 4L * 1024 * 1024;
+  /**
+   * {@link SlowConsumerPolicy#BLOCK} is rejected in {@link ServerMode#NIO}.
+   */
+  @Builder.Default
+  private final SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_PRESENCE;
+  @Builder.Default
+  private final long slowConsumerTimeoutMillis = 1000;
+  /**
+   * Local port serving metrics at {@code /metrics}, or 0 for JMX only.
+   */
+  @Builder.Default
+  private final int metricsPort = 0;
+  private final ExecutorService connectionExecutor;
+  /**
+   * Name of this node in a cluster, or {@code null} to run standalone.
+   */
+  private final String nodeId;
+  @Builder.Default
+  private final String clusterHost = "localhost";
+  @Builder.Default
+  private final int clusterPort = 2346;
+  @Builder.Default
+  private final List<String> clusterPeers = List.of();
+  /**
+   * Broker to join the cluster through; a {@link TcpBroker} on {@code clusterPort} if unset.
+   */
+  private final Broker broker;
+
+  /**
+   * Throws {@link IllegalArgumentException} for settings that cannot work together.
+   */
+  public void validate() {
+    if (mode == ServerMode.NIO && slowConsumerPolicy == SlowConsumerPolicy.BLOCK) {
+      throw new IllegalArgumentException("Slow-consumer policy " + SlowConsumerPolicy.BLOCK
+          + " would block event loops; use it with " + ServerMode.BLOCKING + " or "
+          + ServerMode.VIRTUAL + " mode");
+    }
+  }
+
+  public Set<WireFormat> getWireFormats() {
+    return binaryFraming ? EnumSet.allOf(WireFormat.class) : EnumSet.of(WireFormat.JSON_LINES);
+  }
+
+  public LogOptions getLogOptions() {
+    return LogOptions.builder().syncMode(logSyncMode).syncIntervalMillis(logSyncIntervalMillis)
+        .segmentBytes(logSegmentBytes)
+        .segmentAgeMillis(TimeUnit.MINUTES.toMillis(logSegmentAgeMinutes)).build();
+  }
+
+  public static ServerConfig fromSystemProperties() {
+    return ServerConfig.builder()
+        .port(Integer.getInteger("chatting.port", 2345))
+        .dataDirectory(Path.of(System.getProperty("chatting.data-dir",
+            "/Users/suih/chatting/server")))
+        .mode(ServerMode.valueOf(System.getProperty("chatting.mode", ServerMode.NIO.name())))
+        .ioThreads(Integer.getInteger("chatting.io-threads",
+            Runtime.getRuntime().availableProcessors()))
+        .acceptorThreads(Integer.getInteger("chatting.acceptor-threads", 1))
+        .flushLatencyBudgetMicros(Long.getLong("chatting.flush-latency-budget-micros", 0))
+        .maxBatchBytes(Integer.getInteger("chatting.max-batch-bytes", 64 * 1024))
+        .maxFrameBytes(Integer.getInteger("chatting.max-frame-bytes",
+            PacketCodec.DEFAULT_MAX_FRAME_BYTES))
+        .blobGcIntervalMinutes(Long.getLong("chatting.blob-gc-interval-minutes", 60))
+        .blobGcGraceMinutes(Long.getLong("chatting.blob-gc-grace-minutes", 24 * 60))
+        .messageLogShards(Integer.getInteger("chatting.message-log-shards", 16))
+        .userLogShards(Integer.getInteger("chatting.user-log-shards", 4))
+        .expectedUsers(Long.getLong("chatting.expected-users", 1_000_000))
+        .catchUpBatchSize(Integer.getInteger("chatting.catch-up-batch-size", 256))
+        .storageThreads(Integer.getInteger("chatting.storage-threads", 4))
+        .presenceBatchMillis(Long.getLong("chatting.presence-batch-millis", 50))
+        .snapshotIntervalMinutes(Long.getLong("chatting.snapshot-interval-minutes", 30))
+        .logSyncMode(SyncMode.valueOf(System.getProperty("chatting.log-sync-mode",
+            SyncMode.BATCH.name())))
+        .logSyncIntervalMillis(Long.getLong("chatting.log-sync-interval-millis", 10))
+        .logSegmentBytes(Long.getLong("chatting.log-segment-bytes", 64L * 1024 * 1024))
+        .logSegmentAgeMinutes(Long.getLong("chatting.log-segment-age-minutes", 0))
+        .outboundBufferBytes(Long.getLong("chatting.outbound-buffer-bytes", 4L * 1024 * 1024))
+        .slowConsumerPolicy(SlowConsumerPolicy.valueOf(System.getProperty(
+            "chatting.slow-consumer-policy", SlowConsumerPolicy.DROP_PRESENCE.name())))
+        .slowConsumerTimeoutMillis(Long.getLong("chatting.slow-consumer-timeout-millis", 1000))
+        .metricsPort(Integer.getInteger("chatting.metrics-port", 0))
+        .binaryFraming(Boolean.parseBoolean(System.getProperty("chatting.binary-framing", "true")))
+        .nodeId(System.getProperty("chatting.node-id"))
+        .clusterHost(System.getProperty("chatting.cluster-host", "localhost"))
+        .clusterPort(Integer.getInteger("chatting.cluster-port", 2346))
+        .clusterPeers(Arrays.stream(System.getProperty("chatting.cluster-peers", "").split(","))
+            .map(String::trim).filter(peer -> !peer.isEmpty()).toList())
+        .build();
+  }
+}
@@ -0,0 +1,5 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+public enum ServerMode {
+  BLOCKING, VIRTUAL, NIO
+}
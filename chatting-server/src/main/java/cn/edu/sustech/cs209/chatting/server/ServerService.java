@@ -1,50 +1,122 @@
 package cn.edu.sustech.cs209.chatting.server;
 
+import cn.edu.sustech.cs209.chatting.common.EncodedPacket;
 import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.PacketCodec;
+import cn.edu.sustech.cs209.chatting.common.PacketReader;
 import cn.edu.sustech.cs209.chatting.common.PacketType;
-import cn.edu.sustech.cs209.chatting.common.User;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
-public class ServerService implements Runnable {
+public class ServerService implements Runnable, Connection {
 
-  private String username;
+  private volatile String username;
   private final Server server;
-  private final Socket socket;
-  private final BufferedReader in;
-  private final BufferedWriter out;
-  private final ObjectMapper objectMapper;
+  private final SocketChannel channel;
+  private final Executor executor;
+  private final PacketReader in;
+  private final OutboundQueue outbound;
+  private final PacketCodec codec;
+  private volatile WireFormat wireFormat;
+  private volatile Thread writerThread;
+  private volatile boolean closed;
 
-  public ServerService(Socket socket, Server server) {
+  public ServerService(SocketChannel channel, Server server, Executor executor) {
     this.server = server;
-    this.socket = socket;
-    objectMapper = new ObjectMapper();
+    this.channel = channel;
+    this.executor = executor;
+    codec = server.getPacketCodec();
+    wireFormat = WireFormat.JSON_LINES;
+    outbound = new OutboundQueue(server.getConfig().getMaxBatchBytes(),
+        server.getConfig().getOutboundBufferBytes(), server.getConfig().getSlowConsumerPolicy(),
+        TimeUnit.MILLISECONDS.toNanos(server.getConfig().getSlowConsumerTimeoutMillis()));
     try {
-      in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-      out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+      in = new PacketReader(channel.socket().getInputStream(), codec,
+          server.getConfig().getMaxFrameBytes());
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  @Override
+  public String getUsername() {
+    return username;
+  }
+
+  @Override
+  public void setUsername(String username) {
+    this.username = username;
+  }
+
+  @Override
+  public WireFormat getWireFormat() {
+    return wireFormat;
+  }
+
+  @Override
+  public void setWireFormat(WireFormat format, Packet announcement) {
+    ByteBuffer frame = EncodedPacket.of(announcement, codec).buffer(wireFormat);
+    wireFormat = format;
+    enqueue(frame, announcement.getType(), 0);
+    log.info("Sent packet to {}: {}", username, announcement);
+  }
+
+  @Override
+  public void setInboundFormat(WireFormat format) {
+    in.setFormat(format);
+  }
+
+  @Override
   public void sendPacket(Packet packet) {
-    try {
-      out.write(objectMapper.writeValueAsString(packet));
-      out.newLine();
-      out.flush();
-      log.info("Sent packet to {}: {}", username, packet);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+    enqueue(EncodedPacket.of(packet, codec));
+    log.info("Sent packet to {}: {}", username, packet);
+  }
+
+  @Override
+  public void send(EncodedPacket packet) {
+    send(packet, 0);
+  }
+
+  @Override
+  public void send(EncodedPacket packet, long sequence) {
+    enqueue(packet.buffer(wireFormat), packet.getType(), sequence);
+    log.debug("Sent {} packet to {}", packet.getType(), username);
+  }
+
+  @Override
+  public long firstUnwritten() {
+    return outbound.firstUnwritten();
+  }
+
+  private void enqueue(EncodedPacket packet) {
+    enqueue(packet.buffer(wireFormat), packet.getType(), 0);
+  }
+
+  private void enqueue(ByteBuffer frame, PacketType type, long sequence) {
+    if (closed) {
+      outbound.missed(sequence);
+      return;
+    }
+    OutboundQueue.Offer offer = outbound.offer(frame, type, sequence);
+    if (offer != OutboundQueue.Offer.QUEUED && !server.getSlowConsumers()
+        .record(username, type, offer, outbound.queuedBytes())) {
+      close();
     }
   }
 
   public Packet receivePacket() {
     try {
-      Packet packet = objectMapper.readValue(in.readLine(), Packet.class);
+      Packet packet = in.read();
+      if (packet == null) {
+        throw new EOFException("Connection closed by peer");
+      }
       log.info("Received packet from {}: {}", username, packet);
       return packet;
     } catch (IOException e) {
@@ -52,67 +124,60 @@ public class ServerService implements Runnable {
     }
   }
 
-  private void handlePacket(Packet packet) {
-    switch (packet.getType()) {
-      case LOGIN -> {
-        String username = packet.getUser().getUsername();
-        String password = packet.getUser().getPassword();
-        if (!server.getUsers().contains(new User(username, password))) {
-          sendPacket(Packet.builder().info("Username or Password not Correct")
-              .type(PacketType.LOGIN_FAILED).build());
-        } else if (server.getOnlineUsers().containsKey(username)) {
-          sendPacket(
-              Packet.builder().info("User Already Login").type(PacketType.LOGIN_FAILED)
-                  .build());
-        } else {
-          log.info("User {} logged in", username);
-          this.username = username;
-          sendPacket(Packet.builder().type(PacketType.LOGIN_SUCCESS).build());
-          server.getOnlineUsers().keySet().forEach(user -> sendPacket(
-              Packet.builder().type(PacketType.NEW_USER)
-                  .user(User.builder().username(user).build())
-                  .build()));
-          server.addUser(username, this);
-        }
-      }
-      case REGISTER -> {
-        String username = packet.getUser().getUsername();
-        String password = packet.getUser().getPassword();
-        if (server.getUsers().stream().map(User::getUsername).anyMatch(username::equals)) {
-          sendPacket(
-              Packet.builder().info("Username Already Exist").type(PacketType.REGISTER_FAILED)
-                  .build());
-        } else {
-          User user = new User(username, password);
-          server.getUsers().add(user);
-          server.getUserWriter().log(user);
-          sendPacket(Packet.builder().type(PacketType.REGISTER_SUCCESS).build());
-        }
-      }
-      case MESSAGE -> server.forward(packet);
-      case CREATE_CHAT -> {
-        server.getChatroomWriter().log(packet.getChatRoom());
-        server.getChatRooms().put(packet.getChatRoom().getId(), packet.getChatRoom());
-        server.forward(packet);
+  /**
+   * Publishes the writer thread before checking {@link #closed}, and {@link #close} sets the flag
+   * before reading the thread, so a close that races the writer's start either stops the loop or
+   * interrupts it. The channel is in blocking mode, so each write waits until the socket takes
+   * bytes.
+   */
+  private void writeLoop() {
+    writerThread = Thread.currentThread();
+    long latencyBudget = TimeUnit.MICROSECONDS.toNanos(
+        server.getConfig().getFlushLatencyBudgetMicros());
+    try {
+      while (!closed) {
+        outbound.awaitBatch(latencyBudget);
+        boolean drained;
+        do {
+          drained = outbound.writeTo(channel);
+        } while (!drained);
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      log.info("Connection of {} closed: {}", username, e.getMessage());
+      close();
+    } finally {
+      outbound.discard();
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      log.error(e.getMessage());
+    }
+    Thread writer = writerThread;
+    if (writer != null && writer != Thread.currentThread()) {
+      writer.interrupt();
     }
   }
 
   @Override
   public void run() {
+    executor.execute(this::writeLoop);
     try {
-      try {
-        while (true) {
-          Packet packet = receivePacket();
-          handlePacket(packet);
-        }
-      } catch (RuntimeException e) {
-        server.clientLogout(username);
-      } finally {
-        socket.close();
+      while (true) {
+        Packet packet = receivePacket();
+        server.getPacketHandler().handlePacket(this, packet);
       }
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+    } catch (RuntimeException e) {
+      server.clientLogout(username);
+    } finally {
+      close();
     }
   }
 }
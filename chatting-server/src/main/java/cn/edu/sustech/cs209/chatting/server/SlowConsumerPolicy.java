@@ -0,0 +1,22 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+/**
+ * What a connection does with a packet when its outbound buffer is full.
+ */
+public enum SlowConsumerPolicy {
+  /**
+   * Makes the sender wait up to {@code slowConsumerTimeoutMillis} for room, then disconnects. Only
+   * for {@link ServerMode#BLOCKING} and {@link ServerMode#VIRTUAL}: under {@link ServerMode#NIO}
+   * the sender is an event loop, which would stall its other connections and could be the very
+   * loop that has to drain the full buffer.
+   */
+  BLOCK,
+  /**
+   * Drops presence updates once the buffer is half full and disconnects when it is full.
+   */
+  DROP_PRESENCE,
+  /**
+   * Disconnects as soon as the buffer is full.
+   */
+  DISCONNECT
+}
@@ -0,0 +1,57 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.Counter;
+import cn.edu.sustech.cs209.chatting.common.Metrics;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Server-wide counts of what the {@link SlowConsumerPolicy} did to packets that did not fit a
+ * connection's outbound buffer.
+ */
+@Slf4j
+public class SlowConsumerStats {
+
+  private final Counter waits = Metrics.counter("chatting_slow_consumer_waits_total");
+  private final Counter drops = Metrics.counter("chatting_slow_consumer_drops_total");
+  private final Counter disconnects = Metrics.counter("chatting_slow_consumer_disconnects_total");
+
+  /**
+   * Counts and logs the outcome of offering a packet to {@code username}'s connection; returns
+   * {@code false} when the connection has to be closed.
+   */
+  public boolean record(String username, PacketType type, OutboundQueue.Offer offer,
+      long queuedBytes) {
+    switch (offer) {
+      case QUEUED_AFTER_WAIT -> {
+        waits.increment();
+        log.info("Waited for {} to read before queueing a {} packet", username, type);
+      }
+      case DROPPED -> {
+        drops.increment();
+        log.info("Dropped {} packet to {} with {} bytes queued", type, username, queuedBytes);
+      }
+      case OVERFLOW -> {
+        disconnects.increment();
+        log.warn("Disconnecting {}: {} bytes queued, {} packet does not fit", username,
+            queuedBytes, type);
+        return false;
+      }
+      case QUEUED -> {
+      }
+    }
+    return true;
+  }
+
+  public long getWaits() {
+    return waits.get();
+  }
+
+  public long getDrops() {
+    return drops.get();
+  }
+
+  public long getDisconnects() {
+    return disconnects.get();
+  }
+}
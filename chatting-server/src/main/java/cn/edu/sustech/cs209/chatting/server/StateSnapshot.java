@@ -0,0 +1,152 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.ChatRoom;
+import cn.edu.sustech.cs209.chatting.common.ChatType;
+import cn.edu.sustech.cs209.chatting.common.User;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary image of the user directory, the room table and the delivery cursors, together with the
+ * last log segment of each user shard, {@code room.dat} and {@code cursor.dat} it covers. On
+ * startup only the segments after those need to be replayed.
+ */
+public record StateSnapshot(long[] userSegments, long roomSegment, long cursorSegment,
+                            List<User> users, List<ChatRoom> chatRooms,
+                            Map<String, Long> deliveredSequences) {
+
+  private static final int MAGIC = 0x43485353;
+  private static final int VERSION = 2;
+
+  /**
+   * Writes the snapshot next to {@code path} and moves it into place, so a crash leaves either the
+   * previous snapshot or this one.
+   */
+  public void write(Path path) throws IOException {
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+      CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file),
+          new CRC32());
+      DataOutputStream out = new DataOutputStream(checked);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(userSegments.length);
+      for (long userSegment : userSegments) {
+        out.writeLong(userSegment);
+      }
+      out.writeLong(roomSegment);
+      out.writeLong(cursorSegment);
+      out.writeInt(users.size());
+      for (User user : users) {
+        out.writeUTF(user.getUsername());
+        writeNullable(out, user.getPassword());
+      }
+      out.writeInt(chatRooms.size());
+      for (ChatRoom chatRoom : chatRooms) {
+        out.writeUTF(chatRoom.getId());
+        writeNullable(out, chatRoom.getType() == null ? null : chatRoom.getType().name());
+        out.writeInt(chatRoom.getUsers().size());
+        for (String username : chatRoom.getUsers()) {
+          out.writeUTF(username);
+        }
+      }
+      out.writeInt(deliveredSequences.size());
+      for (Map.Entry<String, Long> cursor : deliveredSequences.entrySet()) {
+        out.writeUTF(cursor.getKey());
+        out.writeLong(cursor.getValue());
+      }
+      out.flush();
+      out.writeLong(checked.getChecksum().getValue());
+      out.flush();
+      file.getFD().sync();
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads the snapshot at {@code path}, or returns {@code null} when there is none.
+   */
+  public static StateSnapshot read(Path path) throws IOException {
+    try (CheckedInputStream checked = new CheckedInputStream(
+        new BufferedInputStream(Files.newInputStream(path)), new CRC32())) {
+      DataInputStream in = new DataInputStream(checked);
+      int magic = in.readInt();
+      int version = in.readInt();
+      if (magic != MAGIC || version < 1 || version > VERSION) {
+        throw new IOException("Unsupported snapshot " + path);
+      }
+      long[] userSegments;
+      if (version == 1) {
+        // Covered the single user.dat log, whose remaining segments are imported separately.
+        in.readLong();
+        userSegments = new long[0];
+      } else {
+        userSegments = new long[in.readInt()];
+        for (int i = 0; i < userSegments.length; i++) {
+          userSegments[i] = in.readLong();
+        }
+      }
+      long roomSegment = in.readLong();
+      long cursorSegment = in.readLong();
+      int userCount = in.readInt();
+      List<User> users = new ArrayList<>(userCount);
+      for (int i = 0; i < userCount; i++) {
+        users.add(new User(in.readUTF(), readNullable(in)));
+      }
+      int roomCount = in.readInt();
+      List<ChatRoom> chatRooms = new ArrayList<>(roomCount);
+      for (int i = 0; i < roomCount; i++) {
+        String id = in.readUTF();
+        String type = readNullable(in);
+        int memberCount = in.readInt();
+        Set<String> members = new HashSet<>();
+        for (int j = 0; j < memberCount; j++) {
+          members.add(in.readUTF());
+        }
+        chatRooms.add(new ChatRoom(id, type == null ? null : ChatType.valueOf(type), members, 0));
+      }
+      int cursorCount = in.readInt();
+      Map<String, Long> deliveredSequences = new HashMap<>();
+      for (int i = 0; i < cursorCount; i++) {
+        deliveredSequences.put(in.readUTF(), in.readLong());
+      }
+      long checksum = checked.getChecksum().getValue();
+      if (in.readLong() != checksum) {
+        throw new IOException("Corrupt snapshot " + path);
+      }
+      return new StateSnapshot(userSegments, roomSegment, cursorSegment, users, chatRooms,
+          deliveredSequences);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  private static void writeNullable(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readNullable(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
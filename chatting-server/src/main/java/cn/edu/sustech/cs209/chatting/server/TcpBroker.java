@@ -0,0 +1,340 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.Mappers;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Broker over TCP, one connection per pair of nodes carrying JSON lines. A node is started with the
+ * address of at least one other member; peers exchange the addresses they know on connect and
+ * whenever a node joins, so the nodes end up fully meshed. A node leaves the cluster when its
+ * connection closes, and addresses are redialed periodically so a restarted node rejoins by
+ * itself.
+ *
+ * <p>Sending only encodes the frame and queues it; each peer has a writer thread of its own, so a
+ * slow or stalled node never holds up the threads forwarding to it. A peer whose queue outgrows
+ * {@value #PEER_BUFFER_BYTES} bytes is disconnected.
+ */
+@Slf4j
+public class TcpBroker implements Broker {
+
+  private static final long DIAL_INTERVAL_MILLIS = 1000;
+  private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+  private static final int MAX_BATCH_BYTES = 64 * 1024;
+  private static final long PEER_BUFFER_BYTES = 64L * 1024 * 1024;
+  private static final ObjectWriter WRITER = Mappers.JSON.writerFor(Frame.class);
+  private static final ObjectReader READER = Mappers.JSON.readerFor(Frame.class);
+
+  private final String host;
+  private final int port;
+  private final Set<String> addresses;
+  private final Set<String> dialing;
+  private final Map<String, Peer> peers;
+  private String nodeId;
+  private String address;
+  private Consumer<ClusterMessage> handler;
+  private Consumer<Set<String>> membership;
+  private ServerSocketChannel serverSocket;
+  private ScheduledExecutorService dialer;
+  private volatile boolean closed;
+
+  /**
+   * @param host  the host other nodes reach this one at
+   * @param port  the port to listen on for other nodes
+   * @param seeds {@code host:port} of other members to start from
+   */
+  public TcpBroker(String host, int port, List<String> seeds) {
+    this.host = host;
+    this.port = port;
+    addresses = ConcurrentHashMap.newKeySet();
+    addresses.addAll(seeds);
+    dialing = ConcurrentHashMap.newKeySet();
+    peers = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public void join(String nodeId, Consumer<ClusterMessage> handler,
+      Consumer<Set<String>> membership) {
+    this.nodeId = nodeId;
+    this.handler = handler;
+    this.membership = membership;
+    address = host + ":" + port;
+    try {
+      serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    Thread acceptor = new Thread(this::accept, "broker-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    dialer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "broker-dialer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    dialer.scheduleWithFixedDelay(this::dial, 0, DIAL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    membership.accept(members());
+    log.info("Node {} listening for peers on {}", nodeId, address);
+  }
+
+  @Override
+  public void send(String nodeId, ClusterMessage message) {
+    Peer peer = peers.get(nodeId);
+    if (peer == null) {
+      log.warn("Dropping {} for unknown node {}", message.getType(), nodeId);
+      return;
+    }
+    peer.write(new Frame(null, null, null, message));
+  }
+
+  @Override
+  public void broadcast(ClusterMessage message) {
+    peers.keySet().forEach(peer -> send(peer, message));
+  }
+
+  @Override
+  public Set<String> members() {
+    Set<String> members = new TreeSet<>(peers.keySet());
+    members.add(nodeId);
+    return members;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    dialer.shutdownNow();
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      log.error(e.getMessage());
+    }
+    peers.values().forEach(Peer::close);
+  }
+
+  private void accept() {
+    while (!closed) {
+      try {
+        start(new Peer(serverSocket.accept(), false));
+      } catch (IOException e) {
+        if (!closed) {
+          log.error("Failed to accept a peer: {}", e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void dial() {
+    Set<String> connected = new TreeSet<>();
+    peers.values().forEach(peer -> connected.add(peer.address));
+    for (String target : addresses) {
+      if (target.equals(address) || connected.contains(target) || !dialing.add(target)) {
+        continue;
+      }
+      int colon = target.lastIndexOf(':');
+      SocketChannel channel = null;
+      try {
+        channel = SocketChannel.open();
+        channel.socket().connect(new InetSocketAddress(target.substring(0, colon),
+            Integer.parseInt(target.substring(colon + 1))), CONNECT_TIMEOUT_MILLIS);
+        Peer peer = new Peer(channel, true);
+        peer.dialed = target;
+        start(peer);
+      } catch (IOException | RuntimeException e) {
+        dialing.remove(target);
+        try {
+          if (channel != null) {
+            channel.close();
+          }
+        } catch (IOException ignored) {
+          // Nothing was connected.
+        }
+      }
+    }
+  }
+
+  private void start(Peer peer) {
+    Thread writer = new Thread(peer::writeLoop, "broker-peer-writer");
+    writer.setDaemon(true);
+    peer.writer = writer;
+    writer.start();
+    Thread reader = new Thread(peer::run, "broker-peer");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Registers a peer after its handshake. When two nodes dialed each other at the same time, both
+   * keep the connection dialed by the node with the smaller id.
+   */
+  private synchronized boolean register(Peer peer) {
+    Peer existing = peers.get(peer.nodeId);
+    if (existing != null) {
+      boolean dialedBySmaller = peer.outbound ? nodeId.compareTo(peer.nodeId) < 0
+          : peer.nodeId.compareTo(nodeId) < 0;
+      if (!dialedBySmaller) {
+        return false;
+      }
+      existing.replaced = true;
+      existing.close();
+    }
+    peers.put(peer.nodeId, peer);
+    if (existing == null) {
+      log.info("Node {} joined from {}", peer.nodeId, peer.address);
+      membership.accept(members());
+      Frame known = new Frame(null, null, List.copyOf(addresses), null);
+      peers.values().forEach(other -> other.write(known));
+    }
+    return true;
+  }
+
+  private synchronized void unregister(Peer peer) {
+    if (peer.nodeId != null && peers.remove(peer.nodeId, peer)) {
+      log.info("Node {} left", peer.nodeId);
+      membership.accept(members());
+    }
+  }
+
+  /**
+   * One line on the wire: a handshake announcing a node and the addresses it knows, or a message.
+   */
+  private record Frame(String nodeId, String address, List<String> addresses,
+                       ClusterMessage message) {
+  }
+
+  private final class Peer {
+
+    private final SocketChannel channel;
+    private final boolean outbound;
+    private final OutboundQueue queue;
+    private String nodeId;
+    private String address;
+    private String dialed;
+    private volatile boolean replaced;
+    private volatile Thread writer;
+
+    Peer(SocketChannel channel, boolean outbound) {
+      this.channel = channel;
+      this.outbound = outbound;
+      queue = new OutboundQueue(MAX_BATCH_BYTES, PEER_BUFFER_BYTES, SlowConsumerPolicy.DISCONNECT,
+          0);
+    }
+
+    void run() {
+      try (BufferedReader in = new BufferedReader(
+          new InputStreamReader(channel.socket().getInputStream(), StandardCharsets.UTF_8))) {
+        List<String> known = new ArrayList<>(addresses);
+        known.add(TcpBroker.this.address);
+        write(new Frame(TcpBroker.this.nodeId, TcpBroker.this.address, known, null));
+        String line = in.readLine();
+        if (line == null) {
+          return;
+        }
+        Frame hello = READER.readValue(line);
+        nodeId = hello.nodeId();
+        address = hello.address();
+        addresses.addAll(hello.addresses());
+        if (!register(this)) {
+          return;
+        }
+        while ((line = in.readLine()) != null) {
+          Frame frame = READER.readValue(line);
+          ClusterMessage message = frame.message();
+          if (message == null) {
+            addresses.addAll(frame.addresses());
+            continue;
+          }
+          try {
+            handler.accept(message);
+          } catch (RuntimeException e) {
+            log.error("Failed to handle {} from {}: {}", message.getType(), nodeId,
+                e.getMessage());
+          }
+        }
+      } catch (IOException e) {
+        if (!closed && !replaced) {
+          log.info("Connection to node {} closed: {}", nodeId, e.getMessage());
+        }
+      } finally {
+        close();
+        if (dialed != null) {
+          dialing.remove(dialed);
+        }
+        if (!replaced) {
+          unregister(this);
+        }
+      }
+    }
+
+    /**
+     * Queues a frame for the writer thread; never blocks.
+     */
+    void write(Frame frame) {
+      if (!channel.isOpen()) {
+        return;
+      }
+      byte[] json;
+      try {
+        json = WRITER.writeValueAsBytes(frame);
+      } catch (IOException e) {
+        log.error("Failed to encode a frame for node {}: {}", nodeId, e.getMessage());
+        return;
+      }
+      ByteBuffer line = ByteBuffer.allocate(json.length + 1).put(json).put((byte) '\n').flip();
+      if (queue.offer(line, null) == OutboundQueue.Offer.OVERFLOW) {
+        log.warn("Disconnecting node {}, which has {} bytes queued", nodeId, queue.queuedBytes());
+        close();
+      }
+    }
+
+    void writeLoop() {
+      try {
+        while (channel.isOpen()) {
+          queue.awaitBatch(0);
+          while (!queue.writeTo(channel)) {
+            Thread.onSpinWait();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (IOException e) {
+        if (!closed && !replaced) {
+          log.info("Failed to write to node {}: {}", nodeId, e.getMessage());
+        }
+        close();
+      } finally {
+        queue.discard();
+      }
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.error(e.getMessage());
+      }
+      Thread thread = writer;
+      if (thread != null && thread != Thread.currentThread()) {
+        thread.interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.ChatLogReader;
+import cn.edu.sustech.cs209.chatting.common.ChatLogger;
+import cn.edu.sustech.cs209.chatting.common.LogOptions;
+import cn.edu.sustech.cs209.chatting.common.User;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Registered users, keyed by username. Lookups go through a {@link BloomFilter} first, so probing
+ * for a name nobody has taken, which is what most registrations do, never touches the map.
+ * Registration claims a name atomically and then persists the user to one of several log shards
+ * chosen by username, so concurrent registrations neither race on the name nor queue up behind a
+ * single writer.
+ */
+@Slf4j
+public class UserDirectory {
+
+  private static final double FALSE_POSITIVE_RATE = 0.01;
+
+  private final Map<String, User> users;
+  private final BloomFilter names;
+  private final ChatLogger<User>[] writers;
+  private final ChatLogReader<User>[] readers;
+
+  @SuppressWarnings("unchecked")
+  public UserDirectory(Path directory, int shardCount, long expectedUsers, LogOptions options) {
+    users = new ConcurrentHashMap<>();
+    names = new BloomFilter(expectedUsers, FALSE_POSITIVE_RATE);
+    writers = new ChatLogger[shardCount];
+    readers = new ChatLogReader[shardCount];
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    for (int i = 0; i < shardCount; i++) {
+      Path shard = directory.resolve(String.format("shard-%02d.dat", i));
+      writers[i] = new ChatLogger<>(shard, options);
+      readers[i] = new ChatLogReader<>(User.class, shard);
+    }
+  }
+
+  /**
+   * Adds {@code snapshot} and then replays every shard from the segment after the one recorded for
+   * it, or from the start for shards without one.
+   */
+  public void restore(Collection<User> snapshot, long[] segments) {
+    snapshot.forEach(this::put);
+    for (int i = 0; i < readers.length; i++) {
+      readers[i].readChatLog(i < segments.length ? segments[i] : 0).forEach(this::put);
+    }
+  }
+
+  /**
+   * Moves the users of a single-file log written by older servers into the shards, then deletes
+   * it.
+   */
+  public void importLegacyLog(Path legacyLog) {
+    List<User> legacy = new ChatLogReader<>(User.class, legacyLog).readChatLog();
+    List<CompletableFuture<Boolean>> imported = new ArrayList<>(legacy.size());
+    legacy.forEach(user -> imported.add(register(user)));
+    try {
+      CompletableFuture.allOf(imported.toArray(CompletableFuture[]::new)).join();
+      ChatLogger.delete(legacyLog);
+      if (!legacy.isEmpty()) {
+        log.info("Imported {} users from {}", legacy.size(), legacyLog);
+      }
+    } catch (RuntimeException | IOException e) {
+      log.error("Failed to import {}: {}", legacyLog, e.getMessage());
+    }
+  }
+
+  public boolean exists(String username) {
+    return username != null && names.mightContain(username) && users.containsKey(username);
+  }
+
+  public boolean authenticate(String username, String password) {
+    User user = username != null && names.mightContain(username) ? users.get(username) : null;
+    return user != null && Objects.equals(user.getPassword(), password);
+  }
+
+  /**
+   * Claims the user's name and persists them. Completes with {@code false} when the name is taken,
+   * with {@code true} once the user is durable, and exceptionally, with the name released again,
+   * when the user could not be persisted.
+   */
+  public CompletableFuture<Boolean> register(User user) {
+    String username = user.getUsername();
+    if (exists(username) || users.putIfAbsent(username, user) != null) {
+      return CompletableFuture.completedFuture(false);
+    }
+    names.put(username);
+    return writerFor(username).log(user).handle((ignored, e) -> {
+      if (e != null) {
+        users.remove(username, user);
+        throw e instanceof RuntimeException runtime ? runtime : new RuntimeException(e);
+      }
+      return true;
+    });
+  }
+
+  public int size() {
+    return users.size();
+  }
+
+  public List<User> copy() {
+    return List.copyOf(users.values());
+  }
+
+  /**
+   * Seals every shard; the result holds, per shard, the last segment containing every user
+   * registered before this call.
+   */
+  public long[] seal() {
+    List<CompletableFuture<Long>> sealed = new ArrayList<>(writers.length);
+    for (ChatLogger<User> writer : writers) {
+      sealed.add(writer.seal());
+    }
+    return sealed.stream().mapToLong(CompletableFuture::join).toArray();
+  }
+
+  public void deleteSegmentsThrough(long[] segments) {
+    for (int i = 0; i < writers.length && i < segments.length; i++) {
+      writers[i].deleteSegmentsThrough(segments[i]);
+    }
+  }
+
+  public void close() {
+    for (ChatLogger<User> writer : writers) {
+      writer.close();
+    }
+  }
+
+  private void put(User user) {
+    if (user.getUsername() != null) {
+      users.put(user.getUsername(), user);
+      names.put(user.getUsername());
+    }
+  }
+
+  private ChatLogger<User> writerFor(String username) {
+    return writers[Math.floorMod(username.hashCode(), writers.length)];
+  }
+}
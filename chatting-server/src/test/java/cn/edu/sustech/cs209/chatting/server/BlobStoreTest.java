@@ -0,0 +1,110 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cn.edu.sustech.cs209.chatting.common.FileChunk;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BlobStoreTest {
+
+  /** Makes every stored file older than the grace period. */
+  private static final Duration EXPIRED = Duration.ofMinutes(-1);
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void collectionKeepsPinnedBlobsAndTheChunksTheyShare() throws Exception {
+    BlobStore store = new BlobStore(directory);
+    byte[] shared = filled(FileChunk.CHUNK_SIZE, 1);
+    byte[] pinnedTail = filled(10, 2);
+    byte[] unpinnedTail = filled(10, 3);
+    String pinned = upload(store, shared, pinnedTail);
+    String unpinned = upload(store, shared, unpinnedTail);
+    assertEquals(3, chunkCount());
+
+    store.addReference(pinned);
+    store.collectGarbage(EXPIRED);
+
+    assertTrue(store.contains(pinned));
+    assertFalse(store.contains(unpinned));
+    assertEquals(2, chunkCount());
+    assertArrayEquals(shared, store.read(pinned, 0, FileChunk.CHUNK_SIZE));
+    assertArrayEquals(pinnedTail, store.read(pinned, FileChunk.CHUNK_SIZE, FileChunk.CHUNK_SIZE));
+  }
+
+  @Test
+  void collectedChunkCanBeStoredAgain() throws Exception {
+    BlobStore store = new BlobStore(directory);
+    byte[] content = filled(FileChunk.CHUNK_SIZE, 4);
+    String first = upload(store, content, filled(10, 5));
+    store.collectGarbage(EXPIRED);
+    assertFalse(store.contains(first));
+    assertEquals(0, chunkCount());
+
+    String again = id(content);
+    assertEquals(content.length, store.append(again, 0, content, content.length));
+    String other = upload(store, content, filled(10, 6));
+    store.addReference(again);
+    store.collectGarbage(EXPIRED);
+    assertTrue(store.contains(again));
+    assertFalse(store.contains(other));
+    assertArrayEquals(content, store.read(again, 0, content.length));
+  }
+
+  @Test
+  void abandonedUploadReleasesItsChunks() throws Exception {
+    BlobStore store = new BlobStore(directory);
+    byte[] first = filled(FileChunk.CHUNK_SIZE, 7);
+    String blobId = id(first, filled(10, 8));
+    assertEquals(first.length, store.append(blobId, 0, first, first.length + 10L));
+    assertEquals(1, chunkCount());
+
+    store.collectGarbage(EXPIRED);
+    assertEquals(0, store.size(blobId));
+    assertEquals(0, chunkCount());
+  }
+
+  private static String upload(BlobStore store, byte[]... chunks) throws Exception {
+    String blobId = id(chunks);
+    long fileSize = Arrays.stream(chunks).mapToLong(chunk -> chunk.length).sum();
+    long offset = 0;
+    for (byte[] chunk : chunks) {
+      offset = store.append(blobId, offset, chunk, fileSize);
+    }
+    assertEquals(fileSize, offset);
+    return blobId;
+  }
+
+  private static String id(byte[]... chunks) throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    for (byte[] chunk : chunks) {
+      digest.update(chunk);
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private static byte[] filled(int length, int value) {
+    byte[] data = new byte[length];
+    Arrays.fill(data, (byte) value);
+    return data;
+  }
+
+  private long chunkCount() throws IOException {
+    try (Stream<Path> chunks = Files.list(directory.resolve("chunks"))) {
+      return chunks.count();
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class BloomFilterTest {
+
+  private static final int INSERTIONS = 10_000;
+
+  @Test
+  void everyAddedNameIsFound() {
+    BloomFilter filter = new BloomFilter(INSERTIONS, 0.01);
+    for (int i = 0; i < INSERTIONS; i++) {
+      filter.put("user-" + i);
+    }
+    for (int i = 0; i < INSERTIONS; i++) {
+      assertTrue(filter.mightContain("user-" + i), "user-" + i);
+    }
+  }
+
+  @Test
+  void falsePositivesStayNearTheConfiguredRate() {
+    BloomFilter filter = new BloomFilter(INSERTIONS, 0.01);
+    for (int i = 0; i < INSERTIONS; i++) {
+      filter.put("user-" + i);
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < INSERTIONS; i++) {
+      if (filter.mightContain("other-" + i)) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < INSERTIONS * 0.03, falsePositives + " false positives");
+  }
+}
@@ -0,0 +1,85 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cn.edu.sustech.cs209.chatting.common.ChatRoom;
+import cn.edu.sustech.cs209.chatting.common.ChatType;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.MessageType;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import cn.edu.sustech.cs209.chatting.common.SyncMode;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ClusterHandoffTest {
+
+  /**
+   * More than one page of {@link ServerConfig#getCatchUpBatchSize()}.
+   */
+  private static final int HISTORY = 600;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void messagePostedDuringHandoffKeepsTheHistory() throws Exception {
+    InProcessBroker.Hub hub = new InProcessBroker.Hub();
+    Server a = node("a", hub);
+    a.getCluster().start();
+    String roomId = roomOwnedBy("b");
+    a.getChatRooms().add(new ChatRoom(roomId, ChatType.GROUP_CHAT, Set.of("alice", "bob"), 0));
+    for (int i = 0; i < HISTORY; i++) {
+      a.getMessageLog().append("alice", null, message(roomId, "old " + i));
+    }
+
+    Server b = node("b", hub);
+    b.getCluster().start();
+    awaitUntil(() -> b.getChatRooms().get(roomId) != null);
+    b.getPacketHandler().handlePacket(new RecordingConnection("bob"),
+        Packet.builder().type(PacketType.MESSAGE).message(message(roomId, "new")).build());
+
+    MessageLog log = b.getMessageLog();
+    awaitUntil(() -> log.history(roomId, null, 2 * HISTORY).messages().size() == HISTORY + 1);
+    List<Message> history = log.history(roomId, null, 2 * HISTORY).messages();
+    for (int i = 1; i < history.size(); i++) {
+      assertTrue(history.get(i - 1).getId() < history.get(i).getId(), "ids increase");
+    }
+    assertEquals("old 0", history.get(0).getData());
+    assertEquals("new", history.get(HISTORY).getData());
+    a.getCluster().close();
+    b.getCluster().close();
+  }
+
+  private Server node(String nodeId, InProcessBroker.Hub hub) {
+    return new Server(ServerConfig.builder().dataDirectory(directory).nodeId(nodeId)
+        .broker(new InProcessBroker(hub)).logSyncMode(SyncMode.NONE).build());
+  }
+
+  private static String roomOwnedBy(String nodeId) {
+    HashRing ring = new HashRing(Set.of("a", "b"), 64);
+    for (int i = 0; ; i++) {
+      if (ring.ownerOf("room-" + i).equals(nodeId)) {
+        return "room-" + i;
+      }
+    }
+  }
+
+  private static Message message(String roomId, String data) {
+    return Message.builder().chatRoomId(roomId).sentBy("alice").timestamp(1L)
+        .type(MessageType.TEXT).data(data).build();
+  }
+
+  private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + 10_000_000_000L;
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() < deadline, "condition not met in time");
+      Thread.sleep(10);
+    }
+  }
+}
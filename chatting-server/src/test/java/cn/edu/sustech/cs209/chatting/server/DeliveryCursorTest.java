@@ -0,0 +1,81 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cn.edu.sustech.cs209.chatting.common.ChatRoom;
+import cn.edu.sustech.cs209.chatting.common.ChatType;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.MessageType;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import cn.edu.sustech.cs209.chatting.common.SyncMode;
+import java.nio.file.Path;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeliveryCursorTest {
+
+  private static final String ROOM = "room";
+
+  @TempDir
+  Path directory;
+
+  private Server server;
+
+  @BeforeEach
+  void setUp() {
+    server = new Server(ServerConfig.builder().dataDirectory(directory)
+        .logSyncMode(SyncMode.NONE).build());
+    server.getChatRooms().add(new ChatRoom(ROOM, ChatType.GROUP_CHAT, Set.of("alice", "bob"), 0));
+    for (int i = 0; i < 5; i++) {
+      MessageLog messageLog = server.getMessageLog();
+      messageLog.release(messageLog.append("alice", null, message("m" + i)).join());
+    }
+  }
+
+  @Test
+  void cursorStopsBeforeTheFirstUnwrittenEntry() {
+    Connection connection = new RecordingConnection("bob") {
+      @Override
+      public long firstUnwritten() {
+        return 3;
+      }
+    };
+    server.addUser("bob", connection, false);
+    server.clientLogout("bob");
+    assertEquals(2, server.getDeliveredSequences().get("bob"));
+  }
+
+  @Test
+  void cursorCoversWhatWasWritten() {
+    server.addUser("bob", new RecordingConnection("bob"), false);
+    server.clientLogout("bob");
+    assertEquals(5, server.getDeliveredSequences().get("bob"));
+  }
+
+  @Test
+  void catchUpSendsEntriesAfterTheCursor() throws InterruptedException {
+    server.getDeliveredSequences().put("bob", 2L);
+    RecordingConnection connection = new RecordingConnection("bob");
+    server.addUser("bob", connection, false);
+    server.catchUp("bob", connection);
+
+    long deadline = System.nanoTime() + 10_000_000_000L;
+    while (connection.sent().stream().noneMatch(p -> p.getType() == PacketType.CATCH_UP)) {
+      assertTrue(System.nanoTime() < deadline, "no catch-up was sent");
+      Thread.sleep(10);
+    }
+    Packet catchUp = connection.sent().stream()
+        .filter(p -> p.getType() == PacketType.CATCH_UP).findFirst().orElseThrow();
+    assertEquals(3, catchUp.getMessages().size());
+    assertEquals("m2", catchUp.getMessages().get(0).getData());
+  }
+
+  private static Message message(String data) {
+    return Message.builder().chatRoomId(ROOM).sentBy("alice").timestamp(1L)
+        .type(MessageType.TEXT).data(data).build();
+  }
+}
@@ -0,0 +1,88 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cn.edu.sustech.cs209.chatting.common.FileChunk;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import cn.edu.sustech.cs209.chatting.common.SyncMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileTransferTest {
+
+  private static final byte[] CONTENT = "attachment".getBytes(StandardCharsets.UTF_8);
+
+  @TempDir
+  Path directory;
+
+  private Server server;
+  private String blobId;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new Server(ServerConfig.builder().dataDirectory(directory)
+        .logSyncMode(SyncMode.NONE).build());
+    blobId = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(CONTENT));
+  }
+
+  @Test
+  void transfersRequireLogin() {
+    RecordingConnection connection = new RecordingConnection(null);
+    server.getPacketHandler().handlePacket(connection, upload());
+    server.getPacketHandler().handlePacket(connection, download());
+
+    assertEquals(2, connection.sent().size());
+    assertEquals(PacketType.FILE_ACK, connection.sent().get(0).getType());
+    assertEquals(-1, connection.sent().get(0).getFileChunk().getOffset());
+    assertEquals(PacketType.FILE_CHUNK, connection.sent().get(1).getType());
+    assertEquals(-1, connection.sent().get(1).getFileChunk().getOffset());
+    assertFalse(server.getBlobStore().contains(blobId));
+  }
+
+  @Test
+  void uploadedFileCanBeDownloaded() throws Exception {
+    RecordingConnection connection = new RecordingConnection("alice");
+    server.getPacketHandler().handlePacket(connection, upload());
+    awaitUntil(() -> connection.sent().size() == 1);
+    assertEquals(CONTENT.length, connection.sent().get(0).getFileChunk().getOffset());
+    assertTrue(server.getBlobStore().contains(blobId));
+
+    server.getPacketHandler().handlePacket(connection, download());
+    awaitUntil(() -> connection.sent().size() == 2);
+    FileChunk chunk = connection.sent().get(1).getFileChunk();
+    assertEquals(0, chunk.getOffset());
+    assertEquals(CONTENT.length, chunk.getFileSize());
+    assertArrayEquals(CONTENT, chunk.getData());
+  }
+
+  private Packet upload() {
+    return Packet.builder().type(PacketType.FILE_UPLOAD)
+        .fileChunk(FileChunk.builder().transferId(blobId).fileName("a.txt")
+            .fileSize(CONTENT.length).offset(0).data(CONTENT).build())
+        .build();
+  }
+
+  private Packet download() {
+    return Packet.builder().type(PacketType.FILE_DOWNLOAD)
+        .fileChunk(FileChunk.builder().transferId(blobId).offset(0).build())
+        .build();
+  }
+
+  private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + 10_000_000_000L;
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() < deadline, "condition not met in time");
+      Thread.sleep(10);
+    }
+  }
+}
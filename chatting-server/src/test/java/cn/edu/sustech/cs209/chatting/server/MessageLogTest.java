@@ -0,0 +1,117 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cn.edu.sustech.cs209.chatting.common.LogOptions;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.MessageType;
+import cn.edu.sustech.cs209.chatting.common.SyncMode;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageLogTest {
+
+  private static final String ROOM = "room";
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void importMergesOlderMessagesById() {
+    MessageLog messageLog = open();
+    for (int i = 0; i < 5; i++) {
+      messageLog.append("bob", null, message("other", "filler"));
+    }
+    Message posted = message(ROOM, "posted here");
+    messageLog.append("alice", null, posted).join();
+    assertEquals(6, posted.getId());
+
+    List<Message> handedOver = new ArrayList<>();
+    for (long id = 1; id <= 5; id++) {
+      Message message = message(ROOM, "handed over " + id);
+      message.setId(id);
+      handedOver.add(message);
+    }
+    assertEquals(5, messageLog.importMessages(handedOver));
+    assertEquals(0, messageLog.importMessages(handedOver));
+
+    List<Long> expected = LongStream.rangeClosed(1, 6).boxed().toList();
+    assertEquals(expected, ids(messageLog.history(ROOM, null, 100).messages()));
+    assertEquals(List.of(3L, 4L), ids(messageLog.history(ROOM, 5L, 2).messages()));
+    assertEquals(expected, ids(open().history(ROOM, null, 100).messages()));
+  }
+
+  @Test
+  void messagesAfterPagesForward() {
+    MessageLog messageLog = open();
+    for (int i = 0; i < 10; i++) {
+      messageLog.append("alice", null, message(ROOM, "m" + i));
+    }
+    List<Long> read = new ArrayList<>();
+    Long after = null;
+    MessageLog.Page page;
+    int pages = 0;
+    do {
+      page = messageLog.messagesAfter(ROOM, after, 4);
+      read.addAll(ids(page.messages()));
+      after = read.get(read.size() - 1);
+      pages++;
+    } while (page.hasMore());
+    assertEquals(LongStream.rangeClosed(1, 10).boxed().toList(), read);
+    assertEquals(3, pages);
+    assertTrue(messageLog.messagesAfter(ROOM, 10L, 4).messages().isEmpty());
+    assertFalse(messageLog.messagesAfter("missing", null, 4).hasMore());
+  }
+
+  @Test
+  void recoverySkipsCorruptRecordsAndTruncatesOnlyATornTail() throws IOException {
+    MessageLog messageLog = open(1);
+    for (int i = 0; i < 5; i++) {
+      messageLog.append("alice", null, message(ROOM, "m" + i));
+    }
+    Path shard = directory.resolve("shard-00.log");
+    List<String> lines = new ArrayList<>(Files.readAllLines(shard, StandardCharsets.UTF_8));
+    lines.set(2, "x".repeat(lines.get(2).length()));
+    String intact = String.join("\n", lines) + "\n";
+    Files.writeString(shard, intact + "{\"sequence\":6,\"mess", StandardCharsets.UTF_8);
+
+    MessageLog recovered = open(1);
+    assertEquals(List.of(1L, 2L, 4L, 5L), ids(recovered.history(ROOM, null, 100).messages()));
+    assertEquals(intact.length(), Files.size(shard));
+    List<Long> read = new ArrayList<>();
+    recovered.read(0, 5, entry -> true, entry -> read.add(entry.getSequence()));
+    assertEquals(List.of(1L, 2L, 4L, 5L), read);
+
+    Message next = message(ROOM, "after recovery");
+    recovered.append("alice", null, next).join();
+    assertEquals(6, next.getId());
+    assertEquals(List.of(1L, 2L, 4L, 5L, 6L), ids(open(1).history(ROOM, null, 100).messages()));
+  }
+
+  private MessageLog open() {
+    return open(4);
+  }
+
+  private MessageLog open(int shards) {
+    return new MessageLog(directory, shards,
+        LogOptions.builder().syncMode(SyncMode.NONE).build());
+  }
+
+  private static Message message(String roomId, String data) {
+    return Message.builder().chatRoomId(roomId).sentBy("alice").timestamp(1L)
+        .type(MessageType.TEXT).data(data).build();
+  }
+
+  private static List<Long> ids(List<Message> messages) {
+    return messages.stream().map(Message::getId).toList();
+  }
+}
@@ -0,0 +1,136 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cn.edu.sustech.cs209.chatting.common.PacketType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class OutboundQueueTest {
+
+  private static final long BOUND = 100;
+
+  @Test
+  void dropPresenceKeepsHalfTheBoundForOtherPackets() {
+    OutboundQueue queue = queue(SlowConsumerPolicy.DROP_PRESENCE, 0);
+    assertEquals(OutboundQueue.Offer.QUEUED, queue.offer(bytes(40), PacketType.PRESENCE));
+    assertEquals(OutboundQueue.Offer.DROPPED, queue.offer(bytes(40), PacketType.PRESENCE));
+    assertEquals(OutboundQueue.Offer.QUEUED, queue.offer(bytes(40), PacketType.MESSAGE));
+    assertEquals(OutboundQueue.Offer.OVERFLOW, queue.offer(bytes(40), PacketType.MESSAGE));
+    assertEquals(80, queue.queuedBytes());
+  }
+
+  @Test
+  void disconnectOverflowsAtTheBound() {
+    OutboundQueue queue = queue(SlowConsumerPolicy.DISCONNECT, 0);
+    assertEquals(OutboundQueue.Offer.QUEUED, queue.offer(bytes(60), PacketType.MESSAGE));
+    assertEquals(OutboundQueue.Offer.QUEUED, queue.offer(bytes(40), PacketType.MESSAGE));
+    assertEquals(OutboundQueue.Offer.OVERFLOW, queue.offer(bytes(1), PacketType.PRESENCE));
+  }
+
+  @Test
+  void packetOfferedToAnEmptyQueueIsAlwaysQueued() {
+    OutboundQueue queue = queue(SlowConsumerPolicy.DISCONNECT, 0);
+    assertEquals(OutboundQueue.Offer.QUEUED, queue.offer(bytes(10 * (int) BOUND),
+        PacketType.FILE_CHUNK));
+  }
+
+  @Test
+  void blockWaitsForTheWriterOrTimesOut() throws Exception {
+    OutboundQueue queue = queue(SlowConsumerPolicy.BLOCK, TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(OutboundQueue.Offer.QUEUED, queue.offer(bytes(60), PacketType.MESSAGE));
+    assertEquals(OutboundQueue.Offer.OVERFLOW, queue.offer(bytes(60), PacketType.MESSAGE));
+
+    OutboundQueue blocking = queue(SlowConsumerPolicy.BLOCK, TimeUnit.SECONDS.toNanos(10));
+    blocking.offer(bytes(60), PacketType.MESSAGE);
+    CompletableFuture<OutboundQueue.Offer> offer = CompletableFuture.supplyAsync(
+        () -> blocking.offer(bytes(60), PacketType.MESSAGE));
+    Thread.sleep(50);
+    assertFalse(offer.isDone());
+    blocking.collect();
+    assertEquals(OutboundQueue.Offer.QUEUED_AFTER_WAIT, offer.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void tracksSequencesUntilWrittenInFull() throws IOException {
+    OutboundQueue queue = queue(SlowConsumerPolicy.DROP_PRESENCE, 0);
+    assertEquals(Long.MAX_VALUE, queue.firstUnwritten());
+    queue.offer(bytes(10), PacketType.MESSAGE, 5);
+    queue.offer(bytes(10), PacketType.PRESENCE);
+    queue.offer(bytes(10), PacketType.MESSAGE, 6);
+    assertEquals(5, queue.firstUnwritten());
+
+    queue.collect();
+    assertFalse(queue.writeTo(new LimitedChannel(15)));
+    assertEquals(6, queue.firstUnwritten());
+    assertTrue(queue.writeTo(new LimitedChannel(Integer.MAX_VALUE)));
+    assertEquals(Long.MAX_VALUE, queue.firstUnwritten());
+  }
+
+  @Test
+  void discardedAndMissedSequencesStayUnwritten() {
+    OutboundQueue queue = queue(SlowConsumerPolicy.DISCONNECT, 0);
+    queue.offer(bytes(60), PacketType.MESSAGE, 9);
+    assertEquals(OutboundQueue.Offer.OVERFLOW, queue.offer(bytes(60), PacketType.MESSAGE, 8));
+    queue.discard();
+    queue.missed(7);
+    assertTrue(queue.isEmpty());
+    assertEquals(7, queue.firstUnwritten());
+  }
+
+  private static OutboundQueue queue(SlowConsumerPolicy policy, long blockTimeoutNanos) {
+    return new OutboundQueue(64 * 1024, BOUND, policy, blockTimeoutNanos);
+  }
+
+  private static ByteBuffer bytes(int length) {
+    return ByteBuffer.allocate(length);
+  }
+
+  /**
+   * Takes at most {@code budget} bytes per write, like a socket with a full send buffer.
+   */
+  private static final class LimitedChannel implements GatheringByteChannel {
+
+    private final int budget;
+
+    LimitedChannel(int budget) {
+      this.budget = budget;
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) {
+      long written = 0;
+      for (int i = offset; i < offset + length && written < budget; i++) {
+        int take = (int) Math.min(sources[i].remaining(), budget - written);
+        sources[i].position(sources[i].position() + take);
+        written += take;
+      }
+      return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources) {
+      return write(sources, 0, sources.length);
+    }
+
+    @Override
+    public int write(ByteBuffer source) {
+      return (int) write(new ByteBuffer[]{source});
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.EncodedPacket;
+import cn.edu.sustech.cs209.chatting.common.Packet;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A connection that keeps the packets sent to it instead of writing them anywhere.
+ */
+class RecordingConnection implements Connection {
+
+  private final List<Packet> sent = new CopyOnWriteArrayList<>();
+  private volatile String username;
+
+  RecordingConnection(String username) {
+    this.username = username;
+  }
+
+  List<Packet> sent() {
+    return sent;
+  }
+
+  @Override
+  public String getUsername() {
+    return username;
+  }
+
+  @Override
+  public void setUsername(String username) {
+    this.username = username;
+  }
+
+  @Override
+  public WireFormat getWireFormat() {
+    return WireFormat.JSON_LINES;
+  }
+
+  @Override
+  public void setWireFormat(WireFormat format, Packet announcement) {
+    sent.add(announcement);
+  }
+
+  @Override
+  public void setInboundFormat(WireFormat format) {
+  }
+
+  @Override
+  public void sendPacket(Packet packet) {
+    sent.add(packet);
+  }
+
+  @Override
+  public void send(EncodedPacket packet) {
+    sent.add(packet.getPacket());
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,59 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import cn.edu.sustech.cs209.chatting.common.SyncMode;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class ServerServiceTest {
+
+  @TempDir
+  Path directory;
+
+  /**
+   * The writer starts before the reader fails, or only once the reader has already closed the
+   * connection; either way it must exit.
+   */
+  @ParameterizedTest
+  @ValueSource(longs = {0, 200})
+  void writerExitsOnceTheReaderFails(long writerDelayMillis) throws Exception {
+    Server server = new Server(ServerConfig.builder().dataDirectory(directory)
+        .logSyncMode(SyncMode.NONE).build());
+    List<Thread> threads = new CopyOnWriteArrayList<>();
+    Executor executor = task -> {
+      Thread thread = new Thread(() -> {
+        try {
+          Thread.sleep(writerDelayMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+        task.run();
+      });
+      threads.add(thread);
+      thread.start();
+    };
+    try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+      listener.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+      SocketChannel accepted = listener.accept();
+      Thread reader = new Thread(new ServerService(accepted, server, executor));
+      reader.start();
+      Thread.sleep(100);
+      client.close();
+      reader.join(5_000);
+    }
+    for (Thread thread : threads) {
+      thread.join(5_000);
+      assertFalse(thread.isAlive(), "writer thread still running after close");
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cn.edu.sustech.cs209.chatting.common.LogOptions;
+import cn.edu.sustech.cs209.chatting.common.SyncMode;
+import cn.edu.sustech.cs209.chatting.common.User;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class UserDirectoryTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void registerClaimsANameOnce() {
+    UserDirectory users = open();
+    assertTrue(users.register(new User("alice", "secret")).join());
+    assertFalse(users.register(new User("alice", "other")).join());
+    assertTrue(users.exists("alice"));
+    assertFalse(users.exists("bob"));
+    assertFalse(users.exists(null));
+    assertTrue(users.authenticate("alice", "secret"));
+    assertFalse(users.authenticate("alice", "other"));
+    assertFalse(users.authenticate("bob", "secret"));
+  }
+
+  @Test
+  void concurrentRegistrationsOfOneNameHaveOneWinner() throws Exception {
+    UserDirectory users = open();
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<CompletableFuture<Boolean>>> attempts = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        User user = new User("carol", "password-" + i);
+        attempts.add(executor.submit(() -> {
+          start.await();
+          return users.register(user);
+        }));
+      }
+      start.countDown();
+      int winners = 0;
+      for (Future<CompletableFuture<Boolean>> attempt : attempts) {
+        winners += attempt.get().join() ? 1 : 0;
+      }
+      assertEquals(1, winners);
+      assertEquals(1, users.size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void restoreReplaysEveryShard() {
+    UserDirectory users = open();
+    IntStream.range(0, 20).forEach(i -> users.register(new User("user-" + i, "p" + i)).join());
+    users.close();
+
+    UserDirectory restored = open();
+    restored.restore(List.of(new User("snapshotted", "s")), new long[0]);
+    assertEquals(21, restored.size());
+    assertTrue(restored.authenticate("user-7", "p7"));
+    assertTrue(restored.authenticate("snapshotted", "s"));
+    assertFalse(restored.register(new User("user-7", "again")).join());
+  }
+
+  private UserDirectory open() {
+    return new UserDirectory(directory, 4, 100,
+        LogOptions.builder().syncMode(SyncMode.NONE).build());
+  }
+}